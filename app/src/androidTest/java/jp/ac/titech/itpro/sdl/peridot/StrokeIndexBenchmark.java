@@ -0,0 +1,89 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 10万本の線を入れたStrokeIndexと全件走査で, 点・矩形・最近傍の問い合わせ時間を比べる.
+ * 結果はlogcatの "StrokeIndexBenchmark" に出る.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StrokeIndexBenchmark {
+
+    private static final String TAG = "StrokeIndexBenchmark";
+    private static final int STROKES = 100000;
+    private static final int QUERIES = 1000;
+    private static final float SIZE = 8192;
+
+    private static List<StrokeLog.Op> strokes(Random random) {
+        List<StrokeLog.Op> all = new ArrayList<>();
+        for(int s = 0; s < STROKES; ++s) {
+            float x = random.nextFloat() * SIZE, y = random.nextFloat() * SIZE;
+            StrokeLog.Op op = new StrokeLog.Op(0, false, 0xFF000000, 2 + random.nextFloat() * 30, 0);
+            // 20点, 長さ200px程度の線
+            for(int i = 0; i < 20; ++i) {
+                op.add(x, y);
+                x += random.nextFloat() * 20 - 10;
+                y += random.nextFloat() * 20 - 10;
+            }
+            all.add(op);
+        }
+        return all;
+    }
+
+    @Test
+    public void queries() throws Exception {
+        Random random = new Random(1);
+        List<StrokeLog.Op> all = strokes(random);
+
+        long start = System.nanoTime();
+        StrokeIndex index = new StrokeIndex();
+        for(StrokeLog.Op op : all) index.add(op);
+        Log.i(TAG, String.format("build: %d ms for %d strokes", (System.nanoTime() - start) / 1000000, STROKES));
+
+        float[] qs = new float[QUERIES * 2];
+        for(int i = 0; i < qs.length; ++i) qs[i] = random.nextFloat() * SIZE;
+
+        start = System.nanoTime();
+        int hits = 0;
+        for(int q = 0; q < QUERIES; ++q) if(index.hit(qs[q * 2], qs[q * 2 + 1], 2) != null) ++hits;
+        final long hitIndex = (System.nanoTime() - start) / QUERIES;
+
+        start = System.nanoTime();
+        int linear = 0;
+        for(int q = 0; q < QUERIES / 10; ++q) {
+            StrokeLog.Op found = null;
+            for(StrokeLog.Op op : all) {
+                if(StrokeIndex.gap(op, qs[q * 2], qs[q * 2 + 1]) <= 2) found = op;
+            }
+            if(found != null) ++linear;
+        }
+        final long hitLinear = (System.nanoTime() - start) / (QUERIES / 10);
+
+        start = System.nanoTime();
+        List<StrokeLog.Op> out = new ArrayList<>();
+        for(int q = 0; q < QUERIES; ++q) {
+            out.clear();
+            index.query(qs[q * 2], qs[q * 2 + 1], qs[q * 2] + 256, qs[q * 2 + 1] + 256, out);
+        }
+        final long rect = (System.nanoTime() - start) / QUERIES;
+
+        start = System.nanoTime();
+        for(int q = 0; q < QUERIES; ++q) index.nearest(qs[q * 2], qs[q * 2 + 1], 512);
+        final long nearest = (System.nanoTime() - start) / QUERIES;
+
+        Log.i(TAG, String.format("hit: index %d us, linear %d us (%d/%d hits)  rect(256px): %d us  nearest: %d us",
+            hitIndex / 1000, hitLinear / 1000, hits, QUERIES, rect / 1000, nearest / 1000));
+        assertTrue(hitIndex * 10 < hitLinear);
+        assertTrue(linear <= QUERIES / 10);
+    }
+}
@@ -0,0 +1,107 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * STAMPとPATHで同じ線を描いて, 描画命令の回数と1本あたりの時間を比べる.
+ * 幅を変えながら押すスタンプ1回分の時間も, キャッシュしたマスクとdrawCircleで比べる.
+ * 結果はlogcatの "StrokeRenderBenchmark" に出る.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StrokeRenderBenchmark {
+
+    private static final String TAG = "StrokeRenderBenchmark";
+    private static final int STROKES = 20;
+
+    // 描画命令を数えてPenに流す
+    private static class CountingStamp implements StrokeEngine.Stamp {
+        final Pen pen;
+        int calls = 0;
+        CountingStamp(Pen pen) {
+            this.pen = pen;
+        }
+        @Override public void draw(float x, float y, float rate) {
+            ++calls;
+            pen.draw(x, y, rate);
+        }
+        @Override public void drawSegment(float x1, float y1, float x2, float y2, float x3, float y3) {
+            ++calls;
+            pen.drawSegment(x1, y1, x2, y2, x3, y3);
+        }
+    }
+
+    private long[] run(StrokeEngine.Mode mode, float width) {
+        DrawView view = new DrawView(InstrumentationRegistry.getTargetContext());
+        view.onSizeChanged(1080, 1920, 0, 0);
+        CountingStamp stamp = new CountingStamp(new Pen(view, Color.RED, width));
+        StrokeEngine engine = new StrokeEngine();
+        engine.setMode(mode);
+        engine.setSpacing(width, StrokeEngine.SPACING, StrokeEngine.MIN_SPACING);
+
+        final long start = System.nanoTime();
+        for(int s = 0; s < STROKES; ++s) {
+            engine.begin(stamp);
+            // 長さ約1000pxの波線
+            for(int i = 0; i <= 100; ++i) {
+                engine.add(40 + i * 10.f, 960 + (float)Math.sin(i * 0.2 + s) * 300.f);
+            }
+            engine.end();
+        }
+        final long elapsed = System.nanoTime() - start;
+        return new long[] { stamp.calls / STROKES, elapsed / STROKES / 1000 };
+    }
+
+    @Test
+    public void compareStampAndPath() throws Exception {
+        for(float width : new float[] { 4, 16, 64, 256 }) {
+            long[] stamp = run(StrokeEngine.Mode.STAMP, width);
+            long[] path = run(StrokeEngine.Mode.PATH, width);
+            Log.i(TAG, String.format("width=%3.0f  STAMP: %5d calls %6d us/stroke  PATH: %3d calls %6d us/stroke",
+                width, stamp[0], stamp[1], path[0], path[1]));
+            // STAMPは幅に応じて間隔を空けるので, 太いと区間数より少なくなることもある
+            if(width <= 16) assertTrue(path[0] < stamp[0]);
+        }
+    }
+
+    // 1回押すのにかかる時間 (ns). キャッシュしたスタンプとdrawCircleを比べる
+    private long dab(boolean cached, float width) {
+        DrawView view = new DrawView(InstrumentationRegistry.getTargetContext());
+        view.onSizeChanged(1080, 1920, 0, 0);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.RED);
+        final int n = 20000;
+        // 1周目はスタンプを作る分が入るので捨てる
+        long elapsed = 0;
+        for(int round = 0; round < 2; ++round) {
+            final long start = System.nanoTime();
+            for(int i = 0; i < n; ++i) {
+                final float x = 40 + (i % 1000), y = 960 + (float)Math.sin(i * 0.02) * 300.f;
+                // 線の途中で幅が変わる
+                final float d = width * (0.3f + 0.7f * (i % 100) / 100.f);
+                if(cached) view.drawStamp(Pen.Shape.Circle, x, y, d, Color.RED);
+                else view.drawCircle(x, y, d / 2, paint);
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        return elapsed / n;
+    }
+
+    @Test
+    public void compareCachedStampAndCircle() throws Exception {
+        for(float width : new float[] { 4, 16, 64 }) {
+            final long cached = dab(true, width);
+            final long circle = dab(false, width);
+            Log.i(TAG, String.format("width=%3.0f  cached: %6d ns/dab  drawCircle: %6d ns/dab", width, cached, circle));
+            assertTrue(cached < circle);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.util.Random;
+
+
+// 再接続の待ち時間. 失敗するたびに上限を倍にし, 0 - 上限 から一様に選ぶ (full jitter)
+// 全員が同時に切れても再接続がばらけるようにする
+class Backoff {
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private final Random random;
+    private int attempts = 0;
+
+    Backoff(long baseMillis, long maxMillis, Random random) {
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.random = random;
+    }
+
+    synchronized long next() {
+        // 2^30倍より先は上限に張り付いているので数えない
+        final long cap = Math.min(maxMillis, baseMillis << Math.min(attempts, 30));
+        if(attempts < 31) ++attempts;
+        return (long)(random.nextDouble() * (cap + 1));
+    }
+
+    synchronized void reset() {
+        attempts = 0;
+    }
+
+    synchronized int getAttempts() {
+        return attempts;
+    }
+}
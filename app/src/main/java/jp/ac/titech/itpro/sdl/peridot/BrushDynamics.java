@@ -0,0 +1,48 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+// 入力点の速さから線幅の倍率 (rate) を決める. 速く引くほど細くなる (筆やペン先のかすれの代わり)
+// 速さは時刻つきの点から求め, 指数移動平均でならしてがたつきを抑える
+class BrushDynamics {
+
+    private float minRate = 0.3f;
+    private float thinning = 0.4f;      // 1px/ms でどれだけ細くするか
+    private float smoothing = 0.25f;    // 移動平均の重み (大きいほど新しい点に追従する)
+
+    private boolean started = false;
+    private float lastX, lastY;
+    private long lastTime;
+    private float speed;    // px/ms
+
+    void set(float minRate, float thinning, float smoothing) {
+        this.minRate = minRate;
+        this.thinning = thinning;
+        this.smoothing = smoothing;
+    }
+
+    // 線の始まり
+    void begin() {
+        started = false;
+        speed = 0;
+    }
+
+    // time: ms
+    float rate(float x, float y, long time) {
+        if(started) {
+            // 同じ時刻にまとめて来た点は1ms間隔とみなす
+            final long dt = Math.max(1, time - lastTime);
+            final float v = StrokeEngine.dist(lastX, lastY, x, y) / dt;
+            speed += smoothing * (v - speed);
+        }
+        started = true;
+        lastX = x;
+        lastY = y;
+        lastTime = time;
+        return Math.max(minRate, 1.0f - thinning * speed);
+    }
+
+    // xy, timesの先頭n点の倍率をratesに書き出す
+    void rates(float[] xy, long[] times, int n, float[] rates) {
+        for(int i = 0; i < n; ++i) rates[i] = rate(xy[i * 2], xy[i * 2 + 1], times[i]);
+    }
+}
@@ -0,0 +1,394 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+// キャンバスをプロセスが死んでも残すための保存先 (ディレクトリ1つ)
+//   journal-<gen>.log  確定した線とclearを追記していく. 1レコードは [length:4] [crc32:4] [payload]
+//   tiles-<gen>.pack   チェックポイントで変わったタイルのPNGを並べたもの
+//   checkpoint         どのタイルがどのpackのどこにあるかと, それが journal-<gen> より前を全部含むこと
+// 起動時はチェックポイントのタイルを読んで, それより後のjournalだけ描き直す
+// checkpointは一時ファイルに書いてから名前を変えるので, 途中で落ちても古いものか新しいものかのどちらかが残る
+// journalの末尾が書きかけならそこから先は捨てる
+// スレッドセーフではない. 呼ぶ側で1つのスレッドにまとめる
+class CanvasJournal {
+
+    private static final int MAGIC = 0x5044434B;    // "PDCK"
+    private static final int VERSION = 1;
+    private static final byte CLEAR = 2;
+    private static final byte STROKE_DELTA = 3;
+    // STROKE_DELTAの座標の精度 (1/16 px). 受け取った線は1/4 pxなのでそのまま残る
+    static final int PRECISION = 4;
+    // 参照しているpackがこれより多くなったら全部のタイルを新しいpackに書き直す
+    private static final int MAX_PACKS = 8;
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    interface Reader {
+        void tile(int tx, int ty, byte[] png);
+        void op(StrokeLog.Op op);
+    }
+
+    // チェックポイントに入れるタイル. pngがnullなら前のチェックポイントのものをそのまま使う
+    static class Tile {
+        final int tx, ty;
+        final byte[] png;
+        Tile(int tx, int ty, byte[] png) {
+            this.tx = tx;
+            this.ty = ty;
+            this.png = png;
+        }
+    }
+
+    // checkpointの中身. タイルは tiles-<pack>.pack の [offset, offset + length)
+    private static class Entry {
+        final int tx, ty, pack, offset, length;
+        Entry(int tx, int ty, int pack, int offset, int length) {
+            this.tx = tx;
+            this.ty = ty;
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File dir;
+    private int generation;                 // 今追記しているjournal
+    private int checkpointGeneration = 0;   // これより前のjournalはチェックポイントに入っている
+    private List<Entry> entries = new ArrayList<>();
+
+    // 書き込み待ちのレコード. flushでまとめて1回書いてfsyncする
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private int pendingRecords = 0;
+    private int journalRecords = 0;     // 今のjournalに書いたレコード数
+    private FileOutputStream out;
+    private final CRC32 crc = new CRC32();
+
+    CanvasJournal(File dir) throws IOException {
+        this.dir = dir;
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        readCheckpoint();
+        // 前回の最後のjournalは末尾が書きかけかもしれないので, 追記は新しいjournalにする
+        int last = checkpointGeneration;
+        for(int gen : generations("journal-", ".log")) last = Math.max(last, gen);
+        generation = last + 1;
+    }
+
+    private File journalFile(int gen) {
+        return new File(dir, "journal-" + gen + ".log");
+    }
+
+    private File packFile(int gen) {
+        return new File(dir, "tiles-" + gen + ".pack");
+    }
+
+    private File checkpointFile() {
+        return new File(dir, "checkpoint");
+    }
+
+    // prefix<gen>suffix の形のファイルのgen
+    private List<Integer> generations(String prefix, String suffix) {
+        List<Integer> out = new ArrayList<>();
+        String[] names = dir.list();
+        if(names == null) return out;
+        for(String name : names) {
+            if(!name.startsWith(prefix) || !name.endsWith(suffix)) continue;
+            try {
+                out.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+            } catch (NumberFormatException e) {
+                // 関係のないファイル
+            }
+        }
+        return out;
+    }
+
+    // チェックポイントのタイルとそれより後の操作を古い順に渡す
+    void read(Reader reader) throws IOException {
+        for(Entry e : entries) reader.tile(e.tx, e.ty, readTile(e));
+        List<Integer> gens = generations("journal-", ".log");
+        Collections.sort(gens);
+        for(int gen : gens) {
+            if(gen < checkpointGeneration) continue;
+            journalRecords += readJournal(journalFile(gen), reader);
+        }
+    }
+
+    // 壊れたレコードが出てきたらそこで終わり
+    private int readJournal(File file, Reader reader) throws IOException {
+        int count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while(true) {
+                final int length, sum;
+                try {
+                    length = in.readInt();
+                    sum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if(length <= 0 || length > MAX_RECORD) break;
+                byte[] payload = new byte[length];
+                try {
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if((int)crc.getValue() != sum) break;
+                StrokeLog.Op op = decode(payload);
+                if(op == null) break;
+                reader.op(op);
+                ++count;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    // 確定した線かclear. flushするまではメモリにためるだけ
+    void append(StrokeLog.Op op) {
+        record.reset();
+        try {
+            encode(op, recordOut);
+            recordOut.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // ByteArrayOutputStreamなので起きない
+        }
+        final byte[] payload = record.toByteArray();
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        writeInt(pending, payload.length);
+        writeInt(pending, (int)crc.getValue());
+        pending.write(payload, 0, payload.length);
+        ++pendingRecords;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    int pendingCount() {
+        return pendingRecords;
+    }
+
+    // 今のjournalに書いた (書く予定の) レコード数
+    int journalCount() {
+        return journalRecords + pendingRecords;
+    }
+
+    // ためたレコードを書いてディスクに届くまで待つ
+    void flush() throws IOException {
+        if(pendingRecords == 0) return;
+        if(out == null) out = new FileOutputStream(journalFile(generation), true);
+        pending.writeTo(out);
+        out.getChannel().force(false);
+        journalRecords += pendingRecords;
+        pending.reset();
+        pendingRecords = 0;
+    }
+
+    // ここまでのjournalを閉じて次から新しいものに書く. 閉じたものを含むチェックポイントのgenを返す
+    int rotate() throws IOException {
+        flush();
+        if(out != null) {
+            out.close();
+            out = null;
+        }
+        journalRecords = 0;
+        return ++generation;
+    }
+
+    // gen (rotateの戻り値) より前の操作を全部描いた状態のタイルでチェックポイントを作る
+    // 書けたら要らなくなったjournalとpackを消す
+    void checkpoint(int gen, List<Tile> tiles) throws IOException {
+        HashSet<Integer> oldPacks = new HashSet<>();
+        for(Entry e : entries) oldPacks.add(e.pack);
+        final boolean repack = oldPacks.size() >= MAX_PACKS;
+        // 前のチェックポイントのタイル (tx, ty) -> entry
+        HashMap<Long, Entry> previous = new HashMap<>();
+        for(Entry e : entries) previous.put(key(e.tx, e.ty), e);
+
+        List<Entry> next = new ArrayList<>();
+        FileOutputStream pack = null;
+        int offset = 0;
+        try {
+            for(Tile t : tiles) {
+                byte[] png = t.png;
+                Entry old = previous.get(key(t.tx, t.ty));
+                if(png == null) {
+                    if(old == null) continue;
+                    if(!repack) {
+                        next.add(old);
+                        continue;
+                    }
+                    png = readTile(old);
+                }
+                if(pack == null) pack = new FileOutputStream(packFile(gen));
+                pack.write(png);
+                next.add(new Entry(t.tx, t.ty, gen, offset, png.length));
+                offset += png.length;
+            }
+            if(pack != null) pack.getChannel().force(false);
+        } finally {
+            if(pack != null) pack.close();
+        }
+        writeCheckpoint(gen, next);
+        entries = next;
+        checkpointGeneration = gen;
+
+        // もう参照されないもの
+        HashSet<Integer> packs = new HashSet<>();
+        for(Entry e : entries) packs.add(e.pack);
+        for(int g : generations("tiles-", ".pack")) {
+            if(!packs.contains(g)) packFile(g).delete();
+        }
+        for(int g : generations("journal-", ".log")) {
+            if(g < gen) journalFile(g).delete();
+        }
+    }
+
+    private byte[] readTile(Entry e) throws IOException {
+        byte[] png = new byte[e.length];
+        RandomAccessFile pack = new RandomAccessFile(packFile(e.pack), "r");
+        try {
+            pack.seek(e.offset);
+            pack.readFully(png);
+        } finally {
+            pack.close();
+        }
+        return png;
+    }
+
+    private static long key(int tx, int ty) {
+        return (long)tx << 32 | (ty & 0xFFFFFFFFL);
+    }
+
+    private void writeCheckpoint(int gen, List<Entry> list) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buf);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(gen);
+        data.writeInt(list.size());
+        for(Entry e : list) {
+            data.writeInt(e.tx);
+            data.writeInt(e.ty);
+            data.writeInt(e.pack);
+            data.writeInt(e.offset);
+            data.writeInt(e.length);
+        }
+        data.flush();
+        crc.reset();
+        crc.update(buf.toByteArray(), 0, buf.size());
+        data.writeInt((int)crc.getValue());
+        data.flush();
+
+        File tmp = new File(dir, "checkpoint.tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            buf.writeTo(out);
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(checkpointFile())) throw new IOException("failed to rename " + tmp);
+    }
+
+    // 読めないチェックポイントは無いものとして扱う (journalを最初から描き直す)
+    private void readCheckpoint() throws IOException {
+        File file = checkpointFile();
+        if(!file.exists()) return;
+        byte[] bytes = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        if(bytes.length < 20) return;
+        crc.reset();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        if(data.readInt() != MAGIC || data.readInt() != VERSION) return;
+        final int gen = data.readInt();
+        final int n = data.readInt();
+        if(n < 0 || 16 + n * 20 + 4 != bytes.length) return;
+        List<Entry> list = new ArrayList<>();
+        for(int i = 0; i < n; ++i) {
+            list.add(new Entry(data.readInt(), data.readInt(), data.readInt(), data.readInt(), data.readInt()));
+        }
+        if(data.readInt() != (int)crc.getValue()) return;
+        checkpointGeneration = gen;
+        entries = list;
+    }
+
+    void close() throws IOException {
+        flush();
+        if(out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    // [type:1] [owner:4] (stroke: [color:4] [width:4] [flags:4] [count:4] [points:StrokeCodec] ([rate:1]) * count)
+    private static void encode(StrokeLog.Op op, DataOutputStream out) throws IOException {
+        out.writeByte(op.clear ? CLEAR : STROKE_DELTA);
+        out.writeInt(op.owner);
+        if(op.clear) return;
+        out.writeInt(op.color);
+        out.writeFloat(op.width);
+        out.writeInt(op.flags);
+        out.writeInt(op.count);
+        ByteBuffer points = ByteBuffer.allocate(op.count * StrokeCodec.MAX_POINT_SIZE);
+        StrokeCodec.putPoints(points, op.points, op.count, PRECISION);
+        out.write(points.array(), 0, points.position());
+        for(int i = 0; i < op.count; ++i) out.writeByte(Math.round(Math.max(0, Math.min(1, op.rates[i])) * 255));
+    }
+
+    private static StrokeLog.Op decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte type = in.readByte();
+        final int owner = in.readInt();
+        if(type == CLEAR) return new StrokeLog.Op(owner, true, 0, 0, 0);
+        if(type != STROKE_DELTA) return null;
+        StrokeLog.Op op = new StrokeLog.Op(owner, false, in.readInt(), in.readFloat(), in.readInt());
+        final int count = in.readInt();
+        // 1点は少なくとも座標2byteと倍率1byte
+        if(count < 0 || (long)count * 3 > payload.length - 21) return null;
+        ByteBuffer rest = ByteBuffer.wrap(payload, 21, payload.length - 21);
+        float[] xy = new float[count * 2];
+        try {
+            StrokeCodec.getPoints(rest, xy, count, PRECISION);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+        if(rest.remaining() != count) return null;
+        for(int i = 0; i < count; ++i) op.add(xy[i * 2], xy[i * 2 + 1], (rest.get() & 0xFF) / 255.f);
+        return op;
+    }
+}
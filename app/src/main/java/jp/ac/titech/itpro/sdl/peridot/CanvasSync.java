@@ -0,0 +1,129 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import android.view.MotionEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+
+// 途中参加の同期
+// 送信者ごとにseqを振り, どこまで描いたかを送信者ごとの最大seq (clock) で表す
+// 参加した側はsnapshotが届くまで受け取ったメッセージをためておき, snapshotに入っていない分だけ流す
+// snapshotの時点で描いている途中だった線は, 続きの前にDOWNを補って受け手で新しい線として描かせる
+class CanvasSync {
+
+    private final String uuid;
+    private int seq = 0;
+    // 描画に渡した最後のseq (自分の分は送った最後のseq)
+    private final HashMap<String, Integer> clock = new HashMap<>();
+    // snapshotを頼まれた時点のclock
+    private final HashMap<String, HashMap<String, Integer>> requests = new HashMap<>();
+    private final ArrayList<DrawMessage> held = new ArrayList<>();
+    private boolean waiting = false;
+    private String source;  // snapshotを頼んだ相手
+
+    CanvasSync(String uuid) {
+        this.uuid = uuid;
+    }
+
+    synchronized int nextSeq() {
+        return ++seq;
+    }
+
+    // 接続したらsnapshotが届くまで待つ
+    synchronized void begin() {
+        waiting = true;
+        source = null;
+        held.clear();
+        clock.clear();
+        requests.clear();
+    }
+
+    synchronized boolean isWaiting() {
+        return waiting;
+    }
+
+    // 待っている間に最初に見つけた相手だけをsnapshotの送り元にする
+    synchronized boolean chooseSource(String peer) {
+        if(!waiting || source != null) return false;
+        source = peer;
+        return true;
+    }
+
+    // 待っている間はためてtrue. 描画に渡してよければfalse
+    synchronized boolean hold(DrawMessage message) {
+        if(waiting) {
+            held.add(message);
+            return true;
+        }
+        record(message);
+        return false;
+    }
+
+    // fromにsnapshotを頼まれた. ここまでに渡した分がsnapshotに入る
+    synchronized void requested(String from) {
+        HashMap<String, Integer> seqs = new HashMap<>(clock);
+        seqs.put(uuid, seq);
+        requests.put(from, seqs);
+    }
+
+    synchronized Map<String, Integer> takeRequest(String from) {
+        return requests.remove(from);
+    }
+
+    // snapshotが届いた. ためていたうちsnapshotより新しいものを返す
+    synchronized List<DrawMessage> complete(Map<String, Integer> seqs) {
+        ArrayList<DrawMessage> rest = new ArrayList<>();
+        if(seqs != null) clock.putAll(seqs);
+        // 相手と線の番号ごとに, snapshotに入った (捨てた) 最後のメッセージと, 流し始めたかどうか
+        final HashMap<String, DrawMessage> cut = new HashMap<>();
+        final HashSet<String> started = new HashSet<>();
+        for(DrawMessage m : held) {
+            Integer last = seqs != null ? seqs.get(m.uuid) : null;
+            final String key = "draw".equals(m.type) ? m.uuid + "/" + m.stroke : null;
+            // seqのない古いクライアントの分は全部流す
+            if(last == null || m.seq == 0 || m.seq > last) {
+                if(key != null && started.add(key) && m.action != MotionEvent.ACTION_DOWN) {
+                    DrawMessage down = resume(cut.get(key), m);
+                    if(down != null) rest.add(down);
+                }
+                rest.add(m);
+                record(m);
+            } else if(key != null) {
+                if(m.action == MotionEvent.ACTION_UP || m.action == MotionEvent.ACTION_CANCEL) cut.remove(key);
+                else cut.put(key, m);
+            }
+        }
+        held.clear();
+        waiting = false;
+        return rest;
+    }
+
+    // 誰も答えなかったらためていた分をそのまま流す
+    synchronized List<DrawMessage> giveUp() {
+        return complete(null);
+    }
+
+    // 線の途中から流すときに前に置くDOWN. snapshotに入った最後の点 (見ていなければmの最初の点) から始める
+    // ペンの分からないもの (線の始めを見ていないバイナリのMOVE) は補わない
+    private static DrawMessage resume(DrawMessage cut, DrawMessage m) {
+        if(m.width <= 0) return null;
+        final DrawMessage from = cut != null ? cut : m;
+        final int i = cut != null ? cut.getPointCount() - 1 : 0;
+        DrawMessage down = new DrawMessage(m.type, m.uuid, MotionEvent.ACTION_DOWN, m.width, m.color, from.getX(i), from.getY(i));
+        if(m.rates != null) down.rates = new float[] { from.getRate(i) };
+        down.stroke = m.stroke;
+        down.received = m.received;
+        return down;
+    }
+
+    private void record(DrawMessage m) {
+        if(m.seq == 0) return;
+        Integer last = clock.get(m.uuid);
+        if(last == null || m.seq > last) clock.put(m.uuid, m.seq);
+    }
+}
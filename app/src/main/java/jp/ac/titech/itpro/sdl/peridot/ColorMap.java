@@ -0,0 +1,81 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+// カラーピッカーの帯 (横方向に色が変わり, 縦は同じ色) を作る
+// Androidの型を使わないので, ベンチマークなどJVMだけでも使える
+class ColorMap {
+
+    interface Gradient {
+        int colorAt(int x);
+    }
+
+    // 1行目だけ色を決めて, 残りの行はそれを写す
+    static void fill(int[] pixels, int width, int height, Gradient f) {
+        for(int i = 0; i < width; ++i) pixels[i] = f.colorAt(i);
+        replicate(pixels, width, height);
+    }
+
+    // fromからtoへ横に線形に変わる帯 (x列目は from + (to - from) * x / width). 各チャンネルを16.16の固定小数で足していく
+    static void fillLinear(int[] pixels, int width, int height, int from, int to) {
+        int r = (from >> 16 & 0xFF) << 16, g = (from >> 8 & 0xFF) << 16, b = (from & 0xFF) << 16;
+        final int dr = (((to >> 16 & 0xFF) - (from >> 16 & 0xFF)) << 16) / width;
+        final int dg = (((to >> 8 & 0xFF) - (from >> 8 & 0xFF)) << 16) / width;
+        final int db = (((to & 0xFF) - (from & 0xFF)) << 16) / width;
+        // 四捨五入の分
+        r += 0x8000;
+        g += 0x8000;
+        b += 0x8000;
+        for(int i = 0; i < width; ++i) {
+            pixels[i] = 0xFF000000 | (r >> 16) << 16 | (g >> 16) << 8 | (b >> 16);
+            r += dr;
+            g += dg;
+            b += db;
+        }
+        replicate(pixels, width, height);
+    }
+
+    // HSVの各チャンネルは彩度についても明度についても線形なので, 両端の色だけ求めれば帯になる
+    // 色相h, 明度vを固定して彩度を 0 -> 1
+    static void fillSaturation(int[] pixels, int width, int height, float h, float v) {
+        fillLinear(pixels, width, height, hsvToColor(h, 0, v), hsvToColor(h, 1, v));
+    }
+
+    // 色相h, 彩度sを固定して明度を 0 -> 1
+    static void fillValue(int[] pixels, int width, int height, float h, float s) {
+        fillLinear(pixels, width, height, 0xFF000000, hsvToColor(h, s, 1));
+    }
+
+    // 1行目を倍々に写していく
+    private static void replicate(int[] pixels, int width, int height) {
+        final int total = width * height;
+        for(int filled = width; filled < total; filled *= 2) {
+            System.arraycopy(pixels, 0, pixels, filled, Math.min(filled, total - filled));
+        }
+    }
+
+    // Color.HSVToColorと同じ結果 (SkiaのSkHSVToColorと同じ計算) h: [0, 360), s, v: [0, 1]
+    // p, q, tは丸める前の v * 255 から求め, 最後に1回だけ丸める
+    static int hsvToColor(float h, float s, float v) {
+        s = Math.max(0, Math.min(1, s));
+        final float v255 = Math.max(0, Math.min(1, v)) * 255;
+        final int vb = Math.round(v255);
+        // SkScalarNearlyZero (1/4096以下) なら灰色
+        if(s <= 1.f / 4096) return 0xFF000000 | vb << 16 | vb << 8 | vb;
+        final float hx = (h < 0 || h >= 360) ? 0 : h / 60;
+        final float w = (float)Math.floor(hx);
+        final float f = hx - w;
+        final int p = Math.round((1 - s) * v255);
+        final int q = Math.round((1 - s * f) * v255);
+        final int t = Math.round((1 - s * (1 - f)) * v255);
+        int r, g, b;
+        switch((int)w) {
+            case 0: r = vb; g = t; b = p; break;
+            case 1: r = q; g = vb; b = p; break;
+            case 2: r = p; g = vb; b = t; break;
+            case 3: r = p; g = q; b = vb; break;
+            case 4: r = t; g = p; b = vb; break;
+            default: r = vb; g = p; b = q; break;
+        }
+        return 0xFF000000 | r << 16 | g << 8 | b;
+    }
+}
@@ -15,7 +15,6 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.PopupWindow;
 
-import com.annimon.stream.function.Function;
 import com.jakewharton.rxbinding2.view.RxView;
 
 import java.util.concurrent.TimeUnit;
@@ -24,7 +23,6 @@ import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.subjects.PublishSubject;
 
-import static android.graphics.Color.HSVToColor;
 import static android.graphics.Color.RGBToHSV;
 
 
@@ -56,6 +54,8 @@ public class ColorPicker {
     private final int width = 720;
     private final int height = 92;
     private final int markerHeight = 24;
+    // 帯を作り直すときに使い回す
+    private final int[] pixels = new int[width * height];
 
 
     ColorPicker(Activity parent, DrawView view, Button colorButton) {
@@ -71,6 +71,10 @@ public class ColorPicker {
         msc = new Canvas(msatBitmap);
         mvc = new Canvas(mvalBitmap);
 
+        // 彩度と明度の帯は色を選ぶたびに同じBitmapに描き直す
+        satBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        valBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+
         marker.setColor(Color.GRAY);
         marker.setStrokeWidth(4.f);
 
@@ -113,28 +117,21 @@ public class ColorPicker {
         setColor(view.getLocalPen().getColor());
     }
 
-    private Bitmap _updateBitmap(Function<Integer, Integer> f) {
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-        // bitmap.setPixel(x, y, color)を何回もやると遅いので、配列に入れてまとめてセットする
-        int pixels[] = new int[width * height];
-        for(int i = 0; i < width; ++i) {
-            int color = f.apply(i);
-            for(int j = 0; j < height; ++j) pixels[i + j * width] = color;
-        }
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-        return bitmap;
-    }
-
     private void updateHue() {
-        hueBitmap = _updateBitmap(x -> HSVToColor(new float[] { x * 360.f / width, 1, 1 }));
+        hueBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        ColorMap.fill(pixels, width, height, x -> ColorMap.hsvToColor(x * 360.f / width, 1, 1));
+        hueBitmap.setPixels(pixels, 0, width, 0, 0, width, height);
     }
 
+    // 彩度と明度の帯は両端の色の間を線形に埋めるだけ (1列ごとにHSVから変換しない)
     private void updateSaturation() {
-        satBitmap = _updateBitmap(x -> HSVToColor(new float[] { hsv[0], x * 1.0f / width, hsv[2] }));
+        ColorMap.fillSaturation(pixels, width, height, hsv[0], hsv[2]);
+        satBitmap.setPixels(pixels, 0, width, 0, 0, width, height);
     }
 
     private void updateValue() {
-        valBitmap = _updateBitmap(i -> HSVToColor(new float[] { hsv[0], hsv[1], i * 1.0f / width }));
+        ColorMap.fillValue(pixels, width, height, hsv[0], hsv[1]);
+        valBitmap.setPixels(pixels, 0, width, 0, 0, width, height);
     }
 
     private void updateMarker(Canvas c, float x) {
@@ -167,7 +164,7 @@ public class ColorPicker {
     private Observable<Float> _observeImageView(ImageView iv) {
         return RxView
             .touches(iv)
-            .throttleLast(2, TimeUnit.MILLISECONDS)
+            .throttleLast(16, TimeUnit.MILLISECONDS)     // 1フレームに1回まで
             .map(ev -> ev.getX())
             .map(x -> x < 0 ? 0 : x > width ? width : x)    // はみ出していても座標として入ってくるので
             .observeOn(AndroidSchedulers.mainThread());     // 描画はメインスレッドで
@@ -198,9 +195,10 @@ public class ColorPicker {
         _observeImageView(sv).subscribe(s -> satChange.onNext(Pair.create(s  * 1.0f / width, true)));
         _observeImageView(vv).subscribe(v -> valChange.onNext(Pair.create(v * 1.0f / width, true)));
 
+        // Bitmapは同じものを書き換えているので描き直してもらうだけ
         bitmapChange.filter(v -> pw.isShowing()).subscribe(v -> {
-            sv.setImageBitmap(satBitmap);
-            vv.setImageBitmap(valBitmap);
+            sv.invalidate();
+            vv.invalidate();
         });
 
         // ポップアップウィンドウを作成して表示
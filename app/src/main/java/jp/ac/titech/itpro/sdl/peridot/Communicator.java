@@ -2,62 +2,182 @@ package jp.ac.titech.itpro.sdl.peridot;
 
 
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.MotionEvent;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.PublishSubject;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
+import okio.ByteString;
 
 import static jp.ac.titech.itpro.sdl.peridot.Communicator.State.CONNECTED;
 import static jp.ac.titech.itpro.sdl.peridot.Communicator.State.CONNECTING;
 import static jp.ac.titech.itpro.sdl.peridot.Communicator.State.DISCONNECTED;
+import static jp.ac.titech.itpro.sdl.peridot.Communicator.State.RECONNECTING;
 
 
 public class Communicator extends WebSocketListener {
 
     private static final String TAG = "Communicator";
+    // 接続プールとスレッドは全接続で共有する. 死んだ接続はpingで見つける
+    private static final OkHttpClient client = new OkHttpClient.Builder()
+        .readTimeout(0,  TimeUnit.MILLISECONDS)
+        .pingInterval(20, TimeUnit.SECONDS)
+        .build();
     private final String host;
     private final int port;
-    private WebSocket ws;
+    private volatile WebSocket ws;
     private PublishSubject<DrawMessage> messageSubject;
     private Gson gson = new Gson();
     private String uuid = UUID.randomUUID().toString();
+    // バイナリフレームではuuidの代わりにセッション内の小さい整数で送信者を表す (varintで3byte以内)
+    // 乱数なので後から来た相手と重なったら振り直す
+    private volatile int peer = newPeerId(0);
+
+    // helloを送ってきた相手 (バイナリ対応)
+    private final SparseArray<String> binaryPeers = new SparseArray<>();
+    private final HashSet<String> knownUuids = new HashSet<>();
+    // JSONしか話せない相手がいたらバイナリは使わない
+    private volatile boolean legacyPeer = false;
+    private volatile boolean binaryEnabled = false;
+    // サーバが知らせてくる部屋の人数 (自分を含む). 0なら分からないのでJSONで送る
+    // まだ何も送ってこない古いクライアントはhelloの数からは分からないので, 人数と合うまでバイナリにしない
+    private int roomMembers = 0;
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+    private final DrawMessage received = new DrawMessage(null, null);
+    // バイナリのMOVEにはペンが付いていないので, 相手と線ごとに最後のDOWNのペンを覚えておく
+    // キーは peer * MAX_STROKES + stroke, 値は [幅 (floatのビット), 色]. binaryPeersと同じく接続し直したら忘れる
+    private final SparseArray<int[]> pens = new SparseArray<>();
+    private volatile int precision = MessageCodec.PRECISION;
+
+    // 途中参加したときに今のキャンバスをもらう
+    private final CanvasSync sync = new CanvasSync(uuid);
+    private final SyncSession session = new SyncSession(sync, Schedulers.single());
+    private static final long HELLO_TIMEOUT_MS = 2000;     // 誰もいなければ待たない
+    private static final long SYNC_TIMEOUT_MS = 10000;
+    // connectしてから一度でもつながったか. つなぎ直したときは手元の線と履歴をそのまま使い, snapshotはもらわない
+    private volatile boolean joined = false;
+
+    // 送信するMOVE点を線 (指) ごとにまとめる. 使うときに作る
+    public static final int MAX_STROKES = 10;
+    private final StrokeBatcher.Sender batchSender = new StrokeBatcher.Sender() {
+        @Override public boolean send(DrawMessage message) {
+            return sendMessage(message);
+        }
+        @Override public long queueSize() {
+            // 切れている間はoutboxにためるので詰まってはいない
+            return state == CONNECTED ? ws.queueSize() : 0;
+        }
+    };
+    private final StrokeBatcher[] batchers = new StrokeBatcher[MAX_STROKES];
+    private long batchWindow = 16;     // batchersで守る
+    private float simplifyTolerance = 0;    // batchersで守る
 
     private static final int NORMAL_CLOSURE_STATUS = 1000;
 
     enum State {
         CONNECTING,
         CONNECTED,
+        RECONNECTING,   // 切れたので待ってからつなぎ直す
         DISCONNECTED,
     }
-    private State state = DISCONNECTED;
+    private volatile State state = DISCONNECTED;
+    private final BehaviorSubject<State> stateSubject = BehaviorSubject.createDefault(DISCONNECTED);
 
-    class DrawMessage {
-        public String type;
+    // 切れている間に描いた分. つながったら順番に送る
+    private static final int OUTBOX_POINTS = 20000;
+    private final Outbox outbox = new Outbox(OUTBOX_POINTS);
+    private final Backoff backoff = new Backoff(500, 30000, new Random());
+    private Disposable reconnectTimer;
+
+    // バイナリ対応の通知. 古いクライアントには未知のtypeとして無視される
+    static class HelloMessage {
+        public final String type = "hello";
         public String uuid;
-        public int action;
-        public float width;
-        public int color;
-        public float x;
-        public float y;
-        public DrawMessage(String type, String uuid, int action, float width, int color, float x, float y) {
-            this(type, uuid);
-            this.action = action;
-            this.width = width;
-            this.color = color;
+        public int peer;
+        public int codec;
+        public HelloMessage(String uuid, int peer, int codec) {
+            this.uuid = uuid;
+            this.peer = peer;
+            this.codec = codec;
+        }
+    }
+
+    // 振り分けに使う一番外側の文字列だけ. ほかの値は組み立てずに読み飛ばす
+    private static class Header {
+        String type, uuid, to;
+
+        void read(String text) throws IOException {
+            JsonReader reader = new JsonReader(new StringReader(text));
+            reader.beginObject();
+            // Gsonはサブクラスのフィールドを先に書くので, syncではtilesの後にtypeが来る
+            while(reader.hasNext() && (type == null || uuid == null || to == null)) {
+                final String name = reader.nextName();
+                if(reader.peek() != JsonToken.STRING) {
+                    reader.skipValue();
+                } else if("type".equals(name)) {
+                    type = reader.nextString();
+                } else if("uuid".equals(name)) {
+                    uuid = reader.nextString();
+                } else if("to".equals(name)) {
+                    to = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        }
+    }
+
+    // 部屋の人数が変わったときにサーバから届く. leftは出ていった相手 (分からなければnull)
+    static class RoomMessage {
+        public String type;
+        public int members;
+        public String left;
+    }
+
+    // 途中参加の同期. sync_requestは相手1人 (to) にだけsnapshotを頼む
+    // syncは描いたタイルのPNGと, snapshotに入っている送信者ごとの最後のseq
+    // 大きいときは何通かに分けて送る. remainingはこの後に続く数で, seqsは最後の1通にだけ付く
+    static class SyncMessage extends DrawMessage {
+        public String to;
+        public Map<String, Integer> seqs;
+        public List<SyncTile> tiles;
+        public int remaining;
+        public SyncMessage(String type, String uuid, String to) {
+            super(type, uuid);
+            this.to = to;
+        }
+    }
+
+    static class SyncTile {
+        public int x;
+        public int y;
+        public String png;  // base64
+        public SyncTile(int x, int y, String png) {
             this.x = x;
             this.y = y;
-        }
-        public DrawMessage(String type, String uuid) {
-            this.type = type;
-            this.uuid = uuid;
+            this.png = png;
         }
     }
 
@@ -66,72 +186,371 @@ public class Communicator extends WebSocketListener {
         this.port = port;
     }
 
+    // 切れても自動でつなぎ直す. 返すストリームはdisconnectするまで続く
     public PublishSubject<DrawMessage> connect() {
         Log.d(TAG, "connect");
-        state = CONNECTING;
+        messageSubject = PublishSubject.create();
+        session.attach(messageSubject::onNext);
+        joined = false;
+        backoff.reset();
+        open(CONNECTING);
+        return messageSubject;
+    }
 
-        OkHttpClient client = new OkHttpClient.Builder()
-            .readTimeout(0,  TimeUnit.MILLISECONDS)
-            .build();
+    private synchronized void open(State next) {
+        if(messageSubject == null) return;  // その間にdisconnectされた
+        setState(next);
+
+        binaryPeers.clear();
+        pens.clear();
+        knownUuids.clear();
+        legacyPeer = false;
+        binaryEnabled = false;
+        roomMembers = 0;
 
         Request request = new Request.Builder()
             .url("ws://" + host + ":" + port)
             .build();
-
         ws = client.newWebSocket(request, this);
-
-        // Trigger shutdown of the dispatcher's executor so this process can exit cleanly.
-        client.dispatcher().executorService().shutdown();
-
-        messageSubject = PublishSubject.create();
-        return messageSubject;
     }
 
-    public void disconnect() {
+    public synchronized void disconnect() {
         Log.d(TAG, "disconnect");
+        // これより後に受け取ったものは流さない
+        session.attach(null);
         if(messageSubject != null) {
             messageSubject.onComplete();
             messageSubject = null;
         }
-        ws.close(NORMAL_CLOSURE_STATUS, null);
-        state = DISCONNECTED;
+        synchronized (batchers) {
+            for(StrokeBatcher b : batchers) if(b != null) b.reset();
+        }
+        outbox.clear();
+        cancelReconnect();
+        if(ws != null) ws.close(NORMAL_CLOSURE_STATUS, null);
+        setState(DISCONNECTED);
     }
 
     public State getState() {
         return state;
     }
 
+    // 接続状態の変化. 購読したときに今の状態が1回流れる
+    public Observable<State> states() {
+        return stateSubject.distinctUntilChanged();
+    }
+
+    private void setState(State next) {
+        state = next;
+        stateSubject.onNext(next);
+    }
+
+    // 切れた. messageSubjectがあるうち (disconnectされるまで) は待ってからつなぎ直す
+    private synchronized void scheduleReconnect(WebSocket webSocket) {
+        if(webSocket != ws || messageSubject == null || reconnectTimer != null) return;
+        session.cancel();
+        final long delay = backoff.next();
+        Log.d(TAG, "reconnect in " + delay + "ms (" + backoff.getAttempts() + ")");
+        setState(RECONNECTING);
+        reconnectTimer = Schedulers.single().scheduleDirect(() -> {
+            synchronized (this) {
+                reconnectTimer = null;
+                open(RECONNECTING);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelReconnect() {
+        if(reconnectTimer != null) {
+            reconnectTimer.dispose();
+            reconnectTimer = null;
+        }
+    }
+
     private boolean sendMessage(DrawMessage message) {
-        if(state != CONNECTED) return false;
-        ws.send(gson.toJson(message));
+        synchronized (outbox) {
+            if(state == DISCONNECTED) return false;
+            // あふれてDOWNを捨てた線の続きは, 再接続した後でも送らない
+            if(outbox.skip(message)) return true;
+            if(state != CONNECTED || !transmit(message)) {
+                outbox.add(message);
+                if(Metrics.enabled) Metrics.OUTBOX.set(outbox.size());
+            }
+            return true;
+        }
+    }
+
+    // 送信キューに載らなかったらfalse (ソケットが閉じている)
+    private boolean transmit(DrawMessage message) {
+        message.seq = sync.nextSeq();
+        if(Metrics.enabled) Metrics.MESSAGES_OUT.increment();
+        // 全員がバイナリを話せるときだけByteStringで送る
+        if(binaryEnabled && !legacyPeer) {
+            synchronized (sendBuffer) {
+                sendBuffer.clear();
+                if(MessageCodec.encode(message, peer, sendBuffer, precision)) {
+                    return ws.send(ByteString.of(sendBuffer.array(), 0, sendBuffer.position()));
+                }
+            }
+        }
+        return ws.send(gson.toJson(message));
+    }
+
+    private void sendHello() {
+        ws.send(gson.toJson(new HelloMessage(uuid, peer, MessageCodec.VERSION)));
+    }
+
+    // xy: [x0, y0, x1, y1, ...] のうち先頭n点
+    // rates: 点ごとの幅の倍率. nullなら送らない
+    // stroke: 線の番号 (0 - MAX_STROKES-1). 同時に描いている線は別の番号で送る
+    public boolean sendDrawPoints(int stroke, int action, float width, int color, float[] xy, float[] rates, int n) {
+        if(state == DISCONNECTED) return false;
+        batcher(stroke).add(action, width, color, xy, rates, n);
         return true;
     }
 
-    public boolean sendDrawMessage(int action, float width, int color, float x, float y) {
-        return sendMessage(new DrawMessage("draw", uuid, action, width, color, x, y));
+    private StrokeBatcher batcher(int stroke) {
+        synchronized (batchers) {
+            StrokeBatcher b = batchers[stroke];
+            if(b == null) {
+                b = new StrokeBatcher(batchSender, Schedulers.single(), uuid, stroke);
+                b.setWindow(batchWindow);
+                b.setTolerance(simplifyTolerance);
+                batchers[stroke] = b;
+            }
+            return b;
+        }
+    }
+
+    // MOVE点をまとめる時間 (ms). 0ならまとめない
+    public void setBatchWindow(long millis) {
+        synchronized (batchers) {
+            batchWindow = millis;
+            for(StrokeBatcher b : batchers) if(b != null) b.setWindow(millis);
+        }
+    }
+
+    // バイナリで送る座標の精度 (1/2^bits px, 0 - MessageCodec.MAX_PRECISION)
+    public void setPrecision(int bits) {
+        if(bits < 0 || bits > MessageCodec.MAX_PRECISION) throw new IllegalArgumentException("precision: " + bits);
+        precision = bits;
+    }
+
+    // 送る前にほぼ直線上の点を間引くときの許容誤差 (px). 0なら間引かない
+    public void setSimplifyTolerance(float px) {
+        synchronized (batchers) {
+            simplifyTolerance = px;
+            for(StrokeBatcher b : batchers) if(b != null) b.setTolerance(px);
+        }
     }
 
     public boolean sendClearMessage() {
         return sendMessage(new DrawMessage("clear", uuid));
     }
 
+    public boolean sendUndoMessage() {
+        return sendMessage(new DrawMessage("undo", uuid));
+    }
+
+    public boolean sendRedoMessage() {
+        return sendMessage(new DrawMessage("redo", uuid));
+    }
+
+    // fromに頼まれたsnapshotを送る. tilesは頼まれた時点までを描いたもの
+    // 1フレームに収まるように分け, 送信キューがあふれないように少しずつ送る
+    public void sendSync(String to, List<SyncTile> tiles) {
+        Map<String, Integer> seqs = sync.takeRequest(to);
+        if(state != CONNECTED || seqs == null) return;
+        SyncSession.send(ws, gson, SyncSession.split(uuid, to, seqs, tiles, SyncSession.PART_CHARS),
+            SyncSession.QUEUE_LIMIT, Schedulers.io());
+    }
+
     @Override public void onOpen(WebSocket webSocket, Response response) {
-        state = CONNECTED;
+        if(webSocket != ws) return;
+        backoff.reset();
+        // 途中参加のときだけ (snapshotを読み込むと手元のundo/redoの履歴が消える)
+        // snapshotを待っている間に切れたときは初めからやり直す
+        if(!joined || sync.isWaiting()) {
+            joined = true;
+            session.begin(HELLO_TIMEOUT_MS);
+        }
+        sendHello();
+        // 切れている間にたまった分を先に送る (snapshotを頼む相手にもそれが入るように)
+        synchronized (outbox) {
+            for(DrawMessage m : outbox.drain()) transmit(m);
+            if(Metrics.enabled) Metrics.OUTBOX.set(0);
+            setState(CONNECTED);
+        }
     }
 
     @Override public void onMessage(WebSocket webSocket, String text) {
-        Log.d(TAG, "MESSAGE: " + text);
+        // 古いソケットに残っていた分は, 作り直した相手の表に入れない
+        if(webSocket != ws) return;
+        final long now = Metrics.enabled ? System.nanoTime() : 0;
+        // 先に宛先などだけを読んで, 中身を組み立てるのは要るものだけにする
+        final Header header = new Header();
+        try {
+            header.read(text);
+        } catch (IOException | IllegalStateException e) {
+            Log.d(TAG, "broken message: " + e);
+            return;
+        }
+        final boolean sync = "sync".equals(header.type) || "sync_request".equals(header.type);
+        // syncはタイルのPNGを1通に1MiB近く入れてくるので中身は出さない
+        if(sync) {
+            Log.d(TAG, "MESSAGE: " + header.type + " (" + text.length() + " chars)");
+        } else {
+            Log.d(TAG, "MESSAGE: " + text);
+        }
+        if("room".equals(header.type)) {
+            RoomMessage room = gson.fromJson(text, RoomMessage.class);
+            onRoom(room);
+            // 描画側にも線と同じ順番で知らせて, 出ていった相手の状態を捨てさせる
+            if(room.left != null) session.deliver(new DrawMessage("left", room.left));
+            return;
+        }
+        if(header.uuid == null || header.uuid.equals(uuid)) return;
+        if("hello".equals(header.type)) {
+            onHello(gson.fromJson(text, HelloMessage.class));
+            return;
+        }
+        // 他人宛てのsyncはタイルを読まずに捨てる
+        if(sync) {
+            if(uuid.equals(header.to)) onSync(gson.fromJson(text, SyncMessage.class));
+            return;
+        }
         DrawMessage message = gson.fromJson(text, DrawMessage.class);
-        messageSubject.onNext(message);
+        message.received = now;
+        // helloを送ってこない相手は古いクライアント
+        synchronized (this) {
+            if(!knownUuids.contains(message.uuid)) {
+                legacyPeer = true;
+                binaryEnabled = false;
+            }
+        }
+        deliver(message);
+    }
+
+    @Override public void onMessage(WebSocket webSocket, ByteString bytes) {
+        if(webSocket != ws) return;
+        final long now = Metrics.enabled ? System.nanoTime() : 0;
+        if(!MessageCodec.decode(bytes.asByteBuffer(), received)) {
+            Log.d(TAG, "unknown binary message: " + bytes.size() + " bytes");
+            return;
+        }
+        // binaryPeersとpensはつなぎ直すときに別のスレッド (open) で空にするのでロックの中で見る
+        final String from;
+        synchronized (this) {
+            from = binaryPeers.get(received.peer);
+            if(from != null && "draw".equals(received.type)) restorePen(received);
+        }
+        if(from == null) return;    // helloより先に届いたものは誰のものか分からない
+        DrawMessage message = new DrawMessage(received.type, from, received.action, received.width, received.color, received.x, received.y);
+        message.points = received.points;
+        message.rates = received.rates;
+        message.seq = received.seq;
+        message.stroke = received.stroke;
+        message.received = now;
+        deliver(message);
+    }
+
+    // DOWNなどのペンを覚えておき, ペンの付いていないMOVEに補う
+    // 線の始めを見ていないMOVEは幅0のまま (受け手は始まっていない線として捨てる)
+    private void restorePen(DrawMessage m) {
+        if(m.stroke < 0 || m.stroke >= MAX_STROKES) return;
+        final int key = m.peer * MAX_STROKES + m.stroke;
+        int[] pen = pens.get(key);
+        if(m.action != MotionEvent.ACTION_MOVE) {
+            if(pen == null) {
+                pen = new int[2];
+                pens.put(key, pen);
+            }
+            pen[0] = Float.floatToIntBits(m.width);
+            pen[1] = m.color;
+        } else if(pen != null) {
+            m.width = Float.intBitsToFloat(pen[0]);
+            m.color = pen[1];
+        }
+    }
+
+    // snapshotを待っている間はためておく. 流すのはsessionのロックの中 (タイムアウトで流す分と混ざらない)
+    private void deliver(DrawMessage message) {
+        if(Metrics.enabled) Metrics.MESSAGES_IN.increment();
+        session.deliver(message);
+    }
+
+    private void onSync(SyncMessage message) {
+        if("sync_request".equals(message.type)) {
+            session.requested(message);
+        } else {
+            session.received(message, SYNC_TIMEOUT_MS);
+        }
+    }
+
+    private synchronized void onRoom(RoomMessage room) {
+        if(room.left != null) {
+            knownUuids.remove(room.left);
+            for(int i = binaryPeers.size() - 1; i >= 0; --i) {
+                if(room.left.equals(binaryPeers.valueAt(i))) binaryPeers.removeAt(i);
+            }
+        }
+        roomMembers = room.members;
+        updateBinary();
+    }
+
+    // 部屋の自分以外の全員からバージョンの合うhelloが届いていればバイナリで送る
+    private synchronized void updateBinary() {
+        binaryEnabled = !legacyPeer && roomMembers > 0 && knownUuids.size() >= roomMembers - 1;
+    }
+
+    private static int newPeerId(int old) {
+        final Random random = new Random();
+        int id;
+        do {
+            id = 1 + random.nextInt((1 << 21) - 1);
+        } while(id == old);
+        return id;
+    }
+
+    private synchronized void onHello(HelloMessage hello) {
+        if(hello.codec != MessageCodec.VERSION) {
+            legacyPeer = true;
+            binaryEnabled = false;
+            return;
+        }
+        boolean isNew = knownUuids.add(hello.uuid);
+        // 番号が重なったら先に使っていた側が譲る. 後から来た相手のhelloは全員に届くので,
+        // 先にいた本人も振り直してhelloを送り直し, ほかの人はそれまでの間だけ新しい相手のものとして読む
+        if(hello.peer == peer) {
+            peer = newPeerId(peer);
+            Log.d(TAG, "peer id taken by " + hello.uuid + ", now " + peer);
+            isNew = true;
+        }
+        final String owner = binaryPeers.get(hello.peer);
+        if(owner != null && !owner.equals(hello.uuid)) Log.d(TAG, "peer id " + hello.peer + " moved from " + owner);
+        // 振り直した相手の前の番号は忘れる
+        for(int i = binaryPeers.size() - 1; i >= 0; --i) {
+            if(hello.uuid.equals(binaryPeers.valueAt(i))) binaryPeers.removeAt(i);
+        }
+        binaryPeers.put(hello.peer, hello.uuid);
+        updateBinary();
+        // 後から来た相手にもこちらを知らせる (既知の相手には返さないので往復は1回で止まる)
+        if(isNew) sendHello();
+        // 参加したばかりなら最初に返事をくれた相手にだけsnapshotを頼む
+        if(session.choose(hello.uuid, SYNC_TIMEOUT_MS)) {
+            ws.send(gson.toJson(new SyncMessage("sync_request", uuid, hello.uuid)));
+        }
     }
 
     @Override public void onClosing(WebSocket webSocket, int code, String reason) {
-        disconnect();
         Log.d(TAG, "CLOSE: " + code + " " + reason);
+        webSocket.close(NORMAL_CLOSURE_STATUS, null);
+        scheduleReconnect(webSocket);
     }
 
     @Override public void onFailure(WebSocket webSocket, Throwable t, Response response) {
-        t.printStackTrace();
+        Log.d(TAG, "FAILURE: " + t);
+        scheduleReconnect(webSocket);
     }
 
 }
@@ -0,0 +1,74 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+// 描画メッセージ. JSON (Gson) とバイナリ (MessageCodec) の両方で送る
+// Androidの型を使わないので, ベンチマークなどJVMだけでも使える
+class DrawMessage {
+    public String type;
+    public String uuid;
+    public int action;
+    public float width;
+    public int color;
+    public float x;
+    public float y;
+    // まとめて送るときの座標列 [x0, y0, x1, y1, ...]. x, yには最後の点を入れておく (古いクライアント向け)
+    public float[] points;
+    // 点ごとの幅の倍率 (速さで幅を変える線のときだけ). pointsと同じ順番
+    public float[] rates;
+    // 送信者ごとの通し番号 (途中参加の同期用). 古いクライアントは0
+    public int seq;
+    // 送信者の中での線の番号 (マルチタッチで指ごとに別の線). 古いクライアントは0
+    public int stroke;
+    // バイナリフレームの送信者番号 (JSONには出さない)
+    public transient int peer;
+    // バイナリフレームの座標の精度 (MessageCodec). サーバがまとめて作り直すときに同じ精度で書く
+    public transient int precision = MessageCodec.PRECISION;
+    // 受け取った時刻 (System.nanoTime). 計測しているときだけ
+    public transient long received;
+    public DrawMessage(String type, String uuid, int action, float width, int color, float x, float y) {
+        this(type, uuid);
+        this.action = action;
+        this.width = width;
+        this.color = color;
+        this.x = x;
+        this.y = y;
+    }
+    public DrawMessage(String type, String uuid) {
+        this.type = type;
+        this.uuid = uuid;
+    }
+    public int getPointCount() {
+        return points == null ? 1 : points.length / 2;
+    }
+    public float getX(int i) {
+        return points == null ? x : points[i * 2];
+    }
+    public float getY(int i) {
+        return points == null ? y : points[i * 2 + 1];
+    }
+    public float getRate(int i) {
+        return rates == null ? 1.0f : rates[i];
+    }
+    // 同じ線の続きのMOVE (nextの点) を後ろにつなげる
+    void append(DrawMessage next) {
+        final int n = getPointCount(), m = next.getPointCount();
+        float[] xy = new float[(n + m) * 2];
+        for(int i = 0; i < n; ++i) {
+            xy[i * 2] = getX(i);
+            xy[i * 2 + 1] = getY(i);
+        }
+        for(int i = 0; i < m; ++i) {
+            xy[(n + i) * 2] = next.getX(i);
+            xy[(n + i) * 2 + 1] = next.getY(i);
+        }
+        if(rates != null || next.rates != null) {
+            float[] r = new float[n + m];
+            for(int i = 0; i < n; ++i) r[i] = getRate(i);
+            for(int i = 0; i < m; ++i) r[n + i] = next.getRate(i);
+            rates = r;
+        }
+        points = xy;
+        x = next.x;
+        y = next.y;
+    }
+}
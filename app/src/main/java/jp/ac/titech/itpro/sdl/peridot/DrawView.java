@@ -1,51 +1,179 @@
 package jp.ac.titech.itpro.sdl.peridot;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
+import android.util.Base64;
 import android.util.Log;
-import android.util.Pair;
 import android.view.MotionEvent;
 import android.view.View;
 
-import com.annimon.stream.IntStream;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
 import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.PublishSubject;
 
 
 // custom view
-public class DrawView extends View {
+public class DrawView extends View implements Renderer {
 
     private static final String TAG = "DrawView";
 
     private Communicator comm;
-    private HashMap<String, PublishSubject<Pair<Float, Float>>> linesMap = new HashMap<>();
+    private static final int LOCAL_SLOT = 0;
+    private static final int LOCAL_OWNER = 0;
+    // ローカルの指ごとの線. 描画スロットは LOCAL_SLOT + 番号
+    private final Finger[] fingers = new Finger[Communicator.MAX_STROKES];
+    // リモートの相手ごとの描画スロットと履歴のowner番号 (ローカルは0). undo/redoはownerごと
+    private final PeerRegistry peers = new PeerRegistry(LOCAL_SLOT + fingers.length);
+    // ACTION_UPが届かなかった線はこれだけ点が来なければ終わらせる
+    private static final long ORPHAN_TIMEOUT = 10000;  // ms
+    private final Runnable orphanSweep = this::sweepOrphans;
+    private boolean sweepScheduled = false;
+
+    // 線の補間とタイルへの描き込みは描画スレッドで行い, UIスレッドは点をキューに積むだけ
+    private final RenderQueue queue = new RenderQueue();
+    private Thread renderThread;
+
+    // ここから描画スレッドだけが触る
+    // 描いた分だけタイルで持つキャンバス (ビューの大きさとは独立)
+    private final TileStore tiles = new TileStore(Color.WHITE);
+    // 保存は描画スレッドで取ったsnapshotから別スレッドで行う
+    private final ImageExporter exporter = new ImageExporter(tiles);
+    // STAMPで押すスタンプ. 大きさの段階ごとに1回だけ作る
+    private final StampCache stamps = new StampCache();
+    private StrokeEngine[] engines = new StrokeEngine[8];
+    private Pen[] pens = new Pen[8];
+    private StrokeLog.Op[] slotOps = new StrokeLog.Op[8];
+    // 線単位の操作履歴. undo/redoはチェックポイント (タイルのsnapshot) から描き直す
+    private final StrokeEngine replayEngine = new StrokeEngine();
+    private final Pen replayPen = new Pen(this);
+    private final StrokeLog<TileStore.Snapshot> history = new StrokeLog<>(new StrokeLog.Target<TileStore.Snapshot>() {
+        @Override public TileStore.Snapshot snapshot() {
+            return tiles.snapshot();
+        }
+        @Override public void restore(TileStore.Snapshot snapshot) {
+            tiles.restore(snapshot);
+        }
+        @Override public void replay(StrokeLog.Op op) {
+            if(op.clear) {
+                tiles.clear();
+                return;
+            }
+            Pen.replay(op, replayPen, replayEngine);
+        }
+    });
+    // 途中参加の同期で描画スレッドとやり取りするもの
+    private final ConcurrentLinkedQueue<SingleEmitter<TileStore.Snapshot>> snapshotRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<List<Communicator.SyncTile>> loads = new ConcurrentLinkedQueue<>();
+    // 確定した線をファイルに追記し, ときどきタイルのチェックポイントにまとめる (restoreを呼んだときだけ)
+    // ファイルの読み書きは専用のスレッドで行い, 描画スレッドはfsyncを待たない
+    // スレッドはattachしている間だけ動かし, detachでjournalを書き切って閉じてから止める
+    private ExecutorService persistExecutor;
+    private Scheduler persistWorker;
+    private Disposable pendingFlush;        // persistWorker
+    // 最後に止めた書き込みのスレッド. 画面を回すと新しいDrawViewが同じディレクトリを開くので, 閉じ終わるまで読み書きを始めない
+    private static ExecutorService closingPersist;
+    private static final long CLOSE_TIMEOUT = 10;  // s
+    private volatile File journalDir;
+    private CanvasJournal journal;          // 描画スレッドで読み込んだ後はpersistWorkerだけが触る. 閉じてもattachし直せばまた書ける
+    private TileStore.Snapshot persisted;   // 最後にチェックポイントにしたもの (persistWorker)
+    private int journaled = 0;              // 前のチェックポイントから追記した数
+    private boolean checkpointWanted = false;
+    private static final int CHECKPOINT_INTERVAL = 64;
+    // 誰かがずっと描いていてもこれだけたまったら途中の線を除いてチェックポイントにする
+    private static final int MAX_JOURNALED = CHECKPOINT_INTERVAL * 4;
+    private static final long FLUSH_DELAY = 200;   // ms. この間に確定した線はまとめて1回で書く
+    private static final String RESTORED = "restored";  // 読み込んだリモートの線のowner
+    // 計測用. まだ画面に反映していない一番古い入力 (ローカル/リモート) の時刻 (System.nanoTime, なければ0)
+    private final AtomicLong inputStart = new AtomicLong();
+    private final AtomicLong remoteStart = new AtomicLong();
+    // 今回の描き込みで書き換えた範囲. キューにたまっていた分をまとめて1回で反映する
+    private final Rect dirty = new Rect();
+    private final RectF pathBounds = new RectF();
+    // Penの色をAndroidのPaintにして描く (描画スレッド)
+    private final Paint stampPaint = new Paint();
+    private final Paint strokePaint = new Paint();
+    private final Path path = new Path();
+
+    // 描画スレッドが書き換えた範囲だけ写し, UIスレッドが表示する面 (frontLockで守る)
+    private final Object frontLock = new Object();
+    private Bitmap front;
+    private Canvas frontCanvas;
+    private final Rect viewRect = new Rect();
+    private final Rect clip = new Rect();
 
-    private Canvas canvas;
-    private Bitmap bitmap;
-    private Rect bitmapRect;
     private Pen localPen = new Pen(this,Color.RED, 16.0f);
-    private PublishSubject<Pair<Float, Float>> localLines;
+    private StrokeEngine.Mode renderMode = StrokeEngine.Mode.STAMP;   // setRenderModeでPATHにできる
     private PublishSubject<Integer> spuitColor = PublishSubject.create();
 
-    private final int target[] = {
-        MotionEvent.ACTION_DOWN,
-        MotionEvent.ACTION_MOVE,
-        MotionEvent.ACTION_UP,
-        MotionEvent.ACTION_CANCEL
-    };
+    // 速く引くほど細くする (STAMPのときだけ)
+    private boolean dynamic = false;
+
+    // 画面に触れている指1本分の線. 指を離したら次の指に使い回すので, 描いている間はオブジェクトを作らない
+    // 番号 (fingersの位置) を描画スロットと送信する線の番号に使う
+    private static class Finger {
+        static final int NO_POINTER = -1;
+        final int stroke;
+        int pointerId = NO_POINTER;
+        // 1回のMotionEventに詰まっているこの指の入力点 (履歴 + 現在) [x0, y0, x1, y1, ...]
+        float[] samples = new float[64];
+        long[] times = new long[32];
+        float[] rates = new float[32];
+        int count = 0;
+        final BrushDynamics dynamics = new BrushDynamics();
+
+        Finger(int stroke) {
+            this.stroke = stroke;
+        }
+
+        // MOVEには前回からの入力点が履歴として詰まっているので全部取り出す
+        void collect(MotionEvent ev, int index) {
+            final int history = ev.getHistorySize();
+            if(history + 1 > times.length) {
+                times = new long[(history + 1) * 2];
+                samples = new float[times.length * 2];
+                rates = new float[times.length];
+            }
+            for(int h = 0; h < history; ++h) {
+                samples[h * 2] = ev.getHistoricalX(index, h);
+                samples[h * 2 + 1] = ev.getHistoricalY(index, h);
+                times[h] = ev.getHistoricalEventTime(h);
+            }
+            samples[history * 2] = ev.getX(index);
+            samples[history * 2 + 1] = ev.getY(index);
+            times[history] = ev.getEventTime();
+            count = history + 1;
+        }
+    }
 
     public enum Mode {
         DRAW,
@@ -55,185 +183,740 @@ public class DrawView extends View {
 
     public DrawView(Context context) {
         super(context, null);
+        init();
     }
 
     public DrawView(Context context, AttributeSet attrs) {
         super(context, attrs, 0);
+        init();
     }
 
     public DrawView(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
+        for(int i = 0; i < fingers.length; ++i) fingers[i] = new Finger(i);
+        // スタンプを小数の位置に押すので補間する
+        stampPaint.setFilterBitmap(true);
+        strokePaint.setStyle(Paint.Style.STROKE);
+        strokePaint.setStrokeJoin(Paint.Join.ROUND);
     }
 
     public void setCommunicator(Communicator comm) {
         this.comm = comm;
     }
 
-    public void sendDrawMessage(int action, Pen pen, float x, float y) {
-        final int color = pen.getMode() == Pen.Mode.Draw ? pen.getColor() : Color.WHITE;
-        comm.sendDrawMessage(action, pen.getWidth(), color, x, y);
+    // stroke: 同時に描いている線の番号 (指ごと)
+    public void sendDrawMessage(int stroke, int action, Pen pen, float[] xy, float[] rates, int n) {
+        final int color = pen.getMode() == Pen.Mode.Draw ? pen.getColor() : Pen.ERASER;
+        comm.sendDrawPoints(stroke, action, pen.getWidth(), color, xy, rates, n);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        persistExecutor = Executors.newSingleThreadExecutor();
+        persistWorker = Schedulers.from(persistExecutor);
+        persistWorker.scheduleDirect(DrawView::awaitPersistClosed);
+        queue.open();
+        renderThread = new Thread(this::renderLoop, "DrawView-render");
+        renderThread.start();
+        if(peers.isDrawing()) scheduleSweep();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // キューに残っている分は次にattachされたときに描く
+        queue.close();
+        // 描いている途中の分が終わるまで待つ. すぐにattachされると古いループと新しいループが同時にtilesを触る
+        if(renderThread != null) {
+            try {
+                renderThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            renderThread = null;
+        }
+        // 描画スレッドが止まったので, もう誰もjournalに書き足さない
+        closePersist();
+        removeCallbacks(orphanSweep);
+        sweepScheduled = false;
+        super.onDetachedFromWindow();
     }
 
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        if (bitmap != null) {
-            bitmap.recycle();
+        // 回転しても描いたものはタイルに残るので, 表示用の面だけ作り直して描き直してもらう
+        synchronized (frontLock) {
+            if(front != null) front.recycle();
+            front = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            front.eraseColor(Color.WHITE);
+            frontCanvas = new Canvas(front);
+            viewRect.set(0, 0, w, h);
         }
-        bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        bitmapRect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
-        canvas = new Canvas();
-        canvas.setBitmap(bitmap);
-        canvas.drawColor(Color.WHITE);
+        queue.command(RenderQueue.REFRESH, 0);
     }
 
     @Override
     protected void onDraw(Canvas c) {
         super.onDraw(c);
-        // 画面を反映
-        c.drawBitmap(bitmap, bitmapRect, bitmapRect, null);
+        final long start = Metrics.enabled ? System.nanoTime() : 0;
+        synchronized (frontLock) {
+            if(front == null) {
+                c.drawColor(Color.WHITE);
+                return;
+            }
+            // 画面を反映 (書き換えた範囲だけ)
+            if(!c.getClipBounds(clip) || !clip.intersect(viewRect)) {
+                clip.set(viewRect);
+            }
+            c.drawBitmap(front, clip, clip, null);
+        }
+        if(start != 0) Metrics.UI_DRAW.recordSince(start);
+    }
+
+    private void renderLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        try {
+            while(queue.await()) {
+                final long start = Metrics.enabled ? System.nanoTime() : 0;
+                synchronized (tiles) {
+                    final int n = queue.drain(renderer);
+                    publish();
+                    if(start != 0) {
+                        Metrics.RENDER_QUEUE.set(n);
+                        Metrics.RENDER_FRAME.recordSince(start);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "render thread interrupted");
+        }
+    }
+
+    // 書き換えた範囲を表示用の面に写してinvalidateする
+    private void publish() {
+        if(dirty.isEmpty()) return;
+        synchronized (frontLock) {
+            if(front != null && dirty.intersect(viewRect)) {
+                tiles.drawTo(frontCanvas, dirty);
+                ViewCompat.postInvalidateOnAnimation(this, dirty.left, dirty.top, dirty.right, dirty.bottom);
+                if(Metrics.enabled) {
+                    final long input = inputStart.getAndSet(0), remote = remoteStart.getAndSet(0);
+                    if(input != 0) Metrics.INPUT_TO_PIXEL.recordSince(input);
+                    if(remote != 0) Metrics.REMOTE_TO_PIXEL.recordSince(remote);
+                }
+            }
+        }
+        dirty.setEmpty();
+    }
+
+    // 描画スレッドでキューの命令を実行する
+    private final RenderQueue.Handler renderer = new RenderQueue.Handler() {
+        @Override public void begin(int slot, int owner, int color, float width, int flags) {
+            if(slot >= engines.length) {
+                engines = Arrays.copyOf(engines, slot * 2);
+                pens = Arrays.copyOf(pens, slot * 2);
+                slotOps = Arrays.copyOf(slotOps, slot * 2);
+            }
+            if(engines[slot] == null) {
+                engines[slot] = new StrokeEngine();
+                pens[slot] = new Pen(DrawView.this);
+            }
+            Pen.configure(pens[slot], engines[slot], color, width, flags);
+            engines[slot].begin(pens[slot]);
+            slotOps[slot] = history.begin(owner, color, width, flags);
+        }
+
+        @Override public void point(int slot, float x, float y, float rate) {
+            if(slot >= engines.length || slotOps[slot] == null) return;
+            engines[slot].add(x, y, rate);
+            slotOps[slot].add(x, y, rate);
+        }
+
+        @Override public void end(int slot) {
+            if(slot >= engines.length || slotOps[slot] == null) return;
+            engines[slot].end();
+            final StrokeLog.Op op = slotOps[slot];
+            history.commit(op);
+            slotOps[slot] = null;
+            persist(op);
+        }
+
+        @Override public void command(int op, int arg) {
+            switch(op) {
+                case RenderQueue.UNDO:
+                    changed(history.undo(arg));
+                    break;
+                case RenderQueue.REDO:
+                    changed(history.redo(arg));
+                    break;
+                case RenderQueue.CLEAR:
+                    history.clear(arg);
+                    tiles.clear();
+                    refresh();
+                    persist(new StrokeLog.Op(arg, true, 0, 0, 0));
+                    requestCheckpoint();
+                    break;
+                case RenderQueue.REFRESH:
+                    refresh();
+                    break;
+                case RenderQueue.SNAPSHOT:
+                    SingleEmitter<TileStore.Snapshot> request = snapshotRequests.poll();
+                    if(request != null) request.onSuccess(tiles.snapshot());
+                    break;
+                case RenderQueue.LOAD:
+                    List<Communicator.SyncTile> list = loads.poll();
+                    if(list != null) load(list);
+                    requestCheckpoint();
+                    break;
+                case RenderQueue.RESTORE:
+                    restore(arg);
+                    break;
+                case RenderQueue.PICK:
+                    pick(arg >>> 16, arg & 0xFFFF);
+                    break;
+                case RenderQueue.TRIM:
+                    // メモリが足りなくなったら見えていないタイルから圧縮する
+                    if(arg >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                        tiles.pack(null);
+                        stamps.clear();
+                        // バックグラウンドに回ったらためている分をすぐ書く
+                        if(journal != null) {
+                            final CanvasJournal j = journal;
+                            persistWorker.scheduleDirect(() -> flush(j));
+                        }
+                    } else if(arg >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                        synchronized (frontLock) {
+                            tiles.pack(viewRect);
+                        }
+                    }
+                    break;
+            }
+        }
+    };
+
+    // undo/redoで線が消えたり戻ったりした
+    private void changed(StrokeLog.Op op) {
+        if(op == null) return;
+        // journalにはundo/redoを書かないので, この状態をチェックポイントにする
+        requestCheckpoint();
+        refresh();
+    }
+
+    // 指の下の画素の色 (タイルは描画スレッドだけが触る)
+    private void pick(int x, int y) {
+        spuitColor.onNext(tiles.getPixel(x, y));
+    }
+
+    // 受け取ったタイルでキャンバスを置き換える. それより前の履歴は捨てる
+    private void load(List<Communicator.SyncTile> list) {
+        tiles.clear();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        for(Communicator.SyncTile tile : list) {
+            byte[] png = Base64.decode(tile.png, Base64.DEFAULT);
+            Bitmap bitmap = BitmapFactory.decodeByteArray(png, 0, png.length, options);
+            if(bitmap != null) tiles.load(tile.x, tile.y, bitmap);
+        }
+        history.reset();
+        refresh();
+    }
+
+    // 保存しておいたキャンバスを読み込み, ここから先の線を保存する
+    // チェックポイントのタイルを置いてから, それより後の線を描き直す
+    // ローカルの線は今回もundoできるように, リモートの線はまとめて誰にも取り消されないownerにする
+    private void restore(int restoredOwner) {
+        if(journal != null || journalDir == null) return;
+        awaitPersistClosed();
+        final ArrayList<StrokeLog.Op> ops = new ArrayList<>();
+        final CanvasJournal j;
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        try {
+            j = new CanvasJournal(journalDir);
+            tiles.clear();
+            j.read(new CanvasJournal.Reader() {
+                @Override public void tile(int tx, int ty, byte[] png) {
+                    Bitmap bitmap = BitmapFactory.decodeByteArray(png, 0, png.length, options);
+                    if(bitmap != null) tiles.load(tx, ty, bitmap);
+                }
+                @Override public void op(StrokeLog.Op op) {
+                    ops.add(op);
+                }
+            });
+        } catch (IOException e) {
+            Log.w(TAG, "cannot restore canvas", e);
+            return;
+        }
+        history.reset();
+        for(StrokeLog.Op op : ops) {
+            final int owner = op.owner == LOCAL_OWNER ? LOCAL_OWNER : restoredOwner;
+            if(op.clear) {
+                tiles.clear();
+                history.clear(owner);
+                continue;
+            }
+            StrokeLog.Op copy = history.begin(owner, op.color, op.width, op.flags);
+            for(int i = 0; i < op.count; ++i) copy.add(op.points[i * 2], op.points[i * 2 + 1], op.rates[i]);
+            Pen.replay(copy, replayPen, replayEngine);
+            history.commit(copy);
+        }
+        Log.d(TAG, "restored " + ops.size() + " ops");
+        journal = j;
+        journaled = j.journalCount();
+        if(journaled >= CHECKPOINT_INTERVAL) requestCheckpoint();
+        refresh();
+    }
+
+    // 確定した線 (かclear) を追記する. 少し待ってまとめて書く
+    private void persist(StrokeLog.Op op) {
+        if(journal == null) return;
+        final CanvasJournal j = journal;
+        final Scheduler worker = persistWorker;
+        worker.scheduleDirect(() -> {
+            j.append(op);
+            if(j.pendingCount() == 1) pendingFlush = worker.scheduleDirect(() -> flush(j), FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        });
+        if(++journaled >= CHECKPOINT_INTERVAL) checkpointWanted = true;
+        checkpoint();
+    }
+
+    private void flush(CanvasJournal j) {
+        try {
+            j.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write journal", e);
+        }
+    }
+
+    // ためている分を書いてjournalを閉じ, 書き込みのスレッドを止める (detachで描画スレッドが止まった後)
+    // 待っているflushは取り消す (止めたスレッドには積めない). 次に動かす書き込みはこれが終わるのを待つ
+    private void closePersist() {
+        final ExecutorService executor = persistExecutor;
+        final CanvasJournal j = journal;
+        persistWorker.scheduleDirect(() -> {
+            if(pendingFlush != null) {
+                pendingFlush.dispose();
+                pendingFlush = null;
+            }
+            if(j == null) return;
+            try {
+                j.close();
+            } catch (IOException e) {
+                Log.w(TAG, "cannot close journal", e);
+            }
+        });
+        executor.shutdown();
+        synchronized (DrawView.class) {
+            closingPersist = executor;
+        }
+        persistExecutor = null;
+        persistWorker = null;
+    }
+
+    private static void awaitPersistClosed() {
+        final ExecutorService executor;
+        synchronized (DrawView.class) {
+            executor = closingPersist;
+        }
+        if(executor == null) return;
+        try {
+            if(!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) Log.w(TAG, "journal is still being closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void requestCheckpoint() {
+        checkpointWanted = true;
+        checkpoint();
+    }
+
+    // 今のタイルをチェックポイントにして, それまでのjournalを要らなくする
+    // 描いている途中の線があるとタイルに半端に入ってしまうので, なるべくないときに取る
+    // たまりすぎたら履歴から途中の線を除いたタイルを作って取る (途中の線は確定したときに次のjournalに入る)
+    private void checkpoint() {
+        if(journal == null || !checkpointWanted) return;
+        boolean drawing = false;
+        for(StrokeLog.Op op : slotOps) if(op != null) drawing = true;
+        if(drawing && journaled < MAX_JOURNALED) return;
+        checkpointWanted = false;
+        journaled = 0;
+        final CanvasJournal j = journal;
+        final TileStore.Snapshot snapshot = drawing ? history.committedSnapshot() : tiles.snapshot();
+        if(drawing) refresh();
+        persistWorker.scheduleDirect(() -> {
+            try {
+                final int gen = j.rotate();
+                // 前のチェックポイントから書き換えていないタイルはPNGにしない
+                final List<CanvasJournal.Tile> list = new ArrayList<>();
+                tiles.export(snapshot, persisted, (tx, ty, png) -> list.add(new CanvasJournal.Tile(tx, ty, png)));
+                j.checkpoint(gen, list);
+                persisted = snapshot;
+            } catch (IOException e) {
+                Log.w(TAG, "cannot write checkpoint", e);
+            }
+        });
     }
 
-    protected void processDraw(int action, float x, float y) {
+    // 画面全体を描き直す
+    private void refresh() {
+        synchronized (frontLock) {
+            dirty.union(viewRect);
+        }
+    }
+
+    // 指ごとに別の線として描く. 2本目以降の指はPOINTER_DOWN/UPで来る
+    protected void processDraw(MotionEvent ev) {
+        switch(ev.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                // 前の線のUPが来ないまま残っていたら終わらせる
+                for(Finger f : fingers) if(f.pointerId != Finger.NO_POINTER) release(f);
+                beginFinger(ev);
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                beginFinger(ev);
+                break;
+            case MotionEvent.ACTION_MOVE:
+                for(int i = 0; i < ev.getPointerCount(); ++i) {
+                    final Finger f = find(ev.getPointerId(i));
+                    if(f != null) processFinger(f, ev, i, MotionEvent.ACTION_MOVE);
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP: {
+                final int index = ev.getActionIndex();
+                final Finger f = find(ev.getPointerId(index));
+                if(f != null) processFinger(f, ev, index, MotionEvent.ACTION_UP);
+                break;
+            }
+            case MotionEvent.ACTION_CANCEL:
+                for(int i = 0; i < ev.getPointerCount(); ++i) {
+                    final Finger f = find(ev.getPointerId(i));
+                    if(f != null) processFinger(f, ev, i, MotionEvent.ACTION_CANCEL);
+                }
+                break;
+        }
+    }
+
+    // 下ろした指に線を割り当てて描き始める
+    private void beginFinger(MotionEvent ev) {
+        final int index = ev.getActionIndex();
+        final Finger f = attach(ev.getPointerId(index));
+        if(f != null) processFinger(f, ev, index, MotionEvent.ACTION_DOWN);
+    }
+
+    // 空いている線を指に割り当てる. 指が多すぎればnull
+    private Finger attach(int pointerId) {
+        for(Finger f : fingers) {
+            if(f.pointerId == Finger.NO_POINTER) {
+                f.pointerId = pointerId;
+                return f;
+            }
+        }
+        return null;
+    }
+
+    private Finger find(int pointerId) {
+        for(Finger f : fingers) if(f.pointerId == pointerId) return f;
+        return null;
+    }
+
+    private void processFinger(Finger f, MotionEvent ev, int index, int action) {
+        f.collect(ev, index);
+        final int slot = LOCAL_SLOT + f.stroke;
         // 線の開始
         if(action == MotionEvent.ACTION_DOWN) {
-            // 点列を送るためのSubjectを作成
-            localLines = PublishSubject.create();
-            observe(localLines, localPen);
+            // 幅を変えるときはスタンプで描く
+            final StrokeEngine.Mode mode = dynamic ? StrokeEngine.Mode.STAMP : renderMode;
+            queue.begin(slot, LOCAL_OWNER, localPen.getColor(), localPen.getWidth(), Pen.flags(localPen, mode));
+            f.dynamics.begin();
         }
 
-        // 座標だけ送信
-        localLines.onNext(Pair.create(x, y));
-        Log.d(TAG, "touch " + x + ", " + y);
+        // 座標 (と幅の倍率) だけ描画スレッドへ
+        final float[] rates = dynamic ? f.rates : null;
+        if(rates != null) f.dynamics.rates(f.samples, f.times, f.count, rates);
+        queue.points(slot, f.samples, rates, f.count);
 
         // 線の終了
         if(action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
-            localLines.onComplete();
-            localLines = null;
+            queue.end(slot);
+            f.pointerId = Finger.NO_POINTER;
         }
 
-        sendDrawMessage(action, localPen, x, y);
+        // 履歴の点もまとめて1回で送る
+        sendDrawMessage(f.stroke, action, localPen, f.samples, rates, f.count);
+    }
+
+    // UPが来なかった指の線を最後の点で終わらせる
+    private void release(Finger f) {
+        queue.end(LOCAL_SLOT + f.stroke);
+        f.pointerId = Finger.NO_POINTER;
+        f.samples[0] = f.samples[f.count * 2 - 2];
+        f.samples[1] = f.samples[f.count * 2 - 1];
+        f.count = 1;
+        sendDrawMessage(f.stroke, MotionEvent.ACTION_CANCEL, localPen, f.samples, null, 1);
     }
 
     protected void processSpuit(int action, float x, float y) {
         // 線の開始
         if(action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_MOVE) {
-            int color = bitmap.getPixel(Math.round(x), Math.round(y));
-            spuitColor.onNext(color);
+            // 描画スレッドで指の下の画素の色を取る
+            final int px = Math.round(x), py = Math.round(y);
+            if(px < 0 || py < 0 || px > 0xFFFF || py > 0xFFFF) return;
+            queue.command(RenderQueue.PICK, px << 16 | py);
         }
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent ev) {
-        // 関係のないイベントを除外
-        if(!IntStream.of(target).anyMatch(e -> e == ev.getAction())) return true;
-
-        final int action = ev.getAction();
-
         switch (mode) {
-            case DRAW: processDraw(action, ev.getX(), ev.getY()); break;
-            case SPUIT: processSpuit(action, ev.getX(), ev.getY()); break;
+            case DRAW:
+                if(Metrics.enabled) inputStart.compareAndSet(0, System.nanoTime());
+                processDraw(ev);
+                break;
+            // スポイトは最初の指だけ見る
+            case SPUIT: processSpuit(ev.getActionMasked(), ev.getX(), ev.getY()); break;
         }
 
         return true;
     }
 
-    public void invokleTouchEvent(String uuid, int action, Pen pen, float x, float y) {
-        // 線の開始
-        if(action == MotionEvent.ACTION_DOWN) {
-            // 点列を送るためのSubjectを作成
-            PublishSubject<Pair<Float, Float>> subject = PublishSubject.create();
-            linesMap.put(uuid, subject);
-            observe(subject, pen);
+    // 届いた線を描画スレッドへ渡す. まとめて届いた点もそのまま積む
+    // 幅の倍率が付いているときはスタンプで描く
+    public void invokeDraw(DrawMessage m) {
+        final PeerRegistry.Peer peer = peers.get(m.uuid);
+        // 同じ相手の別の指の線は別のスロットで描く
+        final PeerRegistry.Stroke stroke = peer.stroke(m.stroke);
+        if(stroke == null) return;
+        final long now = SystemClock.uptimeMillis();
+        // 線の開始. 期限切れにした線の続きが来たら新しい線として描く
+        if(m.action == MotionEvent.ACTION_DOWN || (stroke.slot == PeerRegistry.NONE && stroke.orphaned)) {
+            // UPが届かないまま次の線が始まった
+            if(stroke.slot != PeerRegistry.NONE) queue.end(peers.end(stroke));
+            final StrokeEngine.Mode mode = m.rates != null ? StrokeEngine.Mode.STAMP : renderMode;
+            queue.begin(peers.begin(stroke, now), peer.id, m.color, m.width, Pen.flags(Pen.Shape.Circle, Pen.Mode.Draw, mode));
+            scheduleSweep();
         }
-
-        // 座標だけ送信
-        if(linesMap.containsKey(uuid)) {
-            linesMap.get(uuid).onNext(Pair.create(x, y));
+        if(stroke.slot == PeerRegistry.NONE) return;
+        stroke.lastSeen = now;
+        if(Metrics.enabled && m.received != 0) remoteStart.compareAndSet(0, m.received);
+
+        // 座標だけ描画スレッドへ
+        if(m.points != null) {
+            queue.points(stroke.slot, m.points, m.rates, m.getPointCount());
+        } else {
+            queue.point(stroke.slot, m.x, m.y, m.getRate(0));
         }
 
         // 線の終了
-        if(action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
-            if(linesMap.containsKey(uuid)) {
-                linesMap.get(uuid).onComplete();
-                linesMap.remove(uuid);
-            }
-        }
-    }
-
-    private void observe(PublishSubject<Pair<Float, Float>> lines, Pen pen) {
-        lines
-            .buffer(3, 2)   // 3つ組を作って始点を２つずらす (補間に3点使うため)
-            .filter(p -> p.size() == 3) // 3つ未満なら除外 (onComplete時に3つなくても流れてくる)
-            .observeOn(AndroidSchedulers.mainThread()) // 描画はメインスレッドで
-            .subscribe(p -> {
-                float x1 = p.get(0).first;
-                float y1 = p.get(0).second;
-                float x2 = p.get(1).first;
-                float y2 = p.get(1).second;
-                float x3 = p.get(2).first;
-                float y3 = p.get(2).second;
-                // 補間曲線のだいたいの長さ (この個数だけピクセルを描画する)
-                int d = 1 + (int)(Math.floor(dist(x1, y1, x2, y2) + dist(x2, y2, x3, y3)));
-                // 媒介変数t (0->1) をもとに描画
-                for(int t = 0; t <= d; ++t) {
-                    // TODO: 速度でブラシ幅を変えたい　
-                    pen.draw(interpolate(x1, y1, x2, y2, x3, y3, t * 1.0f / d));
-                }
-                // ASAP描画指示
-                invalidate();
-            });
+        if(m.action == MotionEvent.ACTION_UP || m.action == MotionEvent.ACTION_CANCEL) {
+            queue.end(peers.end(stroke));
+            stroke.orphaned = false;
+        }
+    }
+
+    // 部屋を出ていった相手を忘れる. 描きかけの線はそこまでで終わらせる
+    public void invokeLeft(String uuid) {
+        peers.remove(uuid, (peer, slot) -> queue.end(slot));
     }
 
-    // 3点をB-スプライン補間
-    private Pair<Float, Float> interpolate(float x1, float y1, float x2, float y2, float x3, float y3, float t) {
-        return Pair.create(
-            (1 - t) * (1 - t) * x1 + 2 * t * (1 - t) * x2 + t * t * x3,
-            (1 - t) * (1 - t) * y1 + 2 * t * (1 - t) * y2 + t * t * y3
-        );
+    private void scheduleSweep() {
+        if(sweepScheduled) return;
+        sweepScheduled = true;
+        postDelayed(orphanSweep, ORPHAN_TIMEOUT);
+    }
+
+    // 描きかけのまま止まった線を終わらせる (描いたところまでは履歴に残す)
+    private void sweepOrphans() {
+        sweepScheduled = false;
+        peers.expire(SystemClock.uptimeMillis(), ORPHAN_TIMEOUT, (peer, slot) -> {
+            Log.d(TAG, "orphaned stroke: " + peer.uuid);
+            queue.end(slot);
+        });
+        if(peers.isDrawing()) scheduleSweep();
+    }
+
+    // 書き換えた範囲を広げる (アンチエイリアスの分1px余分に取る)
+    private void markDirty(float left, float top, float right, float bottom) {
+        dirty.union((int)Math.floor(left) - 1, (int)Math.floor(top) - 1,
+            (int)Math.ceil(right) + 1, (int)Math.ceil(bottom) + 1);
+    }
+
+    // ここから3つはPenから描画スレッドで呼ばれる
+    @Override
+    public int getEraserColor() {
+        return tiles.getBackground();
+    }
+
+    // 作っておいたスタンプを1回のdrawBitmapで押す. 大きすぎるものは直接描く
+    @Override
+    public void drawStamp(Pen.Shape shape, float x, float y, float diameter, int color) {
+        final Paint paint = stampPaint;
+        paint.setColor(color);
+        final Bitmap stamp = stamps.get(shape, diameter);
+        if(stamp == null) {
+            final float half = diameter / 2;
+            if(shape == Pen.Shape.Circle) drawCircle(x, y, half, paint);
+            else drawRect(x, y, half, half, paint);
+            return;
+        }
+        final float half = stamp.getWidth() / 2.f;
+        tiles.drawBitmap(stamp, x - half, y - half, paint);
+        markDirty(x - half, y - half, x + half, y + half);
     }
 
-    // 2点間距離
-    private float dist(float x1, float y1, float x2, float y2) {
-        float dx = Math.abs(x2 - x1);
-        float dy = Math.abs(y2 - y1);
-        return (float)Math.sqrt(dx * dx + dy * dy);
+    @Override
+    public void drawSegment(Pen.Shape shape, float x1, float y1, float x2, float y2, float x3, float y3, float width, int color) {
+        strokePaint.setColor(color);
+        strokePaint.setStrokeWidth(width);
+        // 四角は軸に沿ったスタンプとは厳密には一致しない (線の向きに回る)
+        strokePaint.setStrokeCap(shape == Pen.Shape.Circle ? Paint.Cap.ROUND : Paint.Cap.SQUARE);
+        path.rewind();
+        path.moveTo(x1, y1);
+        path.quadTo(x2, y2, x3, y3);
+        drawPath(path, strokePaint);
     }
 
     public void drawRect(float x, float y, float halfw, float halfh, Paint paint) {
-        canvas.drawRect(x - halfw, y - halfh, x + halfw, y + halfh, paint);
+        tiles.drawRect(x - halfw, y - halfh, x + halfw, y + halfh, paint);
+        markDirty(x - halfw, y - halfh, x + halfw, y + halfh);
     }
 
     public void drawCircle(float x, float y, float r, Paint paint) {
-        canvas.drawCircle(x, y, r, paint);
+        tiles.drawCircle(x, y, r, paint);
+        markDirty(x - r, y - r, x + r, y + r);
+    }
+
+    public void drawPath(Path path, Paint paint) {
+        tiles.drawPath(path, paint);
+        // 制御点の範囲に線幅分足せば収まる (四角い端は斜めだと半幅より少しはみ出すので幅いっぱい取る)
+        path.computeBounds(pathBounds, false);
+        final float margin = paint.getStrokeWidth();
+        markDirty(pathBounds.left - margin, pathBounds.top - margin,
+            pathBounds.right + margin, pathBounds.bottom + margin);
+    }
+
+    private int ownerOf(String uuid) {
+        return peers.get(uuid).id;
     }
 
     public void clear() {
-        canvas.drawColor(Color.WHITE);
-        invalidate();
+        queue.command(RenderQueue.CLEAR, LOCAL_OWNER);
+    }
+
+    public void undo() {
+        queue.command(RenderQueue.UNDO, LOCAL_OWNER);
+    }
+
+    public void redo() {
+        queue.command(RenderQueue.REDO, LOCAL_OWNER);
+    }
+
+    // ここから3つはリモートのユーザの操作
+    // 次のフレームの描画の前にUIスレッドでtaskを実行する (どのスレッドから呼んでもよい)
+    public void postOnFrame(Runnable task) {
+        AndroidSchedulers.mainThread().scheduleDirect(() -> ViewCompat.postOnAnimation(this, task));
+    }
+
+    public void invokeClear(String uuid) {
+        queue.command(RenderQueue.CLEAR, ownerOf(uuid));
+    }
+
+    public void invokeUndo(String uuid) {
+        queue.command(RenderQueue.UNDO, ownerOf(uuid));
+    }
+
+    public void invokeRedo(String uuid) {
+        queue.command(RenderQueue.REDO, ownerOf(uuid));
+    }
+
+    // 途中参加してきた相手に渡す今のキャンバス (描いたタイルだけ)
+    // キューに積んだところまで描いた状態を取り, PNGにするのは別スレッドで行う
+    public Single<List<Communicator.SyncTile>> exportTiles() {
+        return takeSnapshot()
+            .observeOn(Schedulers.io())
+            .map(snapshot -> {
+                List<Communicator.SyncTile> list = new ArrayList<>();
+                tiles.export(snapshot, (tx, ty, png) ->
+                    list.add(new Communicator.SyncTile(tx, ty, Base64.encodeToString(png, Base64.NO_WRAP))));
+                return list;
+            });
+    }
+
+    // 描画スレッドでキューに積んだところまで描いたタイルの組を取る
+    private Single<TileStore.Snapshot> takeSnapshot() {
+        return Single.create(e -> {
+            snapshotRequests.add(e);
+            queue.command(RenderQueue.SNAPSHOT, 0);
+        });
+    }
+
+    // dirにキャンバスを保存していく. 前に保存したものがあれば読み込む (最初の線より前に呼ぶ)
+    public void restore(File dir) {
+        journalDir = dir;
+        queue.command(RenderQueue.RESTORE, ownerOf(RESTORED));
+    }
+
+    public void loadTiles(List<Communicator.SyncTile> list) {
+        if(list == null) list = new ArrayList<>();
+        loads.add(list);
+        queue.command(RenderQueue.LOAD, 0);
+    }
+
+    public void trimMemory(int level) {
+        queue.command(RenderQueue.TRIM, level);
     }
 
     public Pen getLocalPen() {
         return localPen;
     }
 
-    public String saveFile(String dirname, String filename) throws IOException {
+    // キャンバスを画像にして保存する. キューに積んだところまで描いた状態を書き出し, UIスレッドは待たない
+    // 画面の範囲と描いたことのある範囲を合わせて1枚にする
+    public Single<File> saveFile(String dirname, String filename, ImageExporter.Format format, int quality) {
         File extStrageDir = Environment.getExternalStorageDirectory();
         //String dir = getContext().getExternalFilesDir(null).getAbsolutePath();
-        String dirpath = extStrageDir.getAbsolutePath() + "/Pictures/" + dirname;
-        File dir = new File(dirpath);
-        if(!dir.exists()) dir.mkdirs();
-        File file = new File(dirpath, filename);
+        File file = new File(extStrageDir.getAbsolutePath() + "/Pictures/" + dirname, filename);
         Log.d(TAG, file.getAbsolutePath());
-        FileOutputStream outStream = new FileOutputStream(file);
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, outStream);
-        outStream.close();
-        return file.getAbsolutePath();
+        Rect area = new Rect();
+        synchronized (frontLock) {
+            area.set(viewRect);
+        }
+        return exporter.export(takeSnapshot(), area, format, quality, file);
+    }
+
+    // 保存の進み具合 0 - 1
+    public Observable<Float> onSaveProgress() {
+        return exporter.progress().observeOn(AndroidSchedulers.mainThread());
+    }
+
+    // アクティビティが終わるときに呼ぶ
+    public void destroy() {
+        exporter.destroy();
     }
 
     public void setMode(Mode mode) {
         this.mode = mode;
     }
 
+    // 次の線から反映
+    public void setDynamic(boolean dynamic) {
+        this.dynamic = dynamic;
+    }
+
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
+    // 次の線から反映
+    public void setRenderMode(StrokeEngine.Mode renderMode) {
+        this.renderMode = renderMode;
+    }
+
     public Observable<Integer> onSpuit() {
-        return spuitColor;
+        return spuitColor.observeOn(AndroidSchedulers.mainThread());
     }
 }
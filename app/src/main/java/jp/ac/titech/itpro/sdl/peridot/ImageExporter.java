@@ -0,0 +1,120 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+
+
+// キャンバスの画像書き出し
+// 描画スレッドで取ったタイルのsnapshotを受け取り, 1枚の画像にまとめる・圧縮する・書き込むのは専用のスレッドで行う
+// 書き出しは1つずつ順番に行うので, 続けて保存しても大きなBitmapは同時に1枚しか作らない
+public class ImageExporter {
+
+    public enum Format {
+        PNG(Bitmap.CompressFormat.PNG, ".png", "image/png"),
+        JPEG(Bitmap.CompressFormat.JPEG, ".jpg", "image/jpeg"),
+        WEBP(Bitmap.CompressFormat.WEBP, ".webp", "image/webp");
+
+        final Bitmap.CompressFormat compress;
+        public final String extension;
+        public final String mimeType;
+
+        Format(Bitmap.CompressFormat compress, String extension, String mimeType) {
+            this.compress = compress;
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // まとめる段階と圧縮する段階の進み具合の割り振り
+    private static final float COMPOSE = 0.5f;
+
+    private final TileStore tiles;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Scheduler worker = Schedulers.from(executor);
+    private final PublishSubject<Float> progress = PublishSubject.create();
+
+    public ImageExporter(TileStore tiles) {
+        this.tiles = tiles;
+    }
+
+    // 書き出しの進み具合 0 - 1 (どのスレッドから来るかは決まっていない). 失敗しても最後に1が来る
+    public Observable<Float> progress() {
+        return progress;
+    }
+
+    // snapshotのarea (左上は原点) をfileに書き出す. 途中で失敗したらfileは作らない
+    // quality はJPEG/WebPのときだけ効く (0 - 100)
+    public Single<File> export(Single<TileStore.Snapshot> snapshot, Rect area, Format format, int quality, File file) {
+        return snapshot
+            .observeOn(worker)
+            .map(s -> {
+                Bitmap bitmap = compose(s, area);
+                try {
+                    write(bitmap, format, quality, file);
+                } finally {
+                    bitmap.recycle();
+                }
+                return file;
+            })
+            .doFinally(() -> progress.onNext(1.f));
+    }
+
+    // 受け付けた書き出しは最後まで行ってからスレッドを止める. この後はexportできない
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    private Bitmap compose(TileStore.Snapshot snapshot, Rect area) {
+        Rect bounds = new Rect();
+        tiles.getBounds(snapshot, bounds);
+        bounds.union(area);
+        final int w = Math.max(1, bounds.right), h = Math.max(1, bounds.bottom);
+        Bitmap bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        tiles.drawTo(snapshot, new Canvas(bitmap), new Rect(0, 0, w, h),
+            (done, total) -> progress.onNext(COMPOSE * done / total));
+        return bitmap;
+    }
+
+    // 一時ファイルに書いてから名前を変える (書きかけのファイルを残さない)
+    private void write(Bitmap bitmap, Format format, int quality, File file) throws IOException {
+        File dir = file.getParentFile();
+        if(dir != null && !dir.exists()) dir.mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean written = false;
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = stream.getChannel();
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            if(!bitmap.compress(format.compress, quality, out)) throw new IOException("failed to encode " + format);
+            out.flush();
+            channel.force(false);
+            written = true;
+        } finally {
+            stream.close();
+            if(!written) tmp.delete();
+        }
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("failed to rename " + tmp);
+        }
+    }
+}
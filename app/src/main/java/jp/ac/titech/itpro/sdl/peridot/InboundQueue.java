@@ -0,0 +1,162 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import android.view.MotionEvent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+// 受け取ったメッセージをためておき, UIスレッドには1フレームに1回まとめて渡す
+// 種類の判定と, 同じ相手の同じ線のMOVEを1つにつなげるのは受け取ったスレッド (OkHttpの読み込みスレッド) で済ませる
+// clearやundoなど描画以外のメッセージは区切りにして, それをまたいではまとめない
+// (clearもundoで取り消せるので, その前に描かれた線も捨てられない)
+class InboundQueue {
+
+    static final int DRAW = 0;
+    static final int CLEAR = 1;
+    static final int UNDO = 2;
+    static final int REDO = 3;
+    static final int SYNC_REQUEST = 4;
+    static final int SYNC = 5;
+    static final int LEFT = 6;
+    static final int UNKNOWN = 7;
+
+    // 1フレーム分のメッセージ. 表と裏の2つを入れ替えて使う
+    static final class Batch {
+        private DrawMessage[] messages = new DrawMessage[64];
+        private int[] kinds = new int[64];
+        private int count = 0;
+
+        int size() {
+            return count;
+        }
+
+        DrawMessage get(int i) {
+            return messages[i];
+        }
+
+        int kind(int i) {
+            return kinds[i];
+        }
+
+        private void add(DrawMessage message, int kind) {
+            if(count == messages.length) {
+                messages = Arrays.copyOf(messages, count * 2);
+                kinds = Arrays.copyOf(kinds, count * 2);
+            }
+            messages[count] = message;
+            kinds[count] = kind;
+            ++count;
+        }
+
+        private void clear() {
+            Arrays.fill(messages, 0, count, null);
+            count = 0;
+        }
+    }
+
+    interface Sink {
+        // UIスレッドで呼ばれる. batchは返った後に使い回すので持っておかないこと
+        void deliver(Batch batch);
+    }
+
+    interface Poster {
+        // 次のフレームでUIスレッドで実行する
+        void post(Runnable task);
+    }
+
+    private final Sink sink;
+    private final Poster poster;
+    private final Runnable drainTask = this::drain;
+    private Batch pending = new Batch();
+    private Batch spare = new Batch();
+    private boolean scheduled = false;
+    // 今ためている中で, 相手 (uuid) と線の番号ごとに一番後ろのMOVE. 区切りが来たら忘れる
+    private final HashMap<String, DrawMessage[]> tails = new HashMap<>();
+
+    InboundQueue(Sink sink, Poster poster) {
+        this.sink = sink;
+        this.poster = poster;
+    }
+
+    // どのスレッドから呼んでもよい
+    void add(DrawMessage message) {
+        final int kind = kind(message.type);
+        final boolean post;
+        synchronized (this) {
+            if(kind != DRAW || !merge(message)) {
+                pending.add(message, kind);
+                track(message, kind);
+            }
+            post = !scheduled;
+            scheduled = true;
+        }
+        if(post) poster.post(drainTask);
+    }
+
+    static int kind(String type) {
+        if(type == null) return UNKNOWN;
+        switch(type) {
+            case "draw": return DRAW;
+            case "clear": return CLEAR;
+            case "undo": return UNDO;
+            case "redo": return REDO;
+            case "sync_request": return SYNC_REQUEST;
+            case "sync": return SYNC;
+            case "left": return LEFT;
+            default: return UNKNOWN;
+        }
+    }
+
+    // 同じ線の直前のMOVEにつなげられたらtrue
+    private boolean merge(DrawMessage m) {
+        if(m.action != MotionEvent.ACTION_MOVE || !inRange(m)) return false;
+        final DrawMessage[] strokes = tails.get(m.uuid);
+        final DrawMessage tail = strokes != null ? strokes[m.stroke] : null;
+        if(tail == null || tail.width != m.width || tail.color != m.color || (tail.rates == null) != (m.rates == null)) return false;
+        tail.append(m);
+        tail.seq = m.seq;
+        return true;
+    }
+
+    private void track(DrawMessage m, int kind) {
+        if(kind != DRAW) {
+            tails.clear();
+            return;
+        }
+        if(!inRange(m)) return;
+        DrawMessage[] strokes = tails.get(m.uuid);
+        if(strokes == null) {
+            strokes = new DrawMessage[PeerRegistry.MAX_STROKES];
+            tails.put(m.uuid, strokes);
+        }
+        // DOWN/UPの後ろのMOVEはそれより前にはつなげない
+        strokes[m.stroke] = m.action == MotionEvent.ACTION_MOVE ? m : null;
+    }
+
+    private static boolean inRange(DrawMessage m) {
+        return m.uuid != null && m.stroke >= 0 && m.stroke < PeerRegistry.MAX_STROKES;
+    }
+
+    // UIスレッド
+    private void drain() {
+        final Batch batch;
+        synchronized (this) {
+            batch = pending;
+            pending = spare;
+            spare = null;
+            tails.clear();
+            scheduled = false;
+        }
+        if(Metrics.enabled) Metrics.INBOUND_BATCH.set(batch.size());
+        try {
+            sink.deliver(batch);
+        } finally {
+            batch.clear();
+            synchronized (this) {
+                spare = batch;
+            }
+        }
+    }
+}
@@ -16,13 +16,16 @@ import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Gravity;
 import android.widget.Button;
+import android.widget.ImageButton;
 import android.widget.SeekBar;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
 import com.jakewharton.rxbinding2.widget.RxSeekBar;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -33,10 +36,14 @@ import butterknife.BindInt;
 import butterknife.BindString;
 import butterknife.BindView;
 import butterknife.ButterKnife;
+import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.PublishSubject;
 
 import static com.jakewharton.rxbinding2.view.RxView.clicks;
+import static com.jakewharton.rxbinding2.view.RxView.longClicks;
 
 
 public class MainActivity extends AppCompatActivity implements SensorEventListener {
@@ -51,11 +58,18 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
     @BindView(R.id.button_spuit) ToggleButton spuit;
     @BindView(R.id.button_clear) FloatingActionButton clearButton;
     @BindView(R.id.button_save) Button saveButton;
+    @BindView(R.id.button_undo) ImageButton undoButton;
+    @BindView(R.id.button_redo) ImageButton redoButton;
+    @BindView(R.id.button_dynamics) ToggleButton dynamics;
 
     @BindInt(R.integer.max_width) int maxBrushWidth;
     @BindString(R.string.server_host) String serverHost;
     @BindInt(R.integer.server_port) int serverPort;
     @BindString(R.string.app_name) String appName;
+    @BindInt(R.integer.save_quality) int saveQuality;
+    @BindInt(R.integer.metrics_interval) int metricsInterval;
+    @BindInt(R.integer.stroke_precision) int strokePrecision;
+    @BindInt(R.integer.simplify_tolerance) int simplifyTolerance;
 
     private ColorPicker cp;
     private Communicator comm;
@@ -64,6 +78,8 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
     private SensorManager sensorMgr;
     private Sensor accelerometer;
     private PublishSubject<Float> sensor = PublishSubject.create();
+    private Disposable metricsDump;
+    private InboundQueue inbound;
 
 
     @Override
@@ -73,7 +89,14 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
         ButterKnife.bind(this);
 
         comm = new Communicator(serverHost, serverPort);
+        comm.setPrecision(strokePrecision);
+        comm.setSimplifyTolerance(simplifyTolerance / 10.f);
         view.setCommunicator(comm);
+        inbound = new InboundQueue(this::dispatch, view::postOnFrame);
+        startMetrics();
+
+        // 前回のキャンバスを読み込み, 描いた線を保存していく
+        view.restore(new File(getFilesDir(), "canvas"));
 
         sensorMgr = (SensorManager) getSystemService(SENSOR_SERVICE);
         accelerometer = sensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
@@ -98,6 +121,16 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
             comm.sendClearMessage();
         });
 
+        // undo/redo (自分の線だけ取り消す)
+        clicks(undoButton).subscribe(p -> {
+            view.undo();
+            comm.sendUndoMessage();
+        });
+        clicks(redoButton).subscribe(p -> {
+            view.redo();
+            comm.sendRedoMessage();
+        });
+
         sensor
             .filter(vx -> vx < -10)
             .debounce(30, TimeUnit.MILLISECONDS)
@@ -129,6 +162,9 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
             view.setMode(DrawView.Mode.DRAW);
         });
 
+        // 筆 (速く引くと細くなる)
+        clicks(dynamics).subscribe(p -> view.setDynamic(dynamics.isChecked()));
+
         // colorボタン
         // ペンの色に合わせる
         GradientDrawable bgShape = (GradientDrawable)colorButton.getBackground();
@@ -159,62 +195,141 @@ public class MainActivity extends AppCompatActivity implements SensorEventListen
         view.onSpuit().subscribe(c -> cp.setColor(c));
 
         // onlineボタン
+        // 実際の接続状態に合わせる (つなぎ直している間は半透明)
+        comm.states()
+            .observeOn(AndroidSchedulers.mainThread())
+            .subscribe(s -> {
+                toggle.setChecked(s != Communicator.State.DISCONNECTED);
+                toggle.setAlpha(s == Communicator.State.CONNECTED ? 1.f : 0.5f);
+                if(s == Communicator.State.RECONNECTING) Log.d(TAG, "reconnecting...");
+            });
         clicks(toggle).subscribe(p -> {
             if(toggle.isChecked()) {
-                if(comm.getState() == Communicator.State.CONNECTED) {
+                if(comm.getState() != Communicator.State.DISCONNECTED) {
                     comm.disconnect();
                 }
-                comm.connect()
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(message -> {
-                        if(message.type.equals("clear")) {
-                            view.clear();
-                        } else if(message.type.equals("draw")) {
-                            final Pen pen = new Pen(view, message.color, message.width);
-                            view.invokleTouchEvent(message.uuid, message.action, pen, message.x, message.y);
-                        } else {
-                            Log.d(TAG, "unknown type: " + message.type);
-                        }
-                    });
+                // 受け取ったスレッドでためて, 1フレームに1回まとめて描画に渡す
+                comm.connect().subscribe(inbound::add);
             } else {
                 comm.disconnect();
             }
         });
 
-        // save
-        clicks(saveButton).subscribe(p -> {
-            final String filename = genFileName(".png");
-            try {
-                if(ContextCompat.checkSelfPermission(this, android.Manifest.permission.WRITE_EXTERNAL_STORAGE)
-                    != PackageManager.PERMISSION_GRANTED) {
-                    ActivityCompat.requestPermissions(this, new String[]{android.Manifest.permission.WRITE_EXTERNAL_STORAGE}, REQCODE_PERMISSIONS);
-                    return;
-                }
-                String filepath = view.saveFile(appName, filename);
+        // save (長押しで形式を選ぶ)
+        clicks(saveButton).subscribe(p -> save(ImageExporter.Format.PNG));
+        longClicks(saveButton).subscribe(p -> {
+            final ImageExporter.Format[] formats = ImageExporter.Format.values();
+            String[] names = new String[formats.length];
+            for(int i = 0; i < formats.length; ++i) names[i] = formats[i].name();
+            new AlertDialog.Builder(this)
+                .setTitle("save")
+                .setItems(names, (d, which) -> save(formats[which]))
+                .show();
+        });
+        // 書き出している間はボタンを薄くする
+        view.onSaveProgress().subscribe(p -> saveButton.setAlpha(p < 1 ? 0.5f + 0.5f * p : 1.f));
+
+    }
+
+    private void save(ImageExporter.Format format) {
+        if(ContextCompat.checkSelfPermission(this, android.Manifest.permission.WRITE_EXTERNAL_STORAGE)
+            != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{android.Manifest.permission.WRITE_EXTERNAL_STORAGE}, REQCODE_PERMISSIONS);
+            return;
+        }
+        final String filename = genFileName(format.extension);
+        final int quality = format == ImageExporter.Format.PNG ? 100 : saveQuality;
+        view.saveFile(appName, filename, format, quality)
+            .observeOn(AndroidSchedulers.mainThread())
+            .subscribe(file -> {
                 toastMessage("saved: " + filename);
 
-                String[] paths = {filepath};//保存された画像のパス
-                String[] mimeTypes = {"image/png"};
+                String[] paths = {file.getAbsolutePath()};//保存された画像のパス
+                String[] mimeTypes = {format.mimeType};
                 MediaScannerConnection.scanFile(getApplicationContext(), paths, mimeTypes, (path, uri)-> {
                     Log.d(TAG, "scanFile:" + path +  " / " + uri);
                 });
-
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                toastMessage("SD Card not found...?");
-            } catch (IOException e) {
+            }, e -> {
                 e.printStackTrace();
+                toastMessage(e instanceof FileNotFoundException ? "SD Card not found...?" : "failed to save");
+            });
+    }
+
+    // 受け取ったメッセージを種類ごとに描画へ渡す (UIスレッド, 1フレームに1回)
+    private void dispatch(InboundQueue.Batch batch) {
+        for(int i = 0; i < batch.size(); ++i) {
+            final DrawMessage message = batch.get(i);
+            switch(batch.kind(i)) {
+                case InboundQueue.DRAW:
+                    view.invokeDraw(message);
+                    break;
+                case InboundQueue.CLEAR:
+                    view.invokeClear(message.uuid);
+                    break;
+                case InboundQueue.UNDO:
+                    view.invokeUndo(message.uuid);
+                    break;
+                case InboundQueue.REDO:
+                    view.invokeRedo(message.uuid);
+                    break;
+                case InboundQueue.SYNC_REQUEST:
+                    // 途中参加した相手に今のキャンバスを送る
+                    // 書き出しに失敗しても相手はタイムアウトして線だけで続けるので, ここでは落とさない
+                    view.exportTiles().subscribe(tiles -> comm.sendSync(message.uuid, tiles),
+                        e -> Log.w(TAG, "cannot export tiles for " + message.uuid, e));
+                    break;
+                case InboundQueue.SYNC:
+                    view.loadTiles(((Communicator.SyncMessage)message).tiles);
+                    break;
+                case InboundQueue.LEFT:
+                    view.invokeLeft(message.uuid);
+                    break;
+                default:
+                    Log.d(TAG, "unknown type: " + message.type);
+                    break;
             }
-        });
+        }
+    }
 
+    // metrics_interval秒ごとに計測した値をlogcatとmetrics.log (アプリの外部ファイル領域) に書き出す. 0なら計測しない
+    private void startMetrics() {
+        if(metricsInterval <= 0) return;
+        Metrics.enabled = true;
+        final File dir = getExternalFilesDir(null);
+        final Metrics.Snapshot[] previous = {null};
+        metricsDump = Observable.interval(metricsInterval, TimeUnit.SECONDS, Schedulers.io())
+            .subscribe(t -> {
+                Metrics.Snapshot snapshot = Metrics.snapshot(true);
+                final String text = snapshot.format(previous[0]);
+                previous[0] = snapshot;
+                Log.i("Metrics", text);
+                if(dir == null) return;
+                try {
+                    FileWriter out = new FileWriter(new File(dir, "metrics.log"), true);
+                    out.write(genFileName("") + "\n" + text);
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "cannot write metrics", e);
+                }
+            });
     }
 
     @Override
     protected void onDestroy() {
+        if(metricsDump != null) metricsDump.dispose();
         cp.destroy();
+        // つなぎ直しのタイマーを止めて, 受け取ったものがこのviewに届かないようにする
+        comm.disconnect();
+        view.destroy();
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        view.trimMemory(level);
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -0,0 +1,213 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+
+// DrawMessageのバイナリ表現 (JSONの代わりにByteStringフレームで送る)
+//
+//   [version:4bit | type:4bit] [peer:varint] [seq:varint]                ... clear, undo, redo
+//   [version:4bit | type:4bit] [peer:varint] [seq:varint] [stroke:varint]
+//   [rates:1bit | pen:1bit | precision:2bit | action:4bit]
+//   ([width:varint] [color:palette 1byte or 0xFF + argb 4byte])          ... penが立っているときだけ
+//   [count:varint] [points:StrokeCodec]
+//   ([rate:1byte] * count)                                               ... draw
+//
+// ペン (幅と色) は線の途中で変わらないので, DOWN/UP/CANCELにだけ付けてMOVEでは省く (受け手が線ごとに覚えておく)
+// 座標は 1/2^precision px 単位の差分, 幅は 1/QUANT px 単位, 幅の倍率は 1/255 単位に量子化する
+public class MessageCodec {
+
+    public static final int VERSION = 6;
+    public static final int MAX_POINTS = 256;
+    public static final int MAX_SIZE = 21 + MAX_POINTS * (StrokeCodec.MAX_POINT_SIZE + 1);
+    // 座標の精度 (1/2^PRECISION px). 0 - MAX_PRECISION
+    public static final int PRECISION = 2;
+    public static final int MAX_PRECISION = 3;
+
+    static final int TYPE_DRAW = 1;
+    static final int TYPE_CLEAR = 2;
+    static final int TYPE_UNDO = 3;
+    static final int TYPE_REDO = 4;
+
+    static final float QUANT = 4.f;
+    private static final int COLOR_INLINE = 0xFF;
+    private static final int HAS_RATES = 0x80;
+    private static final int HAS_PEN = 0x40;
+    private static final int PRECISION_SHIFT = 4;
+    private static final int ACTION_MASK = 0x0F;
+    // MotionEvent.ACTION_MOVE (サーバからも使うのでAndroidの型は参照しない)
+    static final int ACTION_MOVE = 2;
+
+    // よく使う色はインデックス1byteで送る
+    static final int[] PALETTE = {
+        0xFFFFFFFF, // white (消しゴム)
+        0xFF000000, // black
+        0xFF888888, // gray
+        0xFFFF0000, // red (初期色)
+        0xFF00FF00, // green
+        0xFF0000FF, // blue
+        0xFFFFFF00, // yellow
+        0xFF00FFFF, // cyan
+        0xFFFF00FF, // magenta
+        0xFF444444, // dark gray
+        0xFFCCCCCC, // light gray
+    };
+
+    private MessageCodec() {}
+
+    // outに書き込む. 書き込めない種類のメッセージならfalse
+    public static boolean encode(DrawMessage m, int peer, ByteBuffer out) {
+        return encode(m, peer, out, PRECISION);
+    }
+
+    // precision: 座標の精度 (0 - MAX_PRECISION). 細かくするほど1点のbyte数が増える
+    public static boolean encode(DrawMessage m, int peer, ByteBuffer out, int precision) {
+        if(precision < 0 || precision > MAX_PRECISION) throw new IllegalArgumentException("precision: " + precision);
+        if("draw".equals(m.type)) {
+            final int n = m.getPointCount();
+            if(n > MAX_POINTS || m.action < 0 || m.action > ACTION_MASK) return false;
+            final boolean pen = m.action != ACTION_MOVE;
+            out.put((byte)(VERSION << 4 | TYPE_DRAW));
+            putVarint(out, peer);
+            putVarint(out, m.seq);
+            putVarint(out, m.stroke);
+            out.put((byte)(m.action | precision << PRECISION_SHIFT | (pen ? HAS_PEN : 0) | (m.rates != null ? HAS_RATES : 0)));
+            if(pen) {
+                putVarint(out, Math.round(m.width * QUANT));
+                putColor(out, m.color);
+            }
+            putVarint(out, n);
+            if(m.points != null) {
+                StrokeCodec.putPoints(out, m.points, n, precision);
+            } else {
+                StrokeCodec.putPoint(out, m.x, m.y, precision);
+            }
+            if(m.rates != null) {
+                for(int i = 0; i < n; ++i) out.put((byte)Math.round(Math.max(0, Math.min(1, m.rates[i])) * 255));
+            }
+            return true;
+        }
+        final int type = commandType(m.type);
+        if(type < 0) return false;
+        out.put((byte)(VERSION << 4 | type));
+        putVarint(out, peer);
+        putVarint(out, m.seq);
+        return true;
+    }
+
+    // inから1メッセージ読み出してoutに詰める. uuidは埋めないので呼び出し側でpeerから引くこと
+    public static boolean decode(ByteBuffer in, DrawMessage out) {
+        try {
+            int header = in.get() & 0xFF;
+            if(header >> 4 != VERSION) return false;
+            out.peer = getVarint(in);
+            out.seq = getVarint(in);
+            out.rates = null;
+            out.stroke = 0;
+            switch(header & 0x0F) {
+                case TYPE_DRAW:
+                    out.type = "draw";
+                    out.stroke = getVarint(in);
+                    final int action = in.get() & 0xFF;
+                    out.action = action & ACTION_MASK;
+                    // MOVEのペンは線の始めのものを呼び出し側で補う
+                    if((action & HAS_PEN) != 0) {
+                        out.width = getVarint(in) / QUANT;
+                        out.color = getColor(in);
+                    } else {
+                        out.width = 0;
+                        out.color = 0;
+                    }
+                    final int n = getVarint(in);
+                    if(n < 1 || n > MAX_POINTS) return false;
+                    final int precision = (action >> PRECISION_SHIFT) & 0x03;
+                    out.precision = precision;
+                    // 1点なら配列は作らない
+                    if(n == 1) {
+                        out.points = null;
+                        out.x = unzigzag(getVarint(in)) / (float)(1 << precision);
+                        out.y = unzigzag(getVarint(in)) / (float)(1 << precision);
+                    } else {
+                        out.points = new float[n * 2];
+                        StrokeCodec.getPoints(in, out.points, n, precision);
+                        out.x = out.points[n * 2 - 2];
+                        out.y = out.points[n * 2 - 1];
+                    }
+                    if((action & HAS_RATES) != 0) {
+                        out.rates = new float[n];
+                        for(int i = 0; i < n; ++i) out.rates[i] = (in.get() & 0xFF) / 255.f;
+                    }
+                    return true;
+                case TYPE_CLEAR:
+                    out.type = "clear";
+                    out.points = null;
+                    return true;
+                case TYPE_UNDO:
+                    out.type = "undo";
+                    out.points = null;
+                    return true;
+                case TYPE_REDO:
+                    out.type = "redo";
+                    out.points = null;
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+    }
+
+    // 点を持たないメッセージの種類
+    private static int commandType(String type) {
+        if("clear".equals(type)) return TYPE_CLEAR;
+        if("undo".equals(type)) return TYPE_UNDO;
+        if("redo".equals(type)) return TYPE_REDO;
+        return -1;
+    }
+
+    private static void putColor(ByteBuffer out, int color) {
+        for(int i = 0; i < PALETTE.length; ++i) {
+            if(PALETTE[i] == color) {
+                out.put((byte)i);
+                return;
+            }
+        }
+        out.put((byte)COLOR_INLINE);
+        out.putInt(color);
+    }
+
+    private static int getColor(ByteBuffer in) {
+        int index = in.get() & 0xFF;
+        if(index == COLOR_INLINE) return in.getInt();
+        if(index >= PALETTE.length) throw new BufferUnderflowException();
+        return PALETTE[index];
+    }
+
+    static void putVarint(ByteBuffer out, int v) {
+        while((v & ~0x7F) != 0) {
+            out.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte)v);
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int v = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            v |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return v;
+        }
+        throw new BufferUnderflowException();   // 5byteを超えるvarintは壊れている
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+}
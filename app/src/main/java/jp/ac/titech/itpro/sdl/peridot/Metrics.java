@@ -0,0 +1,239 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// 描画と通信の計測 (カウンタ, 待ち時間のヒストグラム, ゲージ)
+// 記録はロックもオブジェクトの生成もしない. enabledがfalseの間は呼ぶ側でvolatileを1回読むだけ
+// snapshotで今の値を取り出し (区間ごとに見たいときはリセットする), 文字列にしてログやファイルに書く
+final class Metrics {
+
+    // 計測するかどうか. 記録する側は if(Metrics.enabled) で囲む
+    static volatile boolean enabled = false;
+
+    // 入力 (onTouchEvent) から画面に反映する (invalidate) まで
+    static final Histogram INPUT_TO_PIXEL = new Histogram("input_to_pixel", "us");
+    // リモートの点を受け取って (onMessage) から画面に反映するまで
+    static final Histogram REMOTE_TO_PIXEL = new Histogram("remote_to_pixel", "us");
+    // 描画スレッドが1回にキューを流して表示用の面に写すまで
+    static final Histogram RENDER_FRAME = new Histogram("render_frame", "us");
+    // onDrawにかかった時間
+    static final Histogram UI_DRAW = new Histogram("ui_draw", "us");
+
+    static final Counter DABS = new Counter("dabs");
+    static final Counter SEGMENTS = new Counter("segments");
+    static final Counter MESSAGES_IN = new Counter("messages_in");
+    static final Counter MESSAGES_OUT = new Counter("messages_out");
+
+    // 描画スレッドが1回に流した命令数
+    static final Gauge RENDER_QUEUE = new Gauge("render_queue");
+    // 切れている間にたまった送信待ち
+    static final Gauge OUTBOX = new Gauge("outbox");
+    // UIスレッドに1回で渡した受信メッセージの数
+    static final Gauge INBOUND_BATCH = new Gauge("inbound_batch");
+
+    private static final Histogram[] HISTOGRAMS = {INPUT_TO_PIXEL, REMOTE_TO_PIXEL, RENDER_FRAME, UI_DRAW};
+    private static final Counter[] COUNTERS = {DABS, SEGMENTS, MESSAGES_IN, MESSAGES_OUT};
+    private static final Gauge[] GAUGES = {RENDER_QUEUE, OUTBOX, INBOUND_BATCH};
+
+    private Metrics() {}
+
+    static final class Counter {
+        final String name;
+        private final AtomicLong value = new AtomicLong();
+        Counter(String name) {
+            this.name = name;
+        }
+        void increment() {
+            value.incrementAndGet();
+        }
+        void add(long n) {
+            value.addAndGet(n);
+        }
+        long get() {
+            return value.get();
+        }
+    }
+
+    // 最後に設定した値と, 前回のsnapshotからの最大値
+    static final class Gauge {
+        final String name;
+        private final AtomicLong value = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        Gauge(String name) {
+            this.name = name;
+        }
+        void set(long v) {
+            value.set(v);
+            updateMax(max, v);
+        }
+        long get() {
+            return value.get();
+        }
+    }
+
+    // HdrHistogramと同じ考え方の対数線形なバケット
+    // 2の冪ごとにSUB個に分けるので, 相対誤差は 1/SUB 以内 (SUB未満はそのままの値)
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+        final String name;
+        final String unit;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        void record(long v) {
+            if(v < 0) v = 0;
+            counts.incrementAndGet(index(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            updateMax(max, v);
+        }
+
+        // System.nanoTime() で測った開始時刻からの経過をマイクロ秒で
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        static int index(long v) {
+            if(v < SUB) return (int)v;
+            final int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            return (shift + 1) * SUB + (int)(v >>> shift) - SUB;
+        }
+
+        // バケットiに入る値の範囲 [lowest(i), lowest(i + 1))
+        static long lowest(int i) {
+            if(i < SUB) return i;
+            final int shift = i / SUB - 1;
+            return (long)(SUB + i % SUB) << shift;
+        }
+
+        HistogramSnapshot snapshot(boolean reset) {
+            long[] c = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; ++i) c[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            if(reset) return new HistogramSnapshot(this, c, count.getAndSet(0), sum.getAndSet(0), max.getAndSet(0));
+            return new HistogramSnapshot(this, c, count.get(), sum.get(), max.get());
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long v) {
+        long current;
+        while(v > (current = max.get()) && !max.compareAndSet(current, v)) {
+            // 他のスレッドに先を越されたらやり直す
+        }
+    }
+
+    static final class HistogramSnapshot {
+        final String name;
+        final String unit;
+        final long count;
+        final long sum;
+        final long max;
+        private final long[] counts;
+
+        private HistogramSnapshot(Histogram h, long[] counts, long count, long sum, long max) {
+            this.name = h.name;
+            this.unit = h.unit;
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double)sum / count;
+        }
+
+        // p: 0 - 100. バケットの中央の値を返す (maxは超えない)
+        long percentile(double p) {
+            long total = 0;
+            for(long c : counts) total += c;
+            if(total == 0) return 0;
+            final long rank = Math.max(1, (long)Math.ceil(p / 100 * total));
+            long seen = 0;
+            for(int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if(seen >= rank) {
+                    final long lo = Histogram.lowest(i);
+                    final long hi = i + 1 < counts.length ? Histogram.lowest(i + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(max, lo + (hi - lo) / 2);
+                }
+            }
+            return max;
+        }
+    }
+
+    static final class Snapshot {
+        final long time;            // System.nanoTime()
+        final HistogramSnapshot[] histograms;
+        final long[] counters;
+        final long[] gauges;
+        final long[] gaugeMax;
+
+        private Snapshot(long time, HistogramSnapshot[] histograms, long[] counters, long[] gauges, long[] gaugeMax) {
+            this.time = time;
+            this.histograms = histograms;
+            this.counters = counters;
+            this.gauges = gauges;
+            this.gaugeMax = gaugeMax;
+        }
+
+        HistogramSnapshot histogram(String name) {
+            for(HistogramSnapshot h : histograms) if(h.name.equals(name)) return h;
+            return null;
+        }
+
+        long counter(String name) {
+            for(int i = 0; i < COUNTERS.length; ++i) if(COUNTERS[i].name.equals(name)) return counters[i];
+            return 0;
+        }
+
+        // previous (nullでもよい) からの1秒あたりの増え方も付けて1行ずつ
+        String format(Snapshot previous) {
+            final StringBuilder sb = new StringBuilder();
+            for(HistogramSnapshot h : histograms) {
+                sb.append(String.format(Locale.US, "%s: n=%d mean=%.0f p50=%d p90=%d p99=%d max=%d %s%n",
+                    h.name, h.count, h.mean(), h.percentile(50), h.percentile(90), h.percentile(99), h.max, h.unit));
+            }
+            final double seconds = previous == null ? 0 : (time - previous.time) / 1e9;
+            for(int i = 0; i < COUNTERS.length; ++i) {
+                sb.append(COUNTERS[i].name).append(": ").append(counters[i]);
+                if(seconds > 0) {
+                    sb.append(String.format(Locale.US, " (%.1f/s)", (counters[i] - previous.counters[i]) / seconds));
+                }
+                sb.append('\n');
+            }
+            for(int i = 0; i < GAUGES.length; ++i) {
+                sb.append(GAUGES[i].name).append(": ").append(gauges[i]).append(" (max ").append(gaugeMax[i]).append(")\n");
+            }
+            return sb.toString();
+        }
+    }
+
+    // 今の値を取り出す. resetならヒストグラムとゲージの最大値は次の区間のために空にする (カウンタは累積のまま)
+    static Snapshot snapshot(boolean reset) {
+        HistogramSnapshot[] hs = new HistogramSnapshot[HISTOGRAMS.length];
+        for(int i = 0; i < hs.length; ++i) hs[i] = HISTOGRAMS[i].snapshot(reset);
+        long[] cs = new long[COUNTERS.length];
+        for(int i = 0; i < cs.length; ++i) cs[i] = COUNTERS[i].get();
+        long[] gs = new long[GAUGES.length];
+        long[] gm = new long[GAUGES.length];
+        for(int i = 0; i < gs.length; ++i) {
+            gs[i] = GAUGES[i].get();
+            gm[i] = reset ? GAUGES[i].max.getAndSet(gs[i]) : GAUGES[i].max.get();
+        }
+        return new Snapshot(System.nanoTime(), hs, cs, gs, gm);
+    }
+}
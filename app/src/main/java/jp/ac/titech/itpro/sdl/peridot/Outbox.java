@@ -0,0 +1,129 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import android.view.MotionEvent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+// 切断中に送れなかったメッセージを再接続まで取っておく
+// 同じ線のMOVEは1つにまとめ, 点の数が上限を超えたら古い線から丸ごと捨てる
+// 捨てるのは線 (指ごとのstroke) 単位で, clearやundoなどの操作は捨てない
+class Outbox {
+
+    private final ArrayDeque<DrawMessage> messages = new ArrayDeque<>();
+    private final int maxPoints;
+    private int points = 0;
+    private int dropped = 0;
+    // DOWNを捨てた線 (strokeごとのビット). UPが来るまで続きも捨てる
+    private int skipping = 0;
+    // そのうち相手がDOWNを受け取っている線. UPだけは送って線を終わらせる
+    private int closing = 0;
+
+    Outbox(int maxPoints) {
+        this.maxPoints = maxPoints;
+    }
+
+    synchronized void add(DrawMessage message) {
+        if(skip(message)) return;
+        DrawMessage last = messages.peekLast();
+        if(canMerge(last, message)) {
+            last.append(message);
+        } else {
+            messages.addLast(message);
+        }
+        points += message.getPointCount();
+        while(points > maxPoints && messages.size() > 1 && dropOldestStroke()) ;
+    }
+
+    // 頭を捨てた線の続きならtrue (送らずに捨てる). 再接続してから直接送るメッセージもこれを通す
+    synchronized boolean skip(DrawMessage message) {
+        if(!"draw".equals(message.type)) return false;
+        final int bit = 1 << message.stroke;
+        if((skipping & bit) == 0) return false;
+        if(isEnd(message)) {
+            skipping &= ~bit;
+            if((closing & bit) != 0) {
+                closing &= ~bit;
+                return false;
+            }
+        }
+        ++dropped;
+        return true;
+    }
+
+    // 入れた順に全部取り出す
+    synchronized List<DrawMessage> drain() {
+        List<DrawMessage> out = new ArrayList<>(messages);
+        messages.clear();
+        points = 0;
+        return out;
+    }
+
+    synchronized void clear() {
+        messages.clear();
+        points = 0;
+        skipping = 0;
+        closing = 0;
+    }
+
+    synchronized int size() {
+        return messages.size();
+    }
+
+    // あふれて捨てたメッセージの数
+    synchronized int getDropped() {
+        return dropped;
+    }
+
+    private static boolean canMerge(DrawMessage a, DrawMessage b) {
+        return a != null && "draw".equals(a.type) && "draw".equals(b.type)
+            && a.action == MotionEvent.ACTION_MOVE && b.action == MotionEvent.ACTION_MOVE && a.stroke == b.stroke
+            && a.width == b.width && a.color == b.color && (a.rates == null) == (b.rates == null)
+            && a.getPointCount() + b.getPointCount() <= MessageCodec.MAX_POINTS;
+    }
+
+    private static boolean isEnd(DrawMessage m) {
+        return m.action == MotionEvent.ACTION_UP || m.action == MotionEvent.ACTION_CANCEL;
+    }
+
+    // 一番古い線のDOWNからUPまでを捨てる. 間に入っているほかの指の線や操作はそのまま
+    // 切れる前に描き始めた線は相手がDOWNを受け取っているので, UPだけ残す
+    private boolean dropOldestStroke() {
+        DrawMessage first = null;
+        for(DrawMessage m : messages) {
+            if("draw".equals(m.type) && !isEnd(m)) {
+                first = m;
+                break;
+            }
+        }
+        if(first == null) return false;
+        final int stroke = first.stroke;
+        final boolean started = first.action != MotionEvent.ACTION_DOWN;
+        boolean found = false, ended = false;
+        Iterator<DrawMessage> it = messages.iterator();
+        while(it.hasNext()) {
+            DrawMessage m = it.next();
+            // firstより前にある同じstrokeの線は残したUPだけ
+            if(m == first) found = true;
+            if(!found || !"draw".equals(m.type) || m.stroke != stroke) continue;
+            if(isEnd(m)) {
+                ended = true;
+                if(started) break;
+            }
+            it.remove();
+            points -= m.getPointCount();
+            ++dropped;
+            if(ended) break;
+        }
+        // まだ描いている線ならこの先のMOVEも捨てる
+        if(!ended) {
+            skipping |= 1 << stroke;
+            if(started) closing |= 1 << stroke;
+        }
+        return true;
+    }
+}
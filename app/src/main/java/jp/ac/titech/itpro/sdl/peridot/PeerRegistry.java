@@ -0,0 +1,121 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+
+// リモートの相手ごとの状態 (UIスレッドだけが触る)
+// 相手はuuidごとに1つ作って使い回し, 番号 (id) を履歴のownerに, 描いている線 (指ごと) を描画スロットで持つ
+// ACTION_UPが届かずに残った線は一定時間点が来なければ終わらせてスロットを返す
+// 部屋を出ていった相手はremoveで外す. 番号は使い回さない (履歴に前の相手の線が残っている)
+class PeerRegistry {
+
+    static final int NONE = -1;
+    // 1人が同時に描ける線の数. これ以上の番号で届いたものは捨てる
+    static final int MAX_STROKES = Communicator.MAX_STROKES;
+
+    static class Stroke {
+        final Peer peer;
+        int slot = NONE;        // 描いている線の描画スロット
+        long lastSeen;          // 最後に点が来た時刻 (ms)
+        boolean orphaned;       // 線の途中で期限切れにした. 続きが来たら新しい線にする
+        Stroke(Peer peer) {
+            this.peer = peer;
+        }
+    }
+
+    static class Peer {
+        final String uuid;
+        final int id;           // 1から. 履歴のowner
+        // 線の番号ごとの状態. 使った番号の分だけ作る
+        private final Stroke[] strokes = new Stroke[MAX_STROKES];
+        Peer(String uuid, int id) {
+            this.uuid = uuid;
+            this.id = id;
+        }
+        // 範囲外ならnull
+        Stroke stroke(int n) {
+            if(n < 0 || n >= strokes.length) return null;
+            if(strokes[n] == null) strokes[n] = new Stroke(this);
+            return strokes[n];
+        }
+    }
+
+    interface Expired {
+        void expired(Peer peer, int slot);
+    }
+
+    private final HashMap<String, Peer> peers = new HashMap<>();
+    // 同じ相手から続けて届くことが多いので直前の相手を先に見る
+    private Peer last;
+    private int nextId = 1;
+    private final BitSet usedSlots = new BitSet();
+    private final int firstSlot;
+    private int drawing = 0;
+
+    // firstSlotより前のスロットはローカル用
+    PeerRegistry(int firstSlot) {
+        this.firstSlot = firstSlot;
+    }
+
+    Peer get(String uuid) {
+        if(last != null && last.uuid.equals(uuid)) return last;
+        Peer peer = peers.get(uuid);
+        if(peer == null) {
+            peer = new Peer(uuid, nextId++);
+            peers.put(uuid, peer);
+        }
+        last = peer;
+        return peer;
+    }
+
+    // 出ていった相手を外す. 描きかけの線は終わらせてcallbackにスロットを渡す
+    void remove(String uuid, Expired callback) {
+        final Peer peer = peers.remove(uuid);
+        if(peer == null) return;
+        if(last == peer) last = null;
+        for(Stroke stroke : peer.strokes) {
+            if(stroke == null || stroke.slot == NONE) continue;
+            callback.expired(peer, end(stroke));
+        }
+    }
+
+    // 新しい線にスロットを割り当てる. 前の線が残っていれば先にendすること
+    int begin(Stroke stroke, long now) {
+        if(stroke.slot != NONE) throw new IllegalStateException(stroke.peer.uuid + " is still drawing");
+        stroke.slot = usedSlots.nextClearBit(firstSlot);
+        usedSlots.set(stroke.slot);
+        stroke.lastSeen = now;
+        stroke.orphaned = false;
+        ++drawing;
+        return stroke.slot;
+    }
+
+    // 線を終わらせて使っていたスロットを返す
+    int end(Stroke stroke) {
+        final int slot = stroke.slot;
+        if(slot == NONE) return NONE;
+        usedSlots.clear(slot);
+        stroke.slot = NONE;
+        --drawing;
+        return slot;
+    }
+
+    boolean isDrawing() {
+        return drawing > 0;
+    }
+
+    // timeoutより長く点が来ていない線を終わらせる
+    void expire(long now, long timeout, Expired callback) {
+        if(drawing == 0) return;
+        for(Peer peer : peers.values()) {
+            for(Stroke stroke : peer.strokes) {
+                if(stroke == null || stroke.slot == NONE || now - stroke.lastSeen < timeout) continue;
+                final int slot = end(stroke);
+                stroke.orphaned = true;
+                callback.expired(peer, slot);
+            }
+        }
+    }
+}
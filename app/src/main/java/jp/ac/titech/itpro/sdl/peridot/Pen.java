@@ -1,20 +1,23 @@
 package jp.ac.titech.itpro.sdl.peridot;
 
 
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.util.Pair;
-
-
-public class Pen {
-    private final DrawView view;
-    private final Paint paint = new Paint();
-    private final Paint eraser = new Paint();
-    private int color = Color.GRAY;
+// 色と幅と形を持ち, StrokeEngineから渡された点をRendererに描く
+// Androidの型を使わないので, Rasterと組み合わせればJVMだけで描ける
+public class Pen implements StrokeEngine.Stamp {
+    // 消しゴムの線を送るときの色. 受け手の描画には使わない (古いクライアントはこの色のペンとして描く)
+    // 描くときはRendererの背景色で塗る
+    public static final int ERASER = 0xFFFFFFFF;
+
+    private final Renderer renderer;
+    private int color = 0xFF888888;
     private float width = 6.0f;
     private Shape shape = Shape.Circle;
     private Mode mode = Mode.Draw;
 
+    private static final Shape[] SHAPES = Shape.values();
+    private static final Mode[] MODES = Mode.values();
+    private static final StrokeEngine.Mode[] RENDER_MODES = StrokeEngine.Mode.values();
+
     public enum Shape {
         Square,
         Circle
@@ -26,18 +29,17 @@ public class Pen {
     }
 
     // constructors
-    public Pen(DrawView view) {
-        this.view = view;
-        eraser.setColor(Color.WHITE);
+    public Pen(Renderer renderer) {
+        this.renderer = renderer;
     }
 
-    public Pen(DrawView view, int color, float width) {
-        this(view);
+    public Pen(Renderer renderer, int color, float width) {
+        this(renderer);
         set(color, width, Shape.Circle);
     }
 
-    public Pen(DrawView view, int color, float width, Shape shape) {
-        this(view);
+    public Pen(Renderer renderer, int color, float width, Shape shape) {
+        this(renderer);
         set(color, width, shape);
     }
 
@@ -49,7 +51,6 @@ public class Pen {
 
     public void setColor(int color) {
         this.color = color;
-        paint.setColor(color);
     }
 
     public void setWidth(float width) {
@@ -80,36 +81,51 @@ public class Pen {
         return shape;
     }
 
+    // 実際に塗る色
+    private int paintColor() {
+        return mode == Mode.Draw ? color : renderer.getEraserColor();
+    }
+
+    // 幅 rate * width のスタンプを押す
+    @Override
     public void draw(float x, float y, float rate) {
-        switch(shape) {
-            case Circle:
-                drawCircle(x, y, rate);
-                break;
-            case Square:
-                drawRect(x, y, rate);
-                break;
-        }
+        if(Metrics.enabled) Metrics.DABS.increment();
+        renderer.drawStamp(shape, x, y, rate * width, paintColor());
     }
 
     public void draw(float x, float y) {
         draw(x, y, 1.0f);
     }
 
-    public void draw(Pair<Float, Float> p, float rate) {
-        draw(p.first, p.second, rate);
+    @Override
+    public void drawSegment(float x1, float y1, float x2, float y2, float x3, float y3) {
+        if(Metrics.enabled) Metrics.SEGMENTS.increment();
+        renderer.drawSegment(shape, x1, y1, x2, y2, x3, y3, width, paintColor());
+    }
+
+    // 線ごとの設定 (形, 消しゴムか, 描き方) を1つのintにまとめる. キューや履歴にはこれで持つ
+    static int flags(Pen pen, StrokeEngine.Mode renderMode) {
+        return flags(pen.getShape(), pen.getMode(), renderMode);
     }
 
-    public void draw(Pair<Float, Float> p) {
-        draw(p.first, p.second);
+    static int flags(Shape shape, Mode mode, StrokeEngine.Mode renderMode) {
+        return shape.ordinal() | mode.ordinal() << 2 | renderMode.ordinal() << 4;
     }
 
-    private void drawRect(float x, float y, float rate) {
-        float half = rate * width / 2.0f;
-        view.drawRect(x, y, half, half, mode == Mode.Draw ? paint : eraser);
+    static void configure(Pen pen, StrokeEngine engine, int color, float width, int flags) {
+        pen.set(color, width, SHAPES[flags & 0x3]);
+        pen.setMode(MODES[(flags >> 2) & 0x3]);
+        engine.setMode(RENDER_MODES[(flags >> 4) & 0x3]);
+        // 四角は斜めに進むと角がぎざぎざに残るので1pxごとのまま
+        final float spacing = pen.getShape() == Shape.Circle ? StrokeEngine.SPACING : 0;
+        engine.setSpacing(width, spacing, StrokeEngine.MIN_SPACING);
     }
 
-    private void drawCircle(float x, float y, float rate) {
-        float half = rate * width / 2.0f;
-        view.drawCircle(x, y, half, mode == Mode.Draw ? paint : eraser);
+    // 履歴の線1本を描き直す
+    static void replay(StrokeLog.Op op, Pen pen, StrokeEngine engine) {
+        configure(pen, engine, op.color, op.width, op.flags);
+        engine.begin(pen);
+        for(int i = 0; i < op.count; ++i) engine.add(op.points[i * 2], op.points[i * 2 + 1], op.rates[i]);
+        engine.end();
     }
 }
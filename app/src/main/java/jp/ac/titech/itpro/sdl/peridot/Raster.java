@@ -0,0 +1,221 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.util.Arrays;
+
+
+// Androidを使わずにint[] (ARGB) に描くキャンバス. サーバでのサムネイルやJVMでのテスト, ベンチマーク用
+// 画素の中心までの距離からアンチエイリアスの濃さを決め, 不透明な色を重ねて塗る
+// 履歴 (StrokeLog) の描き直し先にもなるので, セッションを丸ごと描き直せる
+public class Raster implements Renderer, StrokeLog.Target<int[]> {
+
+    private final int width, height;
+    private final int background;
+    private final int[] pixels;
+
+    // 履歴を描き直すとき用
+    private final StrokeEngine engine = new StrokeEngine();
+    private final Pen pen = new Pen(this);
+
+    // 区間を折れ線にしたもの [x0, y0, x1, y1, ...]. 使い回す
+    private float[] poly = new float[64];
+    private final float[] dir = new float[2];
+    // 区間ごとの濃さ. 使い回す
+    private float[] scratch = new float[1024];
+    private static final float FLATNESS = 0.1f;     // 折れ線にするときのずれ (px)
+
+    public Raster(int width, int height, int background) {
+        this.width = width;
+        this.height = height;
+        this.background = background;
+        pixels = new int[width * height];
+        clear();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getEraserColor() {
+        return background;
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    // 中身をそのまま返す (書き換えない)
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public void clear() {
+        Arrays.fill(pixels, background);
+    }
+
+    @Override
+    public void drawStamp(Pen.Shape shape, float x, float y, float diameter, int color) {
+        final float r = diameter / 2;
+        final int x0 = Math.max(0, (int)Math.floor(x - r - 1)), x1 = Math.min(width - 1, (int)Math.ceil(x + r + 1));
+        final int y0 = Math.max(0, (int)Math.floor(y - r - 1)), y1 = Math.min(height - 1, (int)Math.ceil(y + r + 1));
+        for(int py = y0; py <= y1; ++py) {
+            for(int px = x0; px <= x1; ++px) {
+                final float dx = px + 0.5f - x, dy = py + 0.5f - y;
+                final float c;
+                if(shape == Pen.Shape.Circle) {
+                    c = coverage(r - (float)Math.sqrt(dx * dx + dy * dy));
+                } else {
+                    c = coverage(r - Math.abs(dx)) * coverage(r - Math.abs(dy));
+                }
+                blend(py * width + px, color, c);
+            }
+        }
+    }
+
+    @Override
+    public void drawSegment(Pen.Shape shape, float x1, float y1, float x2, float y2, float x3, float y3, float width, int color) {
+        final float r = width / 2;
+        // 折れ線にする. 弦からのずれは |p1 - 2p2 + p3| / (4n^2) なので, FLATNESS以下になるだけ分ける
+        final float ddx = x1 - 2 * x2 + x3, ddy = y1 - 2 * y2 + y3;
+        final int n = Math.max(1, (int)Math.ceil(Math.sqrt(Math.sqrt(ddx * ddx + ddy * ddy) / (4 * FLATNESS))));
+        if(poly.length < (n + 1) * 2) poly = new float[(n + 1) * 4];
+        for(int i = 0; i <= n; ++i) {
+            final float t = i * 1.0f / n;
+            poly[i * 2] = StrokeEngine.interpolate(x1, x2, x3, t);
+            poly[i * 2 + 1] = StrokeEngine.interpolate(y1, y2, y3, t);
+        }
+        // 四角い端は端の向きに半幅だけ伸ばして平らに切る
+        final boolean square = shape == Pen.Shape.Square;
+        float sx = 0, sy = 0, ex = 0, ey = 0;
+        if(square) {
+            if(direction(poly, 1, 0, n, dir)) {
+                sx = dir[0];
+                sy = dir[1];
+                poly[0] += sx * r;
+                poly[1] += sy * r;
+            }
+            if(direction(poly, n - 1, n, n, dir)) {
+                ex = dir[0];
+                ey = dir[1];
+                poly[n * 2] += ex * r;
+                poly[n * 2 + 1] += ey * r;
+            }
+        }
+
+        // 区間全体の範囲で濃さの最大を取ってから1回だけ重ねる (継ぎ目で2回塗らない)
+        final int bx0 = clampX(min(poly, 0, n) - r - 1), bx1 = clampX(max(poly, 0, n) + r + 1);
+        final int by0 = clampY(min(poly, 1, n) - r - 1), by1 = clampY(max(poly, 1, n) + r + 1);
+        final int bw = bx1 - bx0 + 1, bh = by1 - by0 + 1;
+        if(bw <= 0 || bh <= 0) return;
+        if(scratch.length < bw * bh) scratch = new float[bw * bh * 2];
+        Arrays.fill(scratch, 0, bw * bh, 0);
+        for(int i = 0; i < n; ++i) {
+            final float ax = poly[i * 2], ay = poly[i * 2 + 1], cx1 = poly[i * 2 + 2], cy1 = poly[i * 2 + 3];
+            final int px0 = clampX(Math.min(ax, cx1) - r - 1), px1 = clampX(Math.max(ax, cx1) + r + 1);
+            final int py0 = clampY(Math.min(ay, cy1) - r - 1), py1 = clampY(Math.max(ay, cy1) + r + 1);
+            for(int py = py0; py <= py1; ++py) {
+                for(int px = px0; px <= px1; ++px) {
+                    final float c = coverage(r - StrokeEngine.segmentDistance(ax, ay, cx1, cy1, px + 0.5f, py + 0.5f));
+                    final int k = (py - by0) * bw + (px - bx0);
+                    if(c > scratch[k]) scratch[k] = c;
+                }
+            }
+        }
+        for(int py = by0; py <= by1; ++py) {
+            for(int px = bx0; px <= bx1; ++px) {
+                float c = scratch[(py - by0) * bw + (px - bx0)];
+                if(square && c > 0) {
+                    // 端の外側 (向きの逆側) を切り落とす
+                    final float cx = px + 0.5f, cy = py + 0.5f;
+                    c = Math.min(c, coverage((poly[0] - cx) * sx + (poly[1] - cy) * sy));
+                    c = Math.min(c, coverage((poly[n * 2] - cx) * ex + (poly[n * 2 + 1] - cy) * ey));
+                }
+                blend(py * this.width + px, color, c);
+            }
+        }
+    }
+
+    private int clampX(float x) {
+        return Math.max(0, Math.min(width - 1, (int)Math.floor(x)));
+    }
+
+    private int clampY(float y) {
+        return Math.max(0, Math.min(height - 1, (int)Math.floor(y)));
+    }
+
+    private static float min(float[] xy, int offset, int n) {
+        float v = xy[offset];
+        for(int i = 1; i <= n; ++i) v = Math.min(v, xy[i * 2 + offset]);
+        return v;
+    }
+
+    private static float max(float[] xy, int offset, int n) {
+        float v = xy[offset];
+        for(int i = 1; i <= n; ++i) v = Math.max(v, xy[i * 2 + offset]);
+        return v;
+    }
+
+    // poly[from] -> poly[to] の単位ベクトル (端から外向き). 長さ0なら近い点を探す
+    private static boolean direction(float[] poly, int from, int to, int n, float[] out) {
+        final int step = from < to ? -1 : 1;
+        for(int i = from; i >= 0 && i <= n; i += step) {
+            final float dx = poly[to * 2] - poly[i * 2], dy = poly[to * 2 + 1] - poly[i * 2 + 1];
+            final float len = (float)Math.sqrt(dx * dx + dy * dy);
+            if(len > 0) {
+                out[0] = dx / len;
+                out[1] = dy / len;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 縁までの距離 (内側が正) -> 画素の覆われ具合
+    private static float coverage(float inside) {
+        return Math.max(0, Math.min(1, inside + 0.5f));
+    }
+
+    // 不透明な色をcの濃さで重ねる
+    private void blend(int i, int color, float c) {
+        if(c <= 0) return;
+        final int a = Math.round(c * 255);
+        if(a >= 255) {
+            pixels[i] = color;
+            return;
+        }
+        final int dst = pixels[i];
+        final int r = mix(color >> 16 & 0xFF, dst >> 16 & 0xFF, a);
+        final int g = mix(color >> 8 & 0xFF, dst >> 8 & 0xFF, a);
+        final int b = mix(color & 0xFF, dst & 0xFF, a);
+        pixels[i] = 0xFF000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int mix(int src, int dst, int a) {
+        return (src * a + dst * (255 - a) + 127) / 255;
+    }
+
+    // ここから3つは履歴の描き直し
+    @Override
+    public int[] snapshot() {
+        return pixels.clone();
+    }
+
+    @Override
+    public void restore(int[] snapshot) {
+        System.arraycopy(snapshot, 0, pixels, 0, pixels.length);
+    }
+
+    @Override
+    public void replay(StrokeLog.Op op) {
+        if(op.clear) {
+            clear();
+            return;
+        }
+        Pen.replay(op, pen, engine);
+    }
+}
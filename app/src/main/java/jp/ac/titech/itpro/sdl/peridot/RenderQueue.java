@@ -0,0 +1,131 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.util.Arrays;
+
+
+// UIスレッドから描画スレッドへ線の点を渡すキュー
+// 点ごとにオブジェクトを作らないように命令をint/floatの配列に詰め, 表と裏の2面を入れ替えて使う
+class RenderQueue {
+
+    static final int BEGIN = 1;
+    static final int POINT = 2;
+    static final int END = 3;
+    static final int CLEAR = 4;     // キャンバスを消す arg: owner
+    static final int REFRESH = 5;   // 画面全体を描き直す
+    static final int TRIM = 6;      // arg: ComponentCallbacks2のlevel
+    static final int UNDO = 7;      // arg: owner
+    static final int REDO = 8;      // arg: owner
+    static final int SNAPSHOT = 9;  // 今のタイルの組を取る
+    static final int LOAD = 10;     // 受け取ったタイルで置き換える
+    static final int PICK = 11;     // スポイト arg: x << 16 | y
+    static final int RESTORE = 12;  // 保存しておいたキャンバスを読み込む
+
+    interface Handler {
+        void begin(int slot, int owner, int color, float width, int flags);
+        void point(int slot, float x, float y, float rate);
+        void end(int slot);
+        void command(int op, int arg);
+    }
+
+    // 1命令あたり int5つ (op, slot/arg, owner, color, flags) と float3つ (x/width, y, rate)
+    private static final int INTS = 5;
+    private static final int FLOATS = 3;
+
+    private int[] ints = new int[INTS * 256];
+    private float[] floats = new float[FLOATS * 256];
+    private int[] backInts = new int[INTS * 256];
+    private float[] backFloats = new float[FLOATS * 256];
+    private int count = 0;
+    private boolean closed = false;
+
+    synchronized void begin(int slot, int owner, int color, float width, int flags) {
+        put(BEGIN, slot, owner, color, flags, width, 0, 0);
+    }
+
+    synchronized void point(int slot, float x, float y) {
+        put(POINT, slot, 0, 0, 0, x, y, 1.0f);
+    }
+
+    synchronized void point(int slot, float x, float y, float rate) {
+        put(POINT, slot, 0, 0, 0, x, y, rate);
+    }
+
+    // xy: [x0, y0, x1, y1, ...] のうち先頭n点
+    synchronized void points(int slot, float[] xy, int n) {
+        points(slot, xy, null, n);
+    }
+
+    // rates: 点ごとの幅の倍率. nullなら全部1
+    synchronized void points(int slot, float[] xy, float[] rates, int n) {
+        for(int i = 0; i < n; ++i) put(POINT, slot, 0, 0, 0, xy[i * 2], xy[i * 2 + 1], rates != null ? rates[i] : 1.0f);
+    }
+
+    synchronized void end(int slot) {
+        put(END, slot, 0, 0, 0, 0, 0, 0);
+    }
+
+    synchronized void command(int op, int arg) {
+        put(op, arg, 0, 0, 0, 0, 0, 0);
+    }
+
+    private void put(int op, int a, int b, int c, int d, float x, float y, float rate) {
+        if((count + 1) * INTS > ints.length) {
+            ints = Arrays.copyOf(ints, ints.length * 2);
+            floats = Arrays.copyOf(floats, floats.length * 2);
+        }
+        ints[count * INTS] = op;
+        ints[count * INTS + 1] = a;
+        ints[count * INTS + 2] = b;
+        ints[count * INTS + 3] = c;
+        ints[count * INTS + 4] = d;
+        floats[count * FLOATS] = x;
+        floats[count * FLOATS + 1] = y;
+        floats[count * FLOATS + 2] = rate;
+        if(count++ == 0) notify();
+    }
+
+    // 命令が来るまで待つ. closeされたらfalse
+    synchronized boolean await() throws InterruptedException {
+        while(count == 0 && !closed) wait();
+        return !closed;
+    }
+
+    // たまっている分を全部handlerに流す. 流した命令数を返す
+    int drain(Handler handler) {
+        final int n;
+        final int[] is;
+        final float[] fs;
+        synchronized (this) {
+            // 表と裏を入れ替えて, 流している間もUIスレッドは積めるようにする
+            is = ints;
+            fs = floats;
+            ints = backInts;
+            floats = backFloats;
+            backInts = is;
+            backFloats = fs;
+            n = count;
+            count = 0;
+        }
+        for(int i = 0; i < n; ++i) {
+            final int op = is[i * INTS];
+            final int a = is[i * INTS + 1];
+            switch(op) {
+                case BEGIN: handler.begin(a, is[i * INTS + 2], is[i * INTS + 3], fs[i * FLOATS], is[i * INTS + 4]); break;
+                case POINT: handler.point(a, fs[i * FLOATS], fs[i * FLOATS + 1], fs[i * FLOATS + 2]); break;
+                case END: handler.end(a); break;
+                default: handler.command(op, a); break;
+            }
+        }
+        return n;
+    }
+
+    synchronized void open() {
+        closed = false;
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,13 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+// Penが線を描き込む先. 端末ではDrawView (タイルにCanvasで描く), JVMだけならRaster (int[]のARGB)
+// 色は不透明で, 消しゴムは描き込む先の背景色で塗るだけ
+public interface Renderer {
+    // 消しゴムの線を塗る色 (キャンバスの背景色)
+    int getEraserColor();
+    // (x, y) を中心に直径diameterの丸か四角 (軸に沿う) を押す
+    void drawStamp(Pen.Shape shape, float x, float y, float diameter, int color);
+    // 2次ベジエ曲線 (x1, y1) - (x3, y3), 制御点 (x2, y2) を線幅widthで描く. 端の形はshape, 継ぎ目は丸
+    void drawSegment(Pen.Shape shape, float x1, float y1, float x2, float y2, float x3, float y3, float width, int color);
+}
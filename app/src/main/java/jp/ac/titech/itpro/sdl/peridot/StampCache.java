@@ -0,0 +1,70 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.SparseArray;
+
+
+// 形と大きさごとのスタンプ (ALPHA_8のマスク) を作っておき, 1回のdrawBitmapで押せるようにする
+// 大きさは段階に丸めて使い回す. 小さいうちは0.5px刻み, 16pxより大きいと約6%刻み
+class StampCache {
+
+    static final float MAX_DIAMETER = 512;
+    private static final float FINE = 16;
+    private static final int FINE_STEPS = (int)(FINE * 2);
+    private static final double RATIO = Math.log(1.06);
+
+    private final SparseArray<Bitmap> stamps = new SparseArray<>();
+    private final Canvas canvas = new Canvas();
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    // 直径 -> 段階
+    static int bucket(float diameter) {
+        if(diameter <= FINE) return Math.round(diameter * 2);
+        return FINE_STEPS + (int)Math.round(Math.log(diameter / FINE) / RATIO);
+    }
+
+    // 段階 -> 直径
+    static float diameterOf(int bucket) {
+        if(bucket <= FINE_STEPS) return bucket / 2.f;
+        return (float)(FINE * Math.exp((bucket - FINE_STEPS) * RATIO));
+    }
+
+    // 大きすぎたらnull (呼び出し側でdrawCircleなどに戻す)
+    Bitmap get(Pen.Shape shape, float diameter) {
+        if(diameter > MAX_DIAMETER) return null;
+        final int bucket = bucket(diameter);
+        final int key = bucket << 1 | shape.ordinal();
+        Bitmap stamp = stamps.get(key);
+        if(stamp == null) {
+            stamp = create(shape, diameterOf(bucket));
+            stamps.put(key, stamp);
+        }
+        return stamp;
+    }
+
+    // 中心がちょうど真ん中に来るように奇数サイズ + アンチエイリアスの1pxずつ
+    private Bitmap create(Pen.Shape shape, float diameter) {
+        final int size = ((int)Math.ceil(diameter) | 1) + 2;
+        Bitmap stamp = Bitmap.createBitmap(size, size, Bitmap.Config.ALPHA_8);
+        canvas.setBitmap(stamp);
+        final float c = size / 2.f, r = diameter / 2;
+        switch(shape) {
+            case Circle:
+                canvas.drawCircle(c, c, r, paint);
+                break;
+            case Square:
+                canvas.drawRect(c - r, c - r, c + r, c + r, paint);
+                break;
+        }
+        canvas.setBitmap(null);
+        return stamp;
+    }
+
+    void clear() {
+        for(int i = 0; i < stamps.size(); ++i) stamps.valueAt(i).recycle();
+        stamps.clear();
+    }
+}
@@ -0,0 +1,164 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import android.view.MotionEvent;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+
+
+// 1本の線のMOVE点を一定時間ためて1メッセージにまとめて送る
+// 送信キューが詰まっている間は送らずにため続け, あふれそうなら途中の点を間引く
+class StrokeBatcher {
+
+    interface Sender {
+        boolean send(DrawMessage message);
+        long queueSize();   // 未送信のバイト数
+    }
+
+    private static final long CONGESTED_BYTES = 16 * 1024;
+
+    private final Sender sender;
+    private final Scheduler scheduler;
+    private final String uuid;
+    private final int stroke;
+    private final Runnable flushTask = this::onTimer;
+    private long windowMillis = 16;     // 1フレーム分
+    private float tolerance = 0;        // 送る前に間引くときの許容誤差 (px)
+
+    // ためている点
+    private final float[] pending = new float[MessageCodec.MAX_POINTS * 2];
+    private final float[] pendingRates = new float[MessageCodec.MAX_POINTS];
+    // 間引くときの作業用 (送るたびに作らない)
+    private final boolean[] keep = new boolean[MessageCodec.MAX_POINTS];
+    private final int[] stack = new int[MessageCodec.MAX_POINTS * 2];
+    private int count = 0;
+    private float width;
+    private int color;
+    private boolean withRates;  // 速さで幅を変える線なら点ごとの倍率も送る
+    private Disposable scheduled;
+
+    StrokeBatcher(Sender sender, Scheduler scheduler, String uuid) {
+        this(sender, scheduler, uuid, 0);
+    }
+
+    // stroke: 送信者の中での線の番号 (指ごとに1つ作る)
+    StrokeBatcher(Sender sender, Scheduler scheduler, String uuid, int stroke) {
+        this.sender = sender;
+        this.scheduler = scheduler;
+        this.uuid = uuid;
+        this.stroke = stroke;
+    }
+
+    // 0ならまとめずにすぐ送る
+    void setWindow(long millis) {
+        windowMillis = millis;
+    }
+
+    // ほぼ直線上に並んだ点をtolerance px以内で間引いてから送る. 0なら間引かない
+    // 幅の倍率を送る線は点の間隔で太さの変わり方が決まるので間引かない
+    synchronized void setTolerance(float px) {
+        tolerance = px;
+    }
+
+    // 1回のMotionEventの点 (履歴を含む) をまとめて追加する
+    synchronized void add(int action, float width, int color, float[] xy, int n) {
+        add(action, width, color, xy, null, n);
+    }
+
+    // rates: 点ごとの幅の倍率. nullなら送らない
+    synchronized void add(int action, float width, int color, float[] xy, float[] rates, int n) {
+        for(int i = 0; i < n; ++i) {
+            add(action, width, color, xy[i * 2], xy[i * 2 + 1], rates != null ? rates[i] : 1.0f, rates != null);
+        }
+    }
+
+    synchronized void add(int action, float width, int color, float x, float y) {
+        add(action, width, color, x, y, 1.0f, false);
+    }
+
+    private void add(int action, float width, int color, float x, float y, float rate, boolean hasRate) {
+        switch(action) {
+            case MotionEvent.ACTION_MOVE:
+                // 途中でペンが変わったら別のメッセージにする
+                if(count > 0 && (this.width != width || this.color != color || withRates != hasRate)) flush(true);
+                if(count == MessageCodec.MAX_POINTS && !flush(false)) thin();
+                this.width = width;
+                this.color = color;
+                this.withRates = hasRate;
+                pending[count * 2] = x;
+                pending[count * 2 + 1] = y;
+                pendingRates[count] = rate;
+                ++count;
+                if(windowMillis <= 0) {
+                    flush(false);
+                } else if(scheduled == null) {
+                    scheduled = scheduler.scheduleDirect(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+                }
+                break;
+            default:
+                // DOWN/UPの前後は順番を守るためにためている点を必ず出す
+                flush(true);
+                DrawMessage message = new DrawMessage("draw", uuid, action, width, color, x, y);
+                if(hasRate) message.rates = new float[] { rate };
+                message.stroke = stroke;
+                sender.send(message);
+                break;
+        }
+    }
+
+    synchronized void reset() {
+        count = 0;
+        cancel();
+    }
+
+    private synchronized void onTimer() {
+        scheduled = null;
+        if(!flush(false) && count > 0) {
+            // 詰まっているので次のフレームでもう一度
+            scheduled = scheduler.scheduleDirect(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean flush(boolean force) {
+        if(count == 0) return true;
+        if(!force && sender.queueSize() > CONGESTED_BYTES) return false;
+        if(tolerance > 0 && !withRates) count = StrokeCodec.simplify(pending, null, count, tolerance, keep, stack);
+        DrawMessage message = new DrawMessage("draw", uuid, MotionEvent.ACTION_MOVE, width, color,
+            pending[count * 2 - 2], pending[count * 2 - 1]);
+        if(count > 1) {
+            message.points = new float[count * 2];
+            System.arraycopy(pending, 0, message.points, 0, count * 2);
+        }
+        if(withRates) message.rates = Arrays.copyOf(pendingRates, count);
+        message.stroke = stroke;
+        count = 0;
+        cancel();
+        sender.send(message);
+        return true;
+    }
+
+    // 始点と終点を残して1つおきに捨てる
+    private void thin() {
+        int n = 1;
+        for(int i = 2; i < count - 1; i += 2, ++n) {
+            pending[n * 2] = pending[i * 2];
+            pending[n * 2 + 1] = pending[i * 2 + 1];
+            pendingRates[n] = pendingRates[i];
+        }
+        pending[n * 2] = pending[count * 2 - 2];
+        pending[n * 2 + 1] = pending[count * 2 - 1];
+        pendingRates[n] = pendingRates[count - 1];
+        count = n + 1;
+    }
+
+    private void cancel() {
+        if(scheduled != null) {
+            scheduled.dispose();
+            scheduled = null;
+        }
+    }
+}
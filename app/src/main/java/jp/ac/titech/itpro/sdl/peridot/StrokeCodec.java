@@ -0,0 +1,115 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+// 線の点列の符号化. 通信 (MessageCodec) と保存 (CanvasJournal) で同じものを使う
+//
+//   [x0:zigzag varint] [y0:zigzag varint] ([dx:zigzag varint] [dy:zigzag varint]) * (count - 1)
+//
+// 座標は 1/2^precision px 単位に丸めてから, 2点目からは丸めた前の点との差を書く (丸めの誤差はたまらない)
+// 手で引いた線は隣り合う点が近いので, 差はほとんど1-2byteに収まる
+// simplifyは符号化の前に, ほぼ直線上に並んだ点を間引く (Ramer-Douglas-Peucker)
+public class StrokeCodec {
+
+    // 1点に使う最大のbyte数 (varint 5byte * 2)
+    public static final int MAX_POINT_SIZE = 10;
+
+    private StrokeCodec() {}
+
+    // xy: [x0, y0, x1, y1, ...] のうち先頭count点
+    public static void putPoints(ByteBuffer out, float[] xy, int count, int precision) {
+        final float scale = 1 << precision;
+        int px = 0, py = 0;
+        for(int i = 0; i < count; ++i) {
+            final int qx = Math.round(xy[i * 2] * scale);
+            final int qy = Math.round(xy[i * 2 + 1] * scale);
+            MessageCodec.putVarint(out, MessageCodec.zigzag(qx - px));
+            MessageCodec.putVarint(out, MessageCodec.zigzag(qy - py));
+            px = qx;
+            py = qy;
+        }
+    }
+
+    // 1点だけ (配列を作らずに済むように)
+    public static void putPoint(ByteBuffer out, float x, float y, int precision) {
+        final float scale = 1 << precision;
+        MessageCodec.putVarint(out, MessageCodec.zigzag(Math.round(x * scale)));
+        MessageCodec.putVarint(out, MessageCodec.zigzag(Math.round(y * scale)));
+    }
+
+    // putPointsで書いたcount点をxyに読み出す
+    public static void getPoints(ByteBuffer in, float[] xy, int count, int precision) {
+        final float scale = 1 << precision;
+        int px = 0, py = 0;
+        for(int i = 0; i < count; ++i) {
+            px += MessageCodec.unzigzag(MessageCodec.getVarint(in));
+            py += MessageCodec.unzigzag(MessageCodec.getVarint(in));
+            xy[i * 2] = px / scale;
+            xy[i * 2 + 1] = py / scale;
+        }
+    }
+
+    // 始点と終点を結ぶ線分からtolerance px以内に収まる点を捨てて, 残った点を前に詰める
+    // rates (nullでもよい) も同じように詰める. 始点と終点は必ず残る. 残った点の数を返す
+    public static int simplify(float[] xy, float[] rates, int count, float tolerance) {
+        if(count <= 2 || tolerance <= 0) return count;
+        return simplify(xy, rates, count, tolerance, new boolean[count], new int[count * 2]);
+    }
+
+    // 作業用の配列を呼び出し側で使い回す版. keepはcount個, stackはcount * 2個以上
+    public static int simplify(float[] xy, float[] rates, int count, float tolerance, boolean[] keep, int[] stack) {
+        if(count <= 2 || tolerance <= 0) return count;
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+        // 再帰の代わりに区間をスタックに積む (区間は重ならないのでcount個あれば足りる)
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        final float tolerance2 = tolerance * tolerance;
+        while(top > 0) {
+            final int last = stack[--top];
+            final int first = stack[--top];
+            if(last - first < 2) continue;
+            int farthest = -1;
+            float max = tolerance2;
+            for(int i = first + 1; i < last; ++i) {
+                final float d = distance2(xy, i, first, last);
+                if(d > max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+            if(farthest < 0) continue;
+            keep[farthest] = true;
+            stack[top++] = first;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+        int n = 0;
+        for(int i = 0; i < count; ++i) {
+            if(!keep[i]) continue;
+            xy[n * 2] = xy[i * 2];
+            xy[n * 2 + 1] = xy[i * 2 + 1];
+            if(rates != null) rates[n] = rates[i];
+            ++n;
+        }
+        return n;
+    }
+
+    // 点iから線分 (a, b) までの距離の2乗
+    private static float distance2(float[] xy, int i, int a, int b) {
+        final float ax = xy[a * 2], ay = xy[a * 2 + 1];
+        final float dx = xy[b * 2] - ax, dy = xy[b * 2 + 1] - ay;
+        final float px = xy[i * 2] - ax, py = xy[i * 2 + 1] - ay;
+        final float len2 = dx * dx + dy * dy;
+        float t = len2 > 0 ? (px * dx + py * dy) / len2 : 0;
+        t = Math.max(0, Math.min(1, t));
+        final float ex = px - t * dx, ey = py - t * dy;
+        return ex * ex + ey * ey;
+    }
+}
@@ -0,0 +1,228 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+// 点列を3点ずつB-スプライン補間してスタンプする
+// 点もカーブも使い回しの配列に持つので, 定常状態ではオブジェクトを作らない
+public class StrokeEngine {
+
+    public interface Stamp {
+        void draw(float x, float y, float rate);
+        // 1区間を2次ベジエ曲線 (x1, y1) - (x3, y3), 制御点 (x2, y2) として一度に描く
+        void drawSegment(float x1, float y1, float x2, float y2, float x3, float y3);
+    }
+
+    public enum Mode {
+        STAMP,  // 曲線上を幅に応じた間隔でスタンプ (点ごとの幅の倍率rateが効く)
+        PATH    // 区間ごとにPathで1回だけ描く (幅は一定)
+    }
+
+    // 丸いスタンプの間隔 (幅に対する割合). 縁の波打ちは間隔^2 / (4 * 幅) 程度なので, 0.1なら幅の0.25%
+    // 曲がっているところは外側が間隔^2 * 曲率 / 8 だけ余計に波打つので, そのぶん詰める
+    // 区間のつなぎ目は折れていることがあり, 角を飛ばすと外側が欠けるので角には必ず押す
+    private static final float KINK = 0.25f;    // 角を飛ばしたときに欠けてよい大きさ (px)
+    static final float SPACING = 0.1f;
+    static final float MIN_SPACING = 1.0f;
+
+    private Stamp stamp;
+    private Mode mode = Mode.STAMP;     // PATHは呼ぶ側で選んだときだけ
+    private float width = 1.0f;
+    private float spacing = 0;          // 幅に対する割合. 0なら常にminSpacingごと
+    private float minSpacing = MIN_SPACING;
+
+    // 次のスタンプまでの残りの距離. 区間をまたいで持ち越すので継ぎ目で間隔が乱れない
+    private float remaining = 0;
+    private float lastRate = 1.0f;      // 最後に押したスタンプの倍率
+    private float curvature = 0;        // 今の区間の最大曲率
+    private float tangentX, tangentY;   // 前の区間の終点での向き
+    private boolean started = false;    // 線の最初のスタンプを押したか
+    private boolean moved = false;      // 最後のスタンプより先に進んだか
+    private float lastX, lastY, lastR;  // 最後に描いた区間の終点
+
+    // 補間待ちの点. 3つ組を作って始点を2つずらす (旧 buffer(3, 2) と同じ)
+    private final float[] xs = new float[3];
+    private final float[] ys = new float[3];
+    private final float[] rs = new float[3];
+    private int count = 0;
+
+    // 1区間分の補間点. 足りなくなったときだけ伸ばす
+    private float[] curveX = new float[256];
+    private float[] curveY = new float[256];
+    private float[] curveR = new float[256];
+
+    public void begin(Stamp stamp) {
+        this.stamp = stamp;
+        count = 0;
+        remaining = 0;
+        started = false;
+        moved = false;
+    }
+
+    public void end() {
+        // 最後のスタンプが終点に届いていなければ終点にも押す. 3つ未満の残りは描かない
+        if(stamp != null && moved) stamp.draw(lastX, lastY, lastR);
+        stamp = null;
+        count = 0;
+    }
+
+    public boolean isDrawing() {
+        return stamp != null;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // STAMPの間隔は max(minSpacing, spacing * width * rate). 次の線から反映
+    public void setSpacing(float width, float spacing, float minSpacing) {
+        this.width = width;
+        this.spacing = spacing;
+        // 0だと進めなくなるので下限を置く
+        this.minSpacing = Math.max(0.1f, minSpacing);
+    }
+
+    // 区間を描いたらtrue
+    public boolean add(float x, float y) {
+        return add(x, y, 1.0f);
+    }
+
+    // rate: この点での幅の倍率 (STAMPのときだけ効く)
+    public boolean add(float x, float y, float rate) {
+        if(stamp == null) return false;
+        xs[count] = x;
+        ys[count] = y;
+        rs[count] = rate;
+        if(++count < 3) return false;
+        segment(xs[0], ys[0], xs[1], ys[1], xs[2], ys[2]);
+        // 終点を次の始点にする
+        xs[0] = xs[2];
+        ys[0] = ys[2];
+        rs[0] = rs[2];
+        count = 1;
+        return true;
+    }
+
+    private void segment(float x1, float y1, float x2, float y2, float x3, float y3) {
+        // 式が同じなのでPathのquadToでそのまま描ける
+        if(mode == Mode.PATH) {
+            stamp.drawSegment(x1, y1, x2, y2, x3, y3);
+            return;
+        }
+        // 補間曲線のだいたいの長さ. 1px以下の折れ線にしてその上を歩く
+        final int d = 1 + (int)(Math.floor(dist(x1, y1, x2, y2) + dist(x2, y2, x3, y3)));
+        final int n = evaluate(x1, y1, x2, y2, x3, y3, d);
+        curvature = maxCurvature(x1, y1, x2, y2, x3, y3);
+        if(!started) {
+            stamp.draw(curveX[0], curveY[0], curveR[0]);
+            lastRate = curveR[0];
+            remaining = spacingAt(lastRate);
+            started = true;
+        } else if(isKink(x2 - x1, y2 - y1, spacingAt(curveR[0]))) {
+            stamp.draw(curveX[0], curveY[0], curveR[0]);
+            lastRate = curveR[0];
+            remaining = spacingAt(lastRate);
+            moved = false;
+        } else {
+            // 前の区間より曲がっていれば持ち越した分も詰める
+            remaining = Math.min(remaining, spacingAt(lastRate));
+        }
+        tangentX = x3 - x2;
+        tangentY = y3 - y2;
+        for(int i = 1; i < n; ++i) {
+            final float len = dist(curveX[i - 1], curveY[i - 1], curveX[i], curveY[i]);
+            float done = 0;
+            while(remaining <= len - done) {
+                done += remaining;
+                final float t = done / len;
+                final float r = curveR[i - 1] + (curveR[i] - curveR[i - 1]) * t;
+                stamp.draw(curveX[i - 1] + (curveX[i] - curveX[i - 1]) * t,
+                    curveY[i - 1] + (curveY[i] - curveY[i - 1]) * t, r);
+                lastRate = r;
+                remaining = spacingAt(r);
+                moved = false;
+            }
+            remaining -= len - done;
+            if(len > done) moved = true;
+        }
+        lastX = curveX[n - 1];
+        lastY = curveY[n - 1];
+        lastR = curveR[n - 1];
+    }
+
+    // つなぎ目で向きが変わる角度をθとして, 間隔の半分だけ離れたスタンプでは角の外側が (間隔 / 2) * sin(θ / 2) 欠ける
+    private boolean isKink(float dx, float dy, float spacing) {
+        final float l1 = (float)Math.sqrt(tangentX * tangentX + tangentY * tangentY);
+        final float l2 = (float)Math.sqrt(dx * dx + dy * dy);
+        // 同じ点が続いて向きが決まらなければ押しておく
+        if(l1 == 0 || l2 == 0) return true;
+        final float cos = (tangentX * dx + tangentY * dy) / (l1 * l2);
+        final float sinHalf = (float)Math.sqrt(Math.max(0, (1 - cos) / 2));
+        return spacing / 2 * sinHalf > KINK;
+    }
+
+    // 曲がっていてもまっすぐなときと同じ波打ちに収まる間隔
+    private float spacingAt(float rate) {
+        final float w = width * rate;
+        return Math.max(minSpacing, spacing * w / (float)Math.sqrt(1 + curvature * w / 2));
+    }
+
+    // 2次ベジエの曲率の最大値. 速度 B'(t) = b + t * a の大きさが一番小さいところで最大になる
+    static float maxCurvature(float x1, float y1, float x2, float y2, float x3, float y3) {
+        final float bx = 2 * (x2 - x1), by = 2 * (y2 - y1);
+        final float ax = 2 * (x3 - 2 * x2 + x1), ay = 2 * (y3 - 2 * y2 + y1);
+        final float aa = ax * ax + ay * ay;
+        final float t = aa == 0 ? 0 : Math.max(0, Math.min(1, -(bx * ax + by * ay) / aa));
+        final float vx = bx + t * ax, vy = by + t * ay;
+        final float v = (float)Math.sqrt(vx * vx + vy * vy);
+        final float cross = Math.abs(bx * ay - by * ax);
+        // 止まっているところは曲率を決められないので詰められるだけ詰める
+        if(v < 1e-3f) return cross == 0 ? 0 : Float.MAX_VALUE;
+        return cross / (v * v * v);
+    }
+
+    // 媒介変数t (0->1) をd等分してcurveX, curveYに書き出す. 点の個数を返す
+    private int evaluate(float x1, float y1, float x2, float y2, float x3, float y3, int d) {
+        if(d + 1 > curveX.length) {
+            curveX = new float[(d + 1) * 2];
+            curveY = new float[(d + 1) * 2];
+            curveR = new float[(d + 1) * 2];
+        }
+        for(int i = 0; i <= d; ++i) {
+            final float t = i * 1.0f / d;
+            curveX[i] = interpolate(x1, x2, x3, t);
+            curveY[i] = interpolate(y1, y2, y3, t);
+            // 幅も座標と同じ重みでなめらかにつなぐ
+            curveR[i] = interpolate(rs[0], rs[1], rs[2], t);
+        }
+        return d + 1;
+    }
+
+    // 3点をB-スプライン補間
+    static float interpolate(float p1, float p2, float p3, float t) {
+        return (1 - t) * (1 - t) * p1 + 2 * t * (1 - t) * p2 + t * t * p3;
+    }
+
+    // 2点間距離
+    static float dist(float x1, float y1, float x2, float y2) {
+        float dx = Math.abs(x2 - x1);
+        float dy = Math.abs(y2 - y1);
+        return (float)Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // 線分 (x1, y1) - (x2, y2) の上で (x, y) に一番近い点の位置 (0から1)
+    static float nearestOnSegment(float x1, float y1, float x2, float y2, float x, float y) {
+        final float dx = x2 - x1, dy = y2 - y1;
+        final float len2 = dx * dx + dy * dy;
+        final float t = len2 == 0 ? 0 : ((x - x1) * dx + (y - y1) * dy) / len2;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    // 点 (x, y) から線分 (x1, y1) - (x2, y2) までの距離
+    static float segmentDistance(float x1, float y1, float x2, float y2, float x, float y) {
+        final float t = nearestOnSegment(x1, y1, x2, y2, x, y);
+        return dist(x1 + t * (x2 - x1), y1 + t * (y2 - y1), x, y);
+    }
+}
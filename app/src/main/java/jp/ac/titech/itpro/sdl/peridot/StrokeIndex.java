@@ -0,0 +1,343 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+
+// 確定した線の空間インデックス (一様グリッド)
+// 線はStrokeEngineと同じく3点ずつの2次ベジエとして描かれるので, その区間を線幅の半分だけ太らせた矩形が掛かるセルに線の番号を登録する
+// 点や矩形の問い合わせは掛かるセルだけを見るので, 線の総数によらずほぼ一定時間で済む
+// 要らなくなった線はremoveで外す
+class StrokeIndex {
+
+    static final int CELL = 64;
+    // 曲線を折れ線にして距離を測るときの誤差 (px)
+    static final float FLATNESS = 0.25f;
+
+    // セルに登録された線の番号. 番号は追加順 (大きいほど上に描かれている)
+    private static class Cell {
+        int[] ids = new int[4];
+        int count = 0;
+        void add(int id) {
+            // 同じ線の続きの区間は同じセルに何度も来るので最後だけ見れば重複しない
+            if(count > 0 && ids[count - 1] == id) return;
+            if(count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = id;
+        }
+        // 番号は昇順に並んでいる
+        void remove(int id) {
+            final int k = Arrays.binarySearch(ids, 0, count, id);
+            if(k < 0) return;
+            System.arraycopy(ids, k + 1, ids, k, count - k - 1);
+            --count;
+        }
+    }
+
+    // セルの座標 -> Cell のオープンアドレス法の表. Longを箱に入れずに引く
+    // 空になったセルも表に残して使い回す (消すのはclearのときだけ)
+    private static class Cells {
+        private long[] keys = new long[256];
+        private Cell[] values = new Cell[256];
+        private int size = 0;
+
+        private static int slot(long key, int mask) {
+            final long h = key * 0x9E3779B97F4A7C15L;
+            return (int)(h >>> 32) & mask;
+        }
+
+        Cell get(long key) {
+            final int mask = keys.length - 1;
+            for(int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if(values[i] == null) return null;
+                if(keys[i] == key) return values[i];
+            }
+        }
+
+        Cell obtain(long key) {
+            final int mask = keys.length - 1;
+            int i = slot(key, mask);
+            for(; values[i] != null; i = (i + 1) & mask) {
+                if(keys[i] == key) return values[i];
+            }
+            Cell cell = new Cell();
+            keys[i] = key;
+            values[i] = cell;
+            // 半分まで埋まったら広げる
+            if(++size * 2 > keys.length) grow();
+            return cell;
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final Cell[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Cell[oldValues.length * 2];
+            final int mask = keys.length - 1;
+            for(int k = 0; k < oldKeys.length; ++k) {
+                if(oldValues[k] == null) continue;
+                int i = slot(oldKeys[k], mask);
+                while(values[i] != null) i = (i + 1) & mask;
+                keys[i] = oldKeys[k];
+                values[i] = oldValues[k];
+            }
+        }
+
+        void clear() {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+    }
+
+    private final Cells cells = new Cells();
+    // 番号 id の線は strokes[id - base]. 外した線はnullにして, 先頭に溜まったら詰める
+    private final ArrayList<StrokeLog.Op> strokes = new ArrayList<>();
+    private final HashMap<StrokeLog.Op, Integer> ids = new HashMap<>();
+    private int base = 0;
+    private int head = 0;   // strokesの先頭から続くnullの数
+    // 問い合わせ中に同じ線を2回数えないための印
+    private int[] marks = new int[256];
+    private int stamp = 0;
+    private int[] found = new int[64];
+
+    private static long key(int cx, int cy) {
+        return (long)cx << 32 | (cy & 0xFFFFFFFFL);
+    }
+
+    private static int cellOf(float v) {
+        return (int)Math.floor(v / CELL);
+    }
+
+    // 3点に満たない線は何も描かれないので登録しない
+    void add(StrokeLog.Op op) {
+        if(op.clear || op.count < 3 || ids.containsKey(op)) return;
+        final int id = base + strokes.size();
+        strokes.add(op);
+        ids.put(op, id);
+        cover(op, id, true);
+    }
+
+    void remove(StrokeLog.Op op) {
+        final Integer id = ids.remove(op);
+        if(id == null) return;
+        cover(op, id, false);
+        strokes.set(id - base, null);
+        while(head < strokes.size() && strokes.get(head) == null) ++head;
+        // 古い線から外れていくので, 半分以上空いたら先頭を詰める
+        if(head * 2 >= strokes.size()) {
+            strokes.subList(0, head).clear();
+            base += head;
+            head = 0;
+        }
+    }
+
+    // 区間ごとに, 曲線が収まる3点の外接矩形を太らせたものが掛かるセルに登録する (外す)
+    private void cover(StrokeLog.Op op, int id, boolean add) {
+        final float[] p = op.points;
+        for(int s = 0; s + 2 < op.count; s += 2) {
+            final float r = radius(op, s);
+            final int left = cellOf(min3(p[s * 2], p[s * 2 + 2], p[s * 2 + 4]) - r);
+            final int right = cellOf(max3(p[s * 2], p[s * 2 + 2], p[s * 2 + 4]) + r);
+            final int top = cellOf(min3(p[s * 2 + 1], p[s * 2 + 3], p[s * 2 + 5]) - r);
+            final int bottom = cellOf(max3(p[s * 2 + 1], p[s * 2 + 3], p[s * 2 + 5]) + r);
+            for(int cy = top; cy <= bottom; ++cy) {
+                for(int cx = left; cx <= right; ++cx) {
+                    if(add) {
+                        cells.obtain(key(cx, cy)).add(id);
+                    } else {
+                        Cell cell = cells.get(key(cx, cy));
+                        if(cell != null) cell.remove(id);
+                    }
+                }
+            }
+        }
+    }
+
+    void clear() {
+        cells.clear();
+        strokes.clear();
+        ids.clear();
+        base = 0;
+        head = 0;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    // (x, y) に掛かっている一番上の線. tolerance は線幅に足す余裕
+    StrokeLog.Op hit(float x, float y, float tolerance) {
+        int best = -1;
+        for(int cy = cellOf(y - tolerance); cy <= cellOf(y + tolerance); ++cy) {
+            for(int cx = cellOf(x - tolerance); cx <= cellOf(x + tolerance); ++cx) {
+                Cell cell = cells.get(key(cx, cy));
+                if(cell == null) continue;
+                // 新しい線から見て, 見つかったらそれより古いものは見ない
+                for(int k = cell.count - 1; k >= 0 && cell.ids[k] > best; --k) {
+                    final int id = cell.ids[k];
+                    StrokeLog.Op op = strokes.get(id - base);
+                    if(!op.undone && gap(op, x, y) <= tolerance) best = id;
+                }
+            }
+        }
+        return best < 0 ? null : strokes.get(best - base);
+    }
+
+    // 矩形に掛かる線を古い順にoutへ入れる. 個数を返す
+    int query(float left, float top, float right, float bottom, List<StrokeLog.Op> out) {
+        int n = 0;
+        nextStamp();
+        for(int cy = cellOf(top); cy <= cellOf(bottom); ++cy) {
+            for(int cx = cellOf(left); cx <= cellOf(right); ++cx) {
+                Cell cell = cells.get(key(cx, cy));
+                if(cell == null) continue;
+                for(int k = 0; k < cell.count; ++k) {
+                    final int id = cell.ids[k];
+                    if(marks[id - base] == stamp) continue;
+                    marks[id - base] = stamp;
+                    StrokeLog.Op op = strokes.get(id - base);
+                    if(!op.undone && intersects(op, left, top, right, bottom)) {
+                        if(n == found.length) found = Arrays.copyOf(found, n * 2);
+                        found[n++] = id;
+                    }
+                }
+            }
+        }
+        // セルをまたぐと順番が崩れるので描いた順に並べ直す
+        Arrays.sort(found, 0, n);
+        for(int i = 0; i < n; ++i) out.add(strokes.get(found[i] - base));
+        return n;
+    }
+
+    // (x, y) から線の縁までが一番近い線. maxDistより遠ければnull
+    StrokeLog.Op nearest(float x, float y, float maxDist) {
+        final int cx0 = cellOf(x), cy0 = cellOf(y);
+        final int rings = (int)Math.ceil(maxDist / CELL) + 1;
+        StrokeLog.Op best = null;
+        float bestDist = maxDist;
+        nextStamp();
+        for(int ring = 0; ring <= rings; ++ring) {
+            // このリングのセルはどれも (ring - 1) * CELL より遠いので, それより近いものが見つかっていれば終わり
+            if(best != null && (ring - 1) * CELL > bestDist) break;
+            for(int cy = cy0 - ring; cy <= cy0 + ring; ++cy) {
+                for(int cx = cx0 - ring; cx <= cx0 + ring; ++cx) {
+                    if(Math.max(Math.abs(cx - cx0), Math.abs(cy - cy0)) != ring) continue;
+                    Cell cell = cells.get(key(cx, cy));
+                    if(cell == null) continue;
+                    for(int k = 0; k < cell.count; ++k) {
+                        final int id = cell.ids[k];
+                        if(marks[id - base] == stamp) continue;
+                        marks[id - base] = stamp;
+                        StrokeLog.Op op = strokes.get(id - base);
+                        if(op.undone) continue;
+                        final float d = Math.max(0, gap(op, x, y));
+                        if(d <= bestDist) {
+                            best = op;
+                            bestDist = d;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private void nextStamp() {
+        if(marks.length < strokes.size()) marks = new int[strokes.size() * 2];
+        if(++stamp == 0) {
+            Arrays.fill(marks, 0);
+            stamp = 1;
+        }
+    }
+
+    // (x, y) から線の縁までの距離 (線の中なら負)
+    // StrokeEngineが描くのと同じ曲線 (3点ずつの2次ベジエ, 幅も同じ重みで補間) をFLATNESS以内の折れ線にして測る
+    static float gap(StrokeLog.Op op, float x, float y) {
+        final float[] p = op.points;
+        final float[] rates = op.rates;
+        final float half = op.width / 2;
+        float best = Float.MAX_VALUE;
+        for(int s = 0; s + 2 < op.count; s += 2) {
+            final float x1 = p[s * 2], y1 = p[s * 2 + 1], x2 = p[s * 2 + 2], y2 = p[s * 2 + 3], x3 = p[s * 2 + 4], y3 = p[s * 2 + 5];
+            // 曲線は3点の外接矩形に収まるので, そこまでで今より近くならなければ飛ばす
+            final float bx = Math.max(0, Math.max(min3(x1, x2, x3) - x, x - max3(x1, x2, x3)));
+            final float by = Math.max(0, Math.max(min3(y1, y2, y3) - y, y - max3(y1, y2, y3)));
+            if((float)Math.sqrt(bx * bx + by * by) - radius(op, s) >= best) continue;
+            final int n = pieces(op, s);
+            float px = x1, py = y1, pr = rates[s];
+            for(int k = 1; k <= n; ++k) {
+                final float t = k * 1.0f / n;
+                final float qx = StrokeEngine.interpolate(x1, x2, x3, t);
+                final float qy = StrokeEngine.interpolate(y1, y2, y3, t);
+                final float qr = StrokeEngine.interpolate(rates[s], rates[s + 1], rates[s + 2], t);
+                best = Math.min(best, pieceGap(px, py, pr, qx, qy, qr, half, x, y));
+                px = qx;
+                py = qy;
+                pr = qr;
+            }
+        }
+        return best;
+    }
+
+    // 区間sの中で一番太いところの半径 (補間した幅は3点の幅の間に収まる)
+    private static float radius(StrokeLog.Op op, int s) {
+        return op.width / 2 * max3(op.rates[s], op.rates[s + 1], op.rates[s + 2]);
+    }
+
+    // 区間sを折れ線にするときの分割数. 2次ベジエは2階微分が一定なので, 弦との差は |p1 - 2p2 + p3| / (4n^2) で抑えられる
+    // 幅も同じ式で補間するので, 1本ごとに幅を直線で補間したときの差も同じように抑える
+    private static int pieces(StrokeLog.Op op, int s) {
+        final float[] p = op.points;
+        final float ddx = p[s * 2] - 2 * p[s * 2 + 2] + p[s * 2 + 4];
+        final float ddy = p[s * 2 + 1] - 2 * p[s * 2 + 3] + p[s * 2 + 5];
+        final float ddr = op.width / 2 * Math.abs(op.rates[s] - 2 * op.rates[s + 1] + op.rates[s + 2]);
+        final float dd = Math.max((float)Math.sqrt(ddx * ddx + ddy * ddy), ddr);
+        return Math.max(1, (int)Math.ceil(Math.sqrt(dd / (4 * FLATNESS))));
+    }
+
+    // 半径が pr から qr へ変わる線分 (px, py) - (qx, qy) の縁までの距離
+    private static float pieceGap(float px, float py, float pr, float qx, float qy, float qr, float half, float x, float y) {
+        final float t = StrokeEngine.nearestOnSegment(px, py, qx, qy, x, y);
+        return StrokeEngine.dist(px + t * (qx - px), py + t * (qy - py), x, y) - half * (pr + t * (qr - pr));
+    }
+
+    private static float min3(float a, float b, float c) {
+        return Math.min(a, Math.min(b, c));
+    }
+
+    private static float max3(float a, float b, float c) {
+        return Math.max(a, Math.max(b, c));
+    }
+
+    // 太らせた曲線のどれかの部分が矩形に掛かるか
+    private static boolean intersects(StrokeLog.Op op, float left, float top, float right, float bottom) {
+        final float[] p = op.points;
+        final float[] rates = op.rates;
+        final float half = op.width / 2;
+        for(int s = 0; s + 2 < op.count; s += 2) {
+            final float x1 = p[s * 2], y1 = p[s * 2 + 1], x2 = p[s * 2 + 2], y2 = p[s * 2 + 3], x3 = p[s * 2 + 4], y3 = p[s * 2 + 5];
+            final float r = radius(op, s);
+            if(min3(x1, x2, x3) - r > right || max3(x1, x2, x3) + r < left
+                || min3(y1, y2, y3) - r > bottom || max3(y1, y2, y3) + r < top) continue;
+            final int n = pieces(op, s);
+            float px = x1, py = y1, pr = rates[s];
+            for(int k = 1; k <= n; ++k) {
+                final float t = k * 1.0f / n;
+                final float qx = StrokeEngine.interpolate(x1, x2, x3, t);
+                final float qy = StrokeEngine.interpolate(y1, y2, y3, t);
+                final float qr = StrokeEngine.interpolate(rates[s], rates[s + 1], rates[s + 2], t);
+                final float rr = half * Math.max(pr, qr);
+                if(Math.min(px, qx) - rr <= right && Math.max(px, qx) + rr >= left
+                    && Math.min(py, qy) - rr <= bottom && Math.max(py, qy) + rr >= top) {
+                    return true;
+                }
+                px = qx;
+                py = qy;
+                pr = qr;
+            }
+        }
+        return false;
+    }
+}
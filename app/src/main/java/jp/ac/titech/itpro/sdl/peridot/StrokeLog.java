@@ -0,0 +1,215 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+// 線とclearの操作履歴
+// 一定間隔でキャンバスのチェックポイントを取っておき, undo/redoは対象より前の直近のチェックポイントから描き直す
+// 操作はowner (ローカルは0, リモートはuuidごとの番号) ごとに取り消せる
+class StrokeLog<S> {
+
+    interface Target<S> {
+        S snapshot();
+        void restore(S snapshot);
+        void replay(Op op);
+    }
+
+    static class Op {
+        final int owner;
+        final boolean clear;
+        final int color;
+        final float width;
+        final int flags;
+        float[] points;     // [x0, y0, x1, y1, ...]
+        float[] rates;      // 点ごとの幅の倍率
+        int count = 0;
+        boolean undone = false;
+
+        Op(int owner, boolean clear, int color, float width, int flags) {
+            this.owner = owner;
+            this.clear = clear;
+            this.color = color;
+            this.width = width;
+            this.flags = flags;
+            this.points = new float[clear ? 0 : 64];
+            this.rates = new float[clear ? 0 : 32];
+        }
+
+        void add(float x, float y) {
+            add(x, y, 1.0f);
+        }
+
+        void add(float x, float y, float rate) {
+            if(count * 2 + 2 > points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
+                rates = Arrays.copyOf(rates, points.length / 2);
+            }
+            points[count * 2] = x;
+            points[count * 2 + 1] = y;
+            rates[count] = rate;
+            ++count;
+        }
+    }
+
+    // ops[0, index) を描いた状態
+    private static class Checkpoint<S> {
+        final int index;
+        final S snapshot;
+        Checkpoint(int index, S snapshot) {
+            this.index = index;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final Target<S> target;
+    private final ArrayList<Op> ops = new ArrayList<>();
+    private final ArrayList<Op> active = new ArrayList<>();
+    private final ArrayList<Checkpoint<S>> checkpoints = new ArrayList<>();
+    private final HashMap<Integer, ArrayDeque<Op>> redoStacks = new HashMap<>();
+
+    private int interval = 32;          // この操作数ごとにチェックポイント
+    private int maxCheckpoints = 8;
+    private int maxPoints = 200000;     // 履歴に持つ点の上限
+    private int points = 0;
+
+    StrokeLog(Target<S> target) {
+        this.target = target;
+        checkpoints.add(new Checkpoint<>(0, target.snapshot()));
+    }
+
+    // 古い操作はチェックポイントに畳み込まれてundoできなくなる
+    void setBudget(int interval, int maxCheckpoints, int maxPoints) {
+        this.interval = interval;
+        this.maxCheckpoints = maxCheckpoints;
+        this.maxPoints = maxPoints;
+    }
+
+    // キャンバスを丸ごと置き換えたときに履歴を捨てる (描いている途中の線は残す)
+    void reset() {
+        ops.clear();
+        checkpoints.clear();
+        redoStacks.clear();
+        points = 0;
+        checkpoints.add(new Checkpoint<>(0, target.snapshot()));
+    }
+
+    // 描いている途中の線. commitするまで履歴には入らない
+    Op begin(int owner, int color, float width, int flags) {
+        Op op = new Op(owner, false, color, width, flags);
+        active.add(op);
+        return op;
+    }
+
+    void commit(Op op) {
+        active.remove(op);
+        append(op);
+    }
+
+    void clear(int owner) {
+        append(new Op(owner, true, 0, 0, 0));
+    }
+
+    private void append(Op op) {
+        ops.add(op);
+        points += op.count;
+        // 新しく描いたらそのownerのredoはできない
+        ArrayDeque<Op> redo = redoStacks.get(op.owner);
+        if(redo != null) redo.clear();
+        checkpoint();
+        trim();
+    }
+
+    private void checkpoint() {
+        if(ops.size() - checkpoints.get(checkpoints.size() - 1).index < interval) return;
+        checkpoints.add(new Checkpoint<>(ops.size(), committedSnapshot()));
+    }
+
+    // 確定した操作だけを描いたキャンバス
+    // 描いている途中の線があるとキャンバスに半端に入ってしまうので,
+    // そのときはrebuildと同じく直近のチェックポイントから確定した操作だけを描き直して取り, 途中の線を描き戻す
+    S committedSnapshot() {
+        if(active.isEmpty()) return target.snapshot();
+        final Checkpoint<S> last = checkpoints.get(checkpoints.size() - 1);
+        target.restore(last.snapshot);
+        for(int i = last.index; i < ops.size(); ++i) {
+            Op op = ops.get(i);
+            if(!op.undone) target.replay(op);
+        }
+        final S snapshot = target.snapshot();
+        for(Op op : active) target.replay(op);
+        return snapshot;
+    }
+
+    // 上限を超えたら一番古い操作を次のチェックポイントまで畳み込む
+    private void trim() {
+        while(checkpoints.size() > 1 && (checkpoints.size() > maxCheckpoints || points > maxPoints)) {
+            final int merged = checkpoints.get(1).index;
+            for(int i = 0; i < merged; ++i) {
+                Op op = ops.get(i);
+                points -= op.count;
+                ArrayDeque<Op> redo = redoStacks.get(op.owner);
+                if(redo != null) redo.remove(op);
+            }
+            ops.subList(0, merged).clear();
+            checkpoints.remove(0);
+            for(int i = 0; i < checkpoints.size(); ++i) {
+                Checkpoint<S> c = checkpoints.get(i);
+                checkpoints.set(i, new Checkpoint<>(c.index - merged, c.snapshot));
+            }
+        }
+    }
+
+    // ownerの最後の操作を取り消す. 取り消した操作 (なければnull) を返す
+    Op undo(int owner) {
+        for(int i = ops.size() - 1; i >= 0; --i) {
+            Op op = ops.get(i);
+            if(op.owner != owner || op.undone) continue;
+            op.undone = true;
+            ArrayDeque<Op> redo = redoStacks.get(owner);
+            if(redo == null) {
+                redo = new ArrayDeque<>();
+                redoStacks.put(owner, redo);
+            }
+            redo.push(op);
+            rebuild(i);
+            return op;
+        }
+        return null;
+    }
+
+    Op redo(int owner) {
+        ArrayDeque<Op> redo = redoStacks.get(owner);
+        if(redo == null || redo.isEmpty()) return null;
+        Op op = redo.pop();
+        final int index = ops.indexOf(op);
+        if(index < 0) return null;
+        op.undone = false;
+        rebuild(index);
+        return op;
+    }
+
+    // ops[from]より前の直近のチェックポイントに戻して, そこから先を描き直す
+    private void rebuild(int from) {
+        int c = checkpoints.size() - 1;
+        while(checkpoints.get(c).index > from) checkpoints.remove(c--);
+        Checkpoint<S> base = checkpoints.get(c);
+        target.restore(base.snapshot);
+        for(int i = base.index; i < ops.size(); ++i) {
+            Op op = ops.get(i);
+            if(!op.undone) target.replay(op);
+            if(i + 1 - checkpoints.get(checkpoints.size() - 1).index >= interval) {
+                checkpoints.add(new Checkpoint<>(i + 1, target.snapshot()));
+            }
+        }
+        // 描いている途中の線もそこまでの分を描き直す
+        for(Op op : active) target.replay(op);
+    }
+
+    int size() {
+        return ops.size();
+    }
+}
@@ -0,0 +1,161 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import okhttp3.WebSocket;
+
+
+// 途中参加の同期のうち, Communicatorの受信スレッドとタイマーの間に入る部分 (Androidの型を使わない)
+// 受け取ったメッセージを流すのも, snapshotを待ちきれずにためていた分を流すのも, このオブジェクトのロックを持って行う
+// (別々のスレッドから流すと順番が入れ替わり, 線のMOVEがDOWNより先に届いてしまう)
+// snapshotは大きいので何通かに分けて送り, 受け手は全部そろってから1つのsyncにまとめて流す
+class SyncSession {
+
+    interface Sink {
+        void next(DrawMessage message);
+    }
+
+    // 1通に入れるタイルのPNG (base64) の文字数の目安. OkHttpの1フレームの上限 (16MiB) より十分小さく
+    static final int PART_CHARS = 1 << 20;
+    // 送信キューにこれ以上たまっていたら続きを送るのを待つ. OkHttpはキューが16MiBを超えると接続を閉じる
+    static final long QUEUE_LIMIT = 4 << 20;
+    private static final long RETRY_MS = 50;
+
+    private final CanvasSync sync;
+    private final Scheduler scheduler;
+    private Sink sink;
+    private Disposable timer;
+    private int generation = 0;    // 古いタイマーが後から動いても何もしないように
+    // 分けて届いたsnapshotのタイル
+    private final ArrayList<Communicator.SyncTile> tiles = new ArrayList<>();
+
+    SyncSession(CanvasSync sync, Scheduler scheduler) {
+        this.sync = sync;
+        this.scheduler = scheduler;
+    }
+
+    // nullなら流さない (切断した)
+    synchronized void attach(Sink sink) {
+        this.sink = sink;
+        if(sink == null) cancel();
+    }
+
+    // snapshotが届くまで待つ. millisの間に誰からも返事がなければためていた分を流す
+    synchronized void begin(long millis) {
+        sync.begin();
+        tiles.clear();
+        schedule(millis);
+    }
+
+    // 最初に返事をくれた相手にだけsnapshotを頼む. 頼むならtrue
+    synchronized boolean choose(String peer, long millis) {
+        if(!sync.chooseSource(peer)) return false;
+        schedule(millis);
+        return true;
+    }
+
+    // snapshotを待っている間はためておく
+    synchronized void deliver(DrawMessage message) {
+        if(sink == null || sync.hold(message)) return;
+        sink.next(message);
+    }
+
+    // ここまでに流した分がsnapshotに入るように, 描画と同じ順番で受け手に渡す
+    synchronized void requested(Communicator.SyncMessage message) {
+        if(sink == null) return;
+        sync.requested(message.uuid);
+        sink.next(message);
+    }
+
+    // snapshotの1通が届いた. 最後の1通 (remaining == 0) でタイルをまとめて流し, 続けてためていた分を流す
+    // 続きが届いている間はタイムアウトを延ばす
+    synchronized void received(Communicator.SyncMessage part, long millis) {
+        if(sink == null || !sync.isWaiting()) return;
+        if(part.tiles != null) tiles.addAll(part.tiles);
+        if(part.remaining > 0) {
+            schedule(millis);
+            return;
+        }
+        cancel();
+        part.tiles = new ArrayList<>(tiles);
+        tiles.clear();
+        List<DrawMessage> rest = sync.complete(part.seqs);
+        sink.next(part);
+        for(DrawMessage m : rest) sink.next(m);
+    }
+
+    synchronized void cancel() {
+        ++generation;
+        if(timer != null) {
+            timer.dispose();
+            timer = null;
+        }
+    }
+
+    private void schedule(long millis) {
+        cancel();
+        final int current = generation;
+        timer = scheduler.scheduleDirect(() -> timeout(current), millis, TimeUnit.MILLISECONDS);
+    }
+
+    // 誰も答えなかった (途中で止まった) ので, ためていた分をそのまま流す
+    private synchronized void timeout(int current) {
+        if(current != generation) return;
+        timer = null;
+        if(sink == null || !sync.isWaiting()) return;
+        tiles.clear();
+        for(DrawMessage m : sync.giveUp()) sink.next(m);
+    }
+
+    // snapshotをタイルの文字数がmaxChars程度ずつの何通かに分ける (タイルがなくても1通は送る)
+    // remainingで後に続く数を知らせ, 最後の1通にseqsを付ける. 古いクライアントは最初の1通で終わったものとして読む
+    static List<Communicator.SyncMessage> split(String uuid, String to, Map<String, Integer> seqs,
+                                                List<Communicator.SyncTile> tiles, int maxChars) {
+        ArrayList<Communicator.SyncMessage> parts = new ArrayList<>();
+        Communicator.SyncMessage part = null;
+        int chars = 0;
+        for(Communicator.SyncTile tile : tiles) {
+            if(part == null || (chars > 0 && chars + tile.png.length() > maxChars)) {
+                part = new Communicator.SyncMessage("sync", uuid, to);
+                part.tiles = new ArrayList<>();
+                parts.add(part);
+                chars = 0;
+            }
+            part.tiles.add(tile);
+            chars += tile.png.length();
+        }
+        if(parts.isEmpty()) {
+            part = new Communicator.SyncMessage("sync", uuid, to);
+            part.tiles = new ArrayList<>();
+            parts.add(part);
+        }
+        for(int i = 0; i < parts.size(); ++i) parts.get(i).remaining = parts.size() - 1 - i;
+        parts.get(parts.size() - 1).seqs = seqs;
+        return parts;
+    }
+
+    // 送信キューがlimitを超えない範囲で順に送り, 詰まっていたら少し待ってから続きを送る
+    static void send(WebSocket socket, Gson gson, List<Communicator.SyncMessage> parts, long limit, Scheduler scheduler) {
+        send(socket, gson, parts, 0, limit, scheduler);
+    }
+
+    private static void send(WebSocket socket, Gson gson, List<Communicator.SyncMessage> parts, int next,
+                             long limit, Scheduler scheduler) {
+        while(next < parts.size()) {
+            if(socket.queueSize() > limit) {
+                final int rest = next;
+                scheduler.scheduleDirect(() -> send(socket, gson, parts, rest, limit, scheduler), RETRY_MS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            if(!socket.send(gson.toJson(parts.get(next++)))) return;    // 閉じた
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.SparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+// キャンバスを固定サイズのタイルに分けて持つ
+// 一度も描いていないタイルはBitmapを持たず背景色として扱う
+// メモリが足りないときは使っていないタイルを圧縮してBitmapを手放す
+// snapshotはタイルを共有し, 書き込むときに初めてそのタイルだけ複製する (copy-on-write)
+public class TileStore {
+
+    public static final int TILE_SIZE = 256;
+    private static final int SHIFT = 8;
+    // タイル座標は 0 - 32767 (キャンバスの原点より左上は描かない)
+    private static final int MAX_TILES = 1 << 15;
+
+    private static class Tile {
+        final int tx, ty;
+        Bitmap bitmap;      // 圧縮中はnull
+        byte[] packed;      // 圧縮した画素
+        boolean shared;     // snapshotからも参照されているので書き換えない
+        Tile(int tx, int ty) {
+            this.tx = tx;
+            this.ty = ty;
+        }
+    }
+
+    // ある時点のタイルの組. 中のタイルは書き換えられない
+    public static class Snapshot {
+        private final SparseArray<Tile> tiles;
+        private final Rect extent;
+        private Snapshot(SparseArray<Tile> tiles, Rect extent) {
+            this.tiles = tiles;
+            this.extent = extent;
+        }
+    }
+
+    private SparseArray<Tile> tiles = new SparseArray<>();
+    private final int background;
+
+    // タイルごとにsetBitmapして使い回す
+    private final Canvas canvas = new Canvas();
+    private final Matrix matrix = new Matrix();
+    private final RectF pathBounds = new RectF();
+    private final Rect tileRect = new Rect();
+    // 描いたことのある範囲
+    private final Rect extent = new Rect();
+
+    // 圧縮・展開用
+    private final ByteBuffer pixels = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 4);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] packBuffer = new byte[TILE_SIZE * TILE_SIZE];
+
+    public interface TileSink {
+        void tile(int tx, int ty, byte[] png);
+    }
+
+    // done / total 枚のタイルを描いた
+    public interface Progress {
+        void progress(int done, int total);
+    }
+
+    public TileStore(int background) {
+        this.background = background;
+    }
+
+    public int getBackground() {
+        return background;
+    }
+
+    // 0 - MAX_TILES-1 の範囲だけ. 外れたものは他のタイルと重なるので呼ぶ側で切り詰めること
+    private static int key(int tx, int ty) {
+        if(tx < 0 || ty < 0 || tx >= MAX_TILES || ty >= MAX_TILES) {
+            throw new IllegalArgumentException("tile out of range: " + tx + "," + ty);
+        }
+        return ty << 16 | tx;
+    }
+
+    private static int tileOf(float v) {
+        return (int)Math.floor(v) >> SHIFT;
+    }
+
+    // 描き込むタイルを用意してcanvasを向ける
+    private Canvas tileCanvas(int tx, int ty) {
+        Tile tile = tiles.get(key(tx, ty));
+        if(tile == null) {
+            tile = new Tile(tx, ty);
+            tile.bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            tile.bitmap.eraseColor(background);
+            tiles.put(key(tx, ty), tile);
+        } else {
+            if(tile.bitmap == null) unpack(tile);
+            if(tile.shared) {
+                Tile copy = new Tile(tx, ty);
+                copy.bitmap = tile.bitmap.copy(Bitmap.Config.ARGB_8888, true);
+                tiles.put(key(tx, ty), copy);
+                tile = copy;
+            }
+        }
+        canvas.setBitmap(tile.bitmap);
+        matrix.setTranslate(-tx * TILE_SIZE, -ty * TILE_SIZE);
+        canvas.setMatrix(matrix);
+        return canvas;
+    }
+
+    private void extend(float left, float top, float right, float bottom) {
+        extent.union(Math.max(0, (int)Math.floor(left)), Math.max(0, (int)Math.floor(top)),
+            Math.max(0, (int)Math.ceil(right)), Math.max(0, (int)Math.ceil(bottom)));
+    }
+
+    public void drawCircle(float x, float y, float r, Paint paint) {
+        extend(x - r, y - r, x + r, y + r);
+        final int tx0 = Math.max(0, tileOf(x - r)), tx1 = Math.min(MAX_TILES - 1, tileOf(x + r));
+        final int ty0 = Math.max(0, tileOf(y - r)), ty1 = Math.min(MAX_TILES - 1, tileOf(y + r));
+        for(int ty = ty0; ty <= ty1; ++ty) {
+            for(int tx = tx0; tx <= tx1; ++tx) {
+                tileCanvas(tx, ty).drawCircle(x, y, r, paint);
+            }
+        }
+    }
+
+    public void drawRect(float left, float top, float right, float bottom, Paint paint) {
+        extend(left, top, right, bottom);
+        final int tx0 = Math.max(0, tileOf(left)), tx1 = Math.min(MAX_TILES - 1, tileOf(right));
+        final int ty0 = Math.max(0, tileOf(top)), ty1 = Math.min(MAX_TILES - 1, tileOf(bottom));
+        for(int ty = ty0; ty <= ty1; ++ty) {
+            for(int tx = tx0; tx <= tx1; ++tx) {
+                tileCanvas(tx, ty).drawRect(left, top, right, bottom, paint);
+            }
+        }
+    }
+
+    public void drawBitmap(Bitmap bitmap, float left, float top, Paint paint) {
+        final float right = left + bitmap.getWidth(), bottom = top + bitmap.getHeight();
+        extend(left, top, right, bottom);
+        final int tx0 = Math.max(0, tileOf(left)), tx1 = Math.min(MAX_TILES - 1, tileOf(right));
+        final int ty0 = Math.max(0, tileOf(top)), ty1 = Math.min(MAX_TILES - 1, tileOf(bottom));
+        for(int ty = ty0; ty <= ty1; ++ty) {
+            for(int tx = tx0; tx <= tx1; ++tx) {
+                tileCanvas(tx, ty).drawBitmap(bitmap, left, top, paint);
+            }
+        }
+    }
+
+    public void drawPath(Path path, Paint paint) {
+        path.computeBounds(pathBounds, false);
+        final float m = paint.getStrokeWidth();
+        extend(pathBounds.left - m, pathBounds.top - m, pathBounds.right + m, pathBounds.bottom + m);
+        final int tx0 = Math.max(0, tileOf(pathBounds.left - m)), tx1 = Math.min(MAX_TILES - 1, tileOf(pathBounds.right + m));
+        final int ty0 = Math.max(0, tileOf(pathBounds.top - m)), ty1 = Math.min(MAX_TILES - 1, tileOf(pathBounds.bottom + m));
+        for(int ty = ty0; ty <= ty1; ++ty) {
+            for(int tx = tx0; tx <= tx1; ++tx) {
+                tileCanvas(tx, ty).drawPath(path, paint);
+            }
+        }
+    }
+
+    public int getPixel(int x, int y) {
+        if(x < 0 || y < 0 || x >> SHIFT >= MAX_TILES || y >> SHIFT >= MAX_TILES) return background;
+        Tile tile = tiles.get(key(x >> SHIFT, y >> SHIFT));
+        if(tile == null) return background;
+        if(tile.bitmap == null) unpack(tile);
+        return tile.bitmap.getPixel(x & (TILE_SIZE - 1), y & (TILE_SIZE - 1));
+    }
+
+    // areaの範囲をcに描く (cの座標はキャンバスと同じ)
+    public void drawTo(Canvas c, Rect area) {
+        c.save();
+        c.clipRect(area);
+        c.drawColor(background);
+        final int tx0 = Math.max(0, area.left >> SHIFT), tx1 = Math.min(MAX_TILES - 1, (area.right - 1) >> SHIFT);
+        final int ty0 = Math.max(0, area.top >> SHIFT), ty1 = Math.min(MAX_TILES - 1, (area.bottom - 1) >> SHIFT);
+        for(int ty = ty0; ty <= ty1; ++ty) {
+            for(int tx = tx0; tx <= tx1; ++tx) {
+                Tile tile = tiles.get(key(tx, ty));
+                if(tile == null) continue;
+                if(tile.bitmap == null) unpack(tile);
+                c.drawBitmap(tile.bitmap, tx * TILE_SIZE, ty * TILE_SIZE, null);
+            }
+        }
+        c.restore();
+    }
+
+    // snapshotのareaの範囲をcに描く. 描画スレッド以外から呼んでよい
+    public void drawTo(Snapshot snapshot, Canvas c, Rect area, Progress progress) {
+        c.save();
+        c.clipRect(area);
+        c.drawColor(background);
+        // tileRectは描画スレッドが使うので別に持つ
+        final Rect rect = new Rect();
+        final int total = snapshot.tiles.size();
+        for(int i = 0; i < total; ++i) {
+            Tile tile = snapshot.tiles.valueAt(i);
+            rect.set(tile.tx * TILE_SIZE, tile.ty * TILE_SIZE, (tile.tx + 1) * TILE_SIZE, (tile.ty + 1) * TILE_SIZE);
+            if(Rect.intersects(area, rect)) {
+                // 描いている間に描画スレッドに圧縮されないようにする
+                synchronized (this) {
+                    if(tile.bitmap == null) unpack(tile);
+                    c.drawBitmap(tile.bitmap, tile.tx * TILE_SIZE, tile.ty * TILE_SIZE, null);
+                }
+            }
+            if(progress != null) progress.progress(i + 1, total);
+        }
+        c.restore();
+    }
+
+    // 描いたことのある範囲
+    public void getBounds(Rect out) {
+        out.set(extent);
+    }
+
+    public void getBounds(Snapshot snapshot, Rect out) {
+        out.set(snapshot.extent);
+    }
+
+    public void clear() {
+        for(int i = 0; i < tiles.size(); ++i) {
+            Tile tile = tiles.valueAt(i);
+            if(tile.bitmap != null && !tile.shared) tile.bitmap.recycle();
+        }
+        tiles = new SparseArray<>();
+        extent.setEmpty();
+    }
+
+    // 今の状態を取っておく. タイルの数に比例する手間だけで画素はコピーしない
+    public Snapshot snapshot() {
+        for(int i = 0; i < tiles.size(); ++i) tiles.valueAt(i).shared = true;
+        return new Snapshot(tiles.clone(), new Rect(extent));
+    }
+
+    public void restore(Snapshot snapshot) {
+        clear();
+        tiles = snapshot.tiles.clone();
+        extent.set(snapshot.extent);
+    }
+
+    // snapshotの描いたタイルを1枚ずつPNGにする. 描画スレッド以外から呼んでよい
+    public void export(Snapshot snapshot, TileSink sink) {
+        export(snapshot, null, sink);
+    }
+
+    // sinceから書き換えていないタイル (同じTileを共有している) はPNGにせずnullを渡す
+    public void export(Snapshot snapshot, Snapshot since, TileSink sink) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i = 0; i < snapshot.tiles.size(); ++i) {
+            Tile tile = snapshot.tiles.valueAt(i);
+            if(since != null && since.tiles.get(snapshot.tiles.keyAt(i)) == tile) {
+                sink.tile(tile.tx, tile.ty, null);
+                continue;
+            }
+            Bitmap bitmap;
+            // 描画スレッドに圧縮されないようにコピーだけロックの中で取る
+            synchronized (this) {
+                if(tile.bitmap == null) unpack(tile);
+                bitmap = tile.bitmap.copy(Bitmap.Config.ARGB_8888, false);
+            }
+            out.reset();
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            bitmap.recycle();
+            sink.tile(tile.tx, tile.ty, out.toByteArray());
+        }
+    }
+
+    // 受け取ったタイルで置き換える
+    public void load(int tx, int ty, Bitmap bitmap) {
+        if(tx < 0 || ty < 0 || tx >= MAX_TILES || ty >= MAX_TILES) return;
+        if(bitmap.getWidth() != TILE_SIZE || bitmap.getHeight() != TILE_SIZE) return;
+        Tile old = tiles.get(key(tx, ty));
+        if(old != null && old.bitmap != null && !old.shared) old.bitmap.recycle();
+        Tile tile = new Tile(tx, ty);
+        tile.bitmap = bitmap.isMutable() ? bitmap : bitmap.copy(Bitmap.Config.ARGB_8888, true);
+        tiles.put(key(tx, ty), tile);
+        extent.union(tx * TILE_SIZE, ty * TILE_SIZE, (tx + 1) * TILE_SIZE, (ty + 1) * TILE_SIZE);
+    }
+
+    // keepにかからないタイルを圧縮してBitmapを手放す
+    public void pack(Rect keep) {
+        for(int i = 0; i < tiles.size(); ++i) {
+            Tile tile = tiles.valueAt(i);
+            if(tile.bitmap == null) continue;
+            tileRect.set(tile.tx * TILE_SIZE, tile.ty * TILE_SIZE, (tile.tx + 1) * TILE_SIZE, (tile.ty + 1) * TILE_SIZE);
+            if(keep != null && Rect.intersects(keep, tileRect)) continue;
+            pack(tile);
+        }
+    }
+
+    private void pack(Tile tile) {
+        pixels.clear();
+        tile.bitmap.copyPixelsToBuffer(pixels);
+        deflater.reset();
+        deflater.setInput(pixels.array(), 0, pixels.position());
+        deflater.finish();
+        int length = 0;
+        while(!deflater.finished()) {
+            if(length == packBuffer.length) packBuffer = Arrays.copyOf(packBuffer, length * 2);
+            length += deflater.deflate(packBuffer, length, packBuffer.length - length);
+        }
+        tile.packed = Arrays.copyOf(packBuffer, length);
+        tile.bitmap.recycle();
+        tile.bitmap = null;
+    }
+
+    private void unpack(Tile tile) {
+        inflater.reset();
+        inflater.setInput(tile.packed);
+        try {
+            int length = 0;
+            while(!inflater.finished() && length < pixels.capacity()) {
+                final int n = inflater.inflate(pixels.array(), length, pixels.capacity() - length);
+                // 途中で切れている (入力がもう無い) ものは読めない
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("truncated tile " + tile.tx + "," + tile.ty);
+                }
+                length += n;
+            }
+            if(length != pixels.capacity()) throw new DataFormatException("short tile " + tile.tx + "," + tile.ty);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        }
+        pixels.rewind();
+        tile.bitmap = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        tile.bitmap.copyPixelsFromBuffer(pixels);
+        tile.packed = null;
+    }
+}
@@ -0,0 +1,37 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BackoffTest {
+
+    @Test
+    public void next_growsWithinCapAndResets() throws Exception {
+        Backoff backoff = new Backoff(100, 1000, new Random(1));
+        for(int i = 0; i < 50; ++i) {
+            long d = backoff.next();
+            assertTrue(d >= 0 && d <= Math.min(1000, 100L << Math.min(i, 30)));
+        }
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.next() <= 100);
+    }
+
+    @Test
+    public void next_spreadsOverWholeRangeAtCap() throws Exception {
+        Backoff backoff = new Backoff(100, 1000, new Random(2));
+        for(int i = 0; i < 10; ++i) backoff.next();
+        long min = Long.MAX_VALUE, max = 0;
+        for(int i = 0; i < 200; ++i) {
+            long d = backoff.next();
+            min = Math.min(min, d);
+            max = Math.max(max, d);
+        }
+        // 上限に張り付いても全員が同じ時間を待たない
+        assertTrue(min < 200);
+        assertTrue(max > 800 && max <= 1000);
+    }
+}
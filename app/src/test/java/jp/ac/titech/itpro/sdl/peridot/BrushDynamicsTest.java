@@ -0,0 +1,50 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BrushDynamicsTest {
+
+    @Test
+    public void fasterStrokesAreThinner() throws Exception {
+        BrushDynamics slow = new BrushDynamics();
+        BrushDynamics fast = new BrushDynamics();
+        slow.begin();
+        fast.begin();
+        float rs = 1, rf = 1;
+        for(int i = 0; i < 20; ++i) {
+            rs = slow.rate(i * 0.2f, 0, i * 8);
+            rf = fast.rate(i * 1.5f, 0, i * 8);
+        }
+        assertTrue(rf < rs);
+    }
+
+    @Test
+    public void rateIsClampedAndStartsAtFullWidth() throws Exception {
+        BrushDynamics d = new BrushDynamics();
+        d.set(0.3f, 0.4f, 1.0f);
+        d.begin();
+        assertEquals(1.0f, d.rate(0, 0, 0), 0);
+        assertEquals(0.3f, d.rate(1000, 0, 1), 0);
+        // 新しい線ではまた太く始まる
+        d.begin();
+        assertEquals(1.0f, d.rate(1000, 0, 2), 0);
+    }
+
+    @Test
+    public void speedIsSmoothed() throws Exception {
+        BrushDynamics d = new BrushDynamics();
+        d.set(0.0f, 0.5f, 0.25f);
+        d.begin();
+        d.rate(0, 0, 0);
+        // 1px/msの一定の速さ: 1回目は1/4だけ追従する
+        assertEquals(1.0f - 0.5f * 0.25f, d.rate(10, 0, 10), 1e-5f);
+        float[] xy = { 20, 0, 30, 0, 40, 0 };
+        float[] out = new float[3];
+        d.rates(xy, new long[] { 20, 30, 40 }, 3, out);
+        assertTrue(out[0] < 1.0f - 0.5f * 0.25f);
+        assertTrue(out[2] < out[1]);
+        assertTrue(out[2] > 0.5f);
+    }
+}
@@ -0,0 +1,162 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CanvasJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 読み込んだものを並べておく
+    private static class Collector implements CanvasJournal.Reader {
+        final List<String> tiles = new ArrayList<>();
+        final List<StrokeLog.Op> ops = new ArrayList<>();
+        @Override public void tile(int tx, int ty, byte[] png) {
+            tiles.add(tx + "," + ty + ":" + new String(png));
+        }
+        @Override public void op(StrokeLog.Op op) {
+            ops.add(op);
+        }
+    }
+
+    private static StrokeLog.Op stroke(int owner, int n) {
+        StrokeLog.Op op = new StrokeLog.Op(owner, false, 0xFF00FF00, 12.5f, 3);
+        for(int i = 0; i < n; ++i) op.add(i * 1.5f, 100 - i, i % 2 == 0 ? 1.f : 0.5f);
+        return op;
+    }
+
+    private Collector reopen(File dir) throws IOException {
+        Collector c = new Collector();
+        new CanvasJournal(dir).read(c);
+        return c;
+    }
+
+    @Test
+    public void strokesSurviveReopen() throws Exception {
+        File dir = folder.newFolder();
+        CanvasJournal journal = new CanvasJournal(dir);
+        journal.read(new Collector());
+        journal.append(stroke(0, 5));
+        journal.append(new StrokeLog.Op(2, true, 0, 0, 0));
+        journal.append(stroke(2, 1));
+        // flushするまではファイルに無い
+        assertEquals(0, reopen(dir).ops.size());
+        journal.flush();
+
+        List<StrokeLog.Op> ops = reopen(dir).ops;
+        assertEquals(3, ops.size());
+        StrokeLog.Op op = ops.get(0);
+        assertEquals(0, op.owner);
+        assertEquals(0xFF00FF00, op.color);
+        assertEquals(12.5f, op.width, 0);
+        assertEquals(3, op.flags);
+        assertEquals(5, op.count);
+        assertArrayEquals(stroke(0, 5).points, Arrays.copyOf(op.points, stroke(0, 5).points.length), 0);
+        assertEquals(0.5f, op.rates[1], 1.f / 255);
+        assertTrue(ops.get(1).clear);
+        assertEquals(2, ops.get(1).owner);
+        assertEquals(1, ops.get(2).count);
+    }
+
+    @Test
+    public void tornTailIsDropped() throws Exception {
+        File dir = folder.newFolder();
+        CanvasJournal journal = new CanvasJournal(dir);
+        for(int i = 0; i < 3; ++i) journal.append(stroke(0, 10));
+        journal.close();
+        // 最後のレコードを書いている途中で落ちた
+        File log = dir.listFiles((d, name) -> name.startsWith("journal-"))[0];
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.setLength(file.length() - 7);
+        file.close();
+        assertEquals(2, reopen(dir).ops.size());
+
+        // 続きは新しいjournalに書くので, 読み込めるものは減らない
+        journal = new CanvasJournal(dir);
+        journal.read(new Collector());
+        journal.append(stroke(0, 4));
+        journal.close();
+        assertEquals(3, reopen(dir).ops.size());
+    }
+
+    @Test
+    public void checkpointReplacesEarlierJournal() throws Exception {
+        File dir = folder.newFolder();
+        CanvasJournal journal = new CanvasJournal(dir);
+        for(int i = 0; i < 10; ++i) journal.append(stroke(0, 8));
+        final int gen = journal.rotate();
+        // チェックポイントを作っている間に確定した線は次のjournalに入る
+        journal.append(stroke(1, 2));
+        journal.checkpoint(gen, Arrays.asList(
+            new CanvasJournal.Tile(0, 0, "a".getBytes()),
+            new CanvasJournal.Tile(3, 1, "bb".getBytes())));
+        journal.close();
+
+        Collector c = reopen(dir);
+        assertEquals(Arrays.asList("0,0:a", "3,1:bb"), c.tiles);
+        assertEquals(1, c.ops.size());
+        assertEquals(1, c.ops.get(0).owner);
+        assertEquals(1, dir.listFiles((d, name) -> name.startsWith("journal-")).length);
+    }
+
+    @Test
+    public void unchangedTilesAreReused() throws Exception {
+        File dir = folder.newFolder();
+        CanvasJournal journal = new CanvasJournal(dir);
+        journal.checkpoint(journal.rotate(), Arrays.asList(
+            new CanvasJournal.Tile(0, 0, "old0".getBytes()),
+            new CanvasJournal.Tile(1, 0, "old1".getBytes())));
+        // (0, 0) だけ書き換えた. (2, 0) は前のチェックポイントに無いので入らない
+        journal.checkpoint(journal.rotate(), Arrays.asList(
+            new CanvasJournal.Tile(0, 0, "new0".getBytes()),
+            new CanvasJournal.Tile(1, 0, null),
+            new CanvasJournal.Tile(2, 0, null)));
+        assertEquals(Arrays.asList("0,0:new0", "1,0:old1"), reopen(dir).tiles);
+
+        // 何度もチェックポイントを重ねてもpackは増え続けない
+        for(int i = 0; i < 20; ++i) {
+            journal.checkpoint(journal.rotate(), Arrays.asList(
+                new CanvasJournal.Tile(0, 0, ("v" + i).getBytes()),
+                new CanvasJournal.Tile(1, 0, null)));
+        }
+        assertEquals(Arrays.asList("0,0:v19", "1,0:old1"), reopen(dir).tiles);
+        assertTrue(dir.listFiles((d, name) -> name.endsWith(".pack")).length <= 8);
+    }
+
+    @Test
+    public void brokenCheckpointFallsBackToJournal() throws Exception {
+        File dir = folder.newFolder();
+        CanvasJournal journal = new CanvasJournal(dir);
+        journal.append(stroke(0, 3));
+        journal.close();
+        // 読めないチェックポイントは無いものとして最初から描き直す
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "checkpoint"), "rw");
+        file.write(new byte[40]);
+        file.close();
+        Collector c = reopen(dir);
+        assertEquals(0, c.tiles.size());
+        assertEquals(1, c.ops.size());
+    }
+
+    @Test
+    public void deltaRecordsAreSmallerThanFloats() throws Exception {
+        File dir = folder.newFolder();
+        CanvasJournal journal = new CanvasJournal(dir);
+        journal.append(stroke(0, 100));
+        journal.close();
+        File log = dir.listFiles((d, name) -> name.startsWith("journal-"))[0];
+        // floatなら 8 + 21 + 100 * 9 byte. 差分なら座標は1点2byte程度
+        assertTrue(log.length() + " bytes", log.length() <= 8 + 21 + 100 * 4);
+    }
+}
@@ -0,0 +1,191 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import android.view.MotionEvent;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CanvasSyncTest {
+
+    // サーバの代わり. 送られたものを送信者以外の全員の受信キューに積むだけ
+    private static class Relay {
+        final List<Client> clients = new ArrayList<>();
+        void broadcast(Client from, Object message) {
+            for(Client c : clients) if(c != from) c.inbox.add(message);
+        }
+    }
+
+    // snapshotの代わりにキャンバスに描いたものの一覧を渡す
+    private static class Snapshot {
+        final List<String> canvas;
+        final Map<String, Integer> seqs;
+        final String to;
+        Snapshot(List<String> canvas, Map<String, Integer> seqs, String to) {
+            this.canvas = canvas;
+            this.seqs = seqs;
+            this.to = to;
+        }
+    }
+
+    private static class Request {
+        final String from, to;
+        Request(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Client {
+        final String uuid;
+        final Relay relay;
+        final CanvasSync sync;
+        final ArrayDeque<Object> inbox = new ArrayDeque<>();
+        final List<String> canvas = new ArrayList<>();
+        Client(Relay relay, String uuid) {
+            this.relay = relay;
+            this.uuid = uuid;
+            this.sync = new CanvasSync(uuid);
+            relay.clients.add(this);
+        }
+        void draw() {
+            DrawMessage m = new DrawMessage("draw", uuid);
+            m.seq = sync.nextSeq();
+            canvas.add(uuid + ":" + m.seq);
+            relay.broadcast(this, m);
+        }
+        void join(String source) {
+            sync.begin();
+            assertTrue(sync.chooseSource(source));
+            relay.broadcast(this, new Request(uuid, source));
+        }
+        // 受信キューを1つ処理する
+        void pump() {
+            Object o = inbox.poll();
+            if(o instanceof DrawMessage) {
+                DrawMessage m = (DrawMessage)o;
+                if(!sync.hold(m)) canvas.add(m.uuid + ":" + m.seq);
+            } else if(o instanceof Request) {
+                Request r = (Request)o;
+                if(!r.to.equals(uuid)) return;
+                sync.requested(r.from);
+                relay.broadcast(this, new Snapshot(new ArrayList<>(canvas), sync.takeRequest(r.from), r.from));
+            } else if(o instanceof Snapshot) {
+                Snapshot s = (Snapshot)o;
+                if(!s.to.equals(uuid)) return;
+                canvas.clear();
+                canvas.addAll(s.canvas);
+                for(DrawMessage m : sync.complete(s.seqs)) canvas.add(m.uuid + ":" + m.seq);
+            }
+        }
+        void pumpAll() {
+            while(!inbox.isEmpty()) pump();
+        }
+    }
+
+    @Test
+    public void lateJoiner_getsSnapshotWithoutDuplicates() throws Exception {
+        Relay relay = new Relay();
+        Client a = new Client(relay, "a");
+        Client b = new Client(relay, "b");
+        for(int i = 0; i < 5; ++i) {
+            a.draw();
+            b.draw();
+        }
+        a.pumpAll();
+        b.pumpAll();
+
+        Client c = new Client(relay, "c");
+        c.join("a");
+        // aがsnapshotを作る前に届いた線はsnapshotにも入る
+        b.draw();
+        a.pumpAll();    // bの線, cのリクエスト の順で処理
+        // snapshotより後の線
+        b.draw();
+        a.draw();
+        a.pumpAll();
+        b.pumpAll();
+        c.pumpAll();
+
+        assertFalse(c.sync.isWaiting());
+        assertEquals(a.canvas.size(), c.canvas.size());
+        assertEquals(new HashSet<>(a.canvas), new HashSet<>(c.canvas));
+        assertEquals(a.canvas.size(), new HashSet<>(c.canvas).size());
+    }
+
+    private static DrawMessage stroke(int action, int seq, float x) {
+        DrawMessage m = new DrawMessage("draw", "a", action, 4, 0xFF000000, x, 0);
+        m.seq = seq;
+        return m;
+    }
+
+    @Test
+    public void strokeCutBySnapshot_resumesFromLastPoint() throws Exception {
+        CanvasSync sync = new CanvasSync("me");
+        sync.begin();
+        sync.hold(stroke(MotionEvent.ACTION_DOWN, 1, 0));
+        sync.hold(stroke(MotionEvent.ACTION_MOVE, 2, 1));
+        sync.hold(stroke(MotionEvent.ACTION_MOVE, 3, 2));
+        sync.hold(stroke(MotionEvent.ACTION_UP, 4, 3));
+        // snapshotには2点目まで入っている
+        List<DrawMessage> rest = sync.complete(Collections.singletonMap("a", 2));
+        assertEquals(3, rest.size());
+        assertEquals(MotionEvent.ACTION_DOWN, rest.get(0).action);
+        assertEquals(1, rest.get(0).x, 0);
+        assertEquals(4, rest.get(0).width, 0);
+        assertEquals(3, rest.get(1).seq);
+        assertEquals(4, rest.get(2).seq);
+    }
+
+    @Test
+    public void strokeStartedBeforeJoin_getsDown() throws Exception {
+        CanvasSync sync = new CanvasSync("me");
+        sync.begin();
+        sync.hold(stroke(MotionEvent.ACTION_MOVE, 7, 5));
+        sync.hold(stroke(MotionEvent.ACTION_UP, 8, 6));
+        sync.hold(stroke(MotionEvent.ACTION_DOWN, 9, 0));
+        List<DrawMessage> rest = sync.giveUp();
+        assertEquals(4, rest.size());
+        assertEquals(MotionEvent.ACTION_DOWN, rest.get(0).action);
+        assertEquals(5, rest.get(0).x, 0);
+        assertEquals(9, rest.get(3).seq);
+    }
+
+    @Test
+    public void heldMessages_flushOnGiveUp() throws Exception {
+        CanvasSync sync = new CanvasSync("me");
+        sync.begin();
+        DrawMessage m = new DrawMessage("draw", "other");
+        m.seq = 1;
+        assertTrue(sync.hold(m));
+        assertEquals(Arrays.asList(m), sync.giveUp());
+        assertFalse(sync.hold(m));
+    }
+
+    @Test
+    public void legacyMessages_withoutSeq_areAlwaysReplayed() throws Exception {
+        CanvasSync sync = new CanvasSync("me");
+        sync.begin();
+        DrawMessage legacy = new DrawMessage("draw", "old");
+        sync.hold(legacy);
+        assertEquals(1, sync.complete(Collections.singletonMap("old", 10)).size());
+    }
+
+    @Test
+    public void request_includesOwnSeq() throws Exception {
+        CanvasSync sync = new CanvasSync("me");
+        sync.nextSeq();
+        sync.nextSeq();
+        sync.requested("new");
+        assertEquals(Integer.valueOf(2), sync.takeRequest("new").get("me"));
+        assertNull(sync.takeRequest("new"));
+    }
+}
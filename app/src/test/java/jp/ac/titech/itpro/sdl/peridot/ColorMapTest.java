@@ -0,0 +1,67 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ColorMapTest {
+
+    @Test
+    public void hsvToColor_matchesPrimaries() throws Exception {
+        assertEquals(0xFFFF0000, ColorMap.hsvToColor(0, 1, 1));
+        assertEquals(0xFF00FF00, ColorMap.hsvToColor(120, 1, 1));
+        assertEquals(0xFF0000FF, ColorMap.hsvToColor(240, 1, 1));
+        assertEquals(0xFFFFFF00, ColorMap.hsvToColor(60, 1, 1));
+        // 360は0と同じ
+        assertEquals(0xFFFF0000, ColorMap.hsvToColor(360, 1, 1));
+    }
+
+    @Test
+    public void hsvToColor_grayAndClamp() throws Exception {
+        assertEquals(0xFF808080, ColorMap.hsvToColor(123, 0, 0.5f));
+        assertEquals(0xFF000000, ColorMap.hsvToColor(200, 1, 0));
+        assertEquals(0xFFFFFFFF, ColorMap.hsvToColor(10, -1, 2));
+    }
+
+    @Test
+    public void hsvToColor_roundsOnlyAtTheEnd() throws Exception {
+        // v * 255 = 127.5. 先に128へ丸めるとp = round(0.7 * 128) = 90 になってしまう
+        assertEquals(0xFF805959, ColorMap.hsvToColor(0, 0.3f, 0.5f));
+        assertEquals(0xFF595980, ColorMap.hsvToColor(240, 0.3f, 0.5f));
+    }
+
+    @Test
+    public void fill_repeatsColumnDownwards() throws Exception {
+        int[] pixels = new int[4 * 3];
+        ColorMap.fill(pixels, 4, 3, x -> x);
+        for(int j = 0; j < 3; ++j) {
+            for(int i = 0; i < 4; ++i) assertEquals(i, pixels[i + j * 4]);
+        }
+    }
+
+    // 各チャンネルの差が1以内
+    private static void assertNear(int expected, int actual) {
+        for(int shift = 0; shift <= 16; shift += 8) {
+            assertEquals(expected >> shift & 0xFF, actual >> shift & 0xFF, 1);
+        }
+        assertEquals(0xFF, actual >>> 24);
+    }
+
+    @Test
+    public void linearBands_matchPerColumnHsv() throws Exception {
+        final int w = 720, h = 3;
+        int[] pixels = new int[w * h];
+        for(float hue : new float[]{0, 37, 200, 359}) {
+            ColorMap.fillSaturation(pixels, w, h, hue, 0.7f);
+            for(int i = 0; i < w; ++i) {
+                assertNear(ColorMap.hsvToColor(hue, i * 1.0f / w, 0.7f), pixels[i]);
+                assertEquals(pixels[i], pixels[i + 2 * w]);
+            }
+            ColorMap.fillValue(pixels, w, h, hue, 0.4f);
+            for(int i = 0; i < w; ++i) {
+                assertNear(ColorMap.hsvToColor(hue, 0.4f, i * 1.0f / w), pixels[i]);
+                assertEquals(pixels[i], pixels[i + 2 * w]);
+            }
+        }
+    }
+}
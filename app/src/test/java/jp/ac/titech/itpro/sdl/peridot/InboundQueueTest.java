@@ -0,0 +1,82 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InboundQueueTest {
+
+    private static final int DOWN = 0, UP = 1, MOVE = 2;
+
+    private final List<Runnable> posted = new ArrayList<>();
+    private final List<String> delivered = new ArrayList<>();
+    private final InboundQueue queue = new InboundQueue(batch -> {
+        for(int i = 0; i < batch.size(); ++i) {
+            DrawMessage m = batch.get(i);
+            delivered.add(batch.kind(i) + ":" + m.uuid + ":" + m.action + ":" + m.getPointCount());
+        }
+    }, posted::add);
+
+    private static DrawMessage draw(String uuid, int stroke, int action, float x) {
+        DrawMessage m = new DrawMessage("draw", uuid, action, 8.f, 0xFF000000, x, 0);
+        m.stroke = stroke;
+        return m;
+    }
+
+    // 次のフレーム
+    private void frame() {
+        List<Runnable> tasks = new ArrayList<>(posted);
+        posted.clear();
+        for(Runnable r : tasks) r.run();
+    }
+
+    @Test
+    public void oneDispatchPerFrame() throws Exception {
+        for(int i = 0; i < 10; ++i) queue.add(draw("a", 0, DOWN, i));
+        assertEquals(1, posted.size());
+        frame();
+        assertEquals(10, delivered.size());
+        // 渡した後に届いたものは次のフレームで
+        queue.add(draw("a", 0, UP, 0));
+        assertEquals(1, posted.size());
+        frame();
+        assertEquals(11, delivered.size());
+    }
+
+    @Test
+    public void movesOfTheSameStrokeAreJoined() throws Exception {
+        queue.add(draw("a", 0, DOWN, 0));
+        queue.add(draw("a", 0, MOVE, 1));
+        queue.add(draw("b", 0, MOVE, 9));
+        queue.add(draw("a", 1, MOVE, 5));
+        queue.add(draw("a", 0, MOVE, 2));
+        queue.add(draw("a", 0, MOVE, 3));
+        queue.add(draw("a", 0, UP, 4));
+        // UPの後ろは別の線
+        queue.add(draw("a", 0, MOVE, 6));
+        frame();
+        assertEquals(6, delivered.size());
+        assertEquals("0:a:2:3", delivered.get(1));
+        assertEquals("0:b:2:1", delivered.get(2));
+        assertEquals("0:a:2:1", delivered.get(3));
+        assertEquals("0:a:1:1", delivered.get(4));
+    }
+
+    @Test
+    public void commandsAreNotCrossed() throws Exception {
+        queue.add(draw("a", 0, MOVE, 1));
+        queue.add(new DrawMessage("clear", "b"));
+        queue.add(draw("a", 0, MOVE, 2));
+        queue.add(new DrawMessage("undo", "a"));
+        queue.add(new DrawMessage("hello", "c"));
+        frame();
+        assertEquals(5, delivered.size());
+        assertEquals(InboundQueue.CLEAR + ":b:0:1", delivered.get(1));
+        assertEquals("0:a:2:1", delivered.get(2));
+        assertEquals(InboundQueue.UNDO + ":a:0:1", delivered.get(3));
+        assertEquals(InboundQueue.UNKNOWN + ":c:0:1", delivered.get(4));
+    }
+}
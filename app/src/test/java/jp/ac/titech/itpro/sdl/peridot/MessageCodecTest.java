@@ -0,0 +1,177 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MessageCodecTest {
+
+    private static DrawMessage roundTrip(DrawMessage m, int peer) {
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        assertTrue(MessageCodec.encode(m, peer, buf));
+        buf.flip();
+        DrawMessage out = new DrawMessage(null, null);
+        assertTrue(MessageCodec.decode(buf, out));
+        assertFalse(buf.hasRemaining());
+        assertEquals(peer, out.peer);
+        return out;
+    }
+
+    @Test
+    public void draw_roundTrip() throws Exception {
+        DrawMessage m = new DrawMessage("draw", "uuid", 0, 16.0f, 0xFFFF0000, 123.25f, 456.5f);
+        DrawMessage out = roundTrip(m, 42);
+        assertEquals("draw", out.type);
+        assertEquals(0, out.action);
+        assertEquals(16.0f, out.width, 0);
+        assertEquals(0xFFFF0000, out.color);
+        assertEquals(123.25f, out.x, 0);
+        assertEquals(456.5f, out.y, 0);
+    }
+
+    @Test
+    public void seq_roundTrip() throws Exception {
+        DrawMessage m = new DrawMessage("draw", "uuid", 2, 16.0f, 0xFFFF0000, 1, 2);
+        m.seq = 300;
+        assertEquals(300, roundTrip(m, 42).seq);
+        DrawMessage clear = new DrawMessage("clear", "uuid");
+        clear.seq = 5;
+        assertEquals(5, roundTrip(clear, 42).seq);
+    }
+
+    @Test
+    public void stroke_roundTrip() throws Exception {
+        DrawMessage m = new DrawMessage("draw", "uuid", 0, 16.0f, 0xFFFF0000, 1, 2);
+        m.stroke = 3;
+        assertEquals(3, roundTrip(m, 42).stroke);
+        // 前に読んだメッセージの番号が残らない
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        DrawMessage first = new DrawMessage("draw", "uuid", 0, 16.0f, 0xFFFF0000, 1, 2);
+        MessageCodec.encode(first, 1, buf);
+        buf.flip();
+        DrawMessage out = new DrawMessage(null, null);
+        out.stroke = 7;
+        assertTrue(MessageCodec.decode(buf, out));
+        assertEquals(0, out.stroke);
+    }
+
+    @Test
+    public void draw_quantizesCoordinates() throws Exception {
+        DrawMessage m = new DrawMessage("draw", "uuid", 1, 3.3f, 0xFF123456, 10.13f, -7.9f);
+        DrawMessage out = roundTrip(m, 1);
+        float step = 1 / MessageCodec.QUANT;
+        assertEquals(3.3f, out.width, step / 2);
+        assertEquals(10.13f, out.x, step / 2);
+        assertEquals(-7.9f, out.y, step / 2);
+        assertEquals(0xFF123456, out.color);
+    }
+
+    @Test
+    public void batch_roundTrip() throws Exception {
+        DrawMessage m = new DrawMessage("draw", "uuid", 2, 8.0f, 0xFF000000, 3.5f, 4.5f);
+        m.points = new float[] { 0.25f, 0.5f, 1.75f, 2.0f, 3.5f, 4.5f };
+        DrawMessage out = roundTrip(m, 3);
+        assertEquals(3, out.getPointCount());
+        for(int i = 0; i < 3; ++i) {
+            assertEquals(m.getX(i), out.getX(i), 0);
+            assertEquals(m.getY(i), out.getY(i), 0);
+        }
+        assertEquals(3.5f, out.x, 0);
+        assertEquals(4.5f, out.y, 0);
+    }
+
+    @Test
+    public void rates_roundTrip() throws Exception {
+        DrawMessage m = new DrawMessage("draw", "uuid", 2, 8.0f, 0xFF000000, 3.5f, 4.5f);
+        m.points = new float[] { 0.25f, 0.5f, 1.75f, 2.0f, 3.5f, 4.5f };
+        m.rates = new float[] { 1.0f, 0.5f, 0.3f };
+        DrawMessage out = roundTrip(m, 3);
+        assertNotNull(out.rates);
+        for(int i = 0; i < 3; ++i) assertEquals(m.rates[i], out.getRate(i), 1.f / 255);
+        // 倍率のないメッセージを続けて読んでも前のものが残らない
+        m.rates = null;
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        MessageCodec.encode(m, 3, buf);
+        buf.flip();
+        assertTrue(MessageCodec.decode(buf, out));
+        assertNull(out.rates);
+        assertEquals(1.0f, out.getRate(0), 0);
+    }
+
+    @Test
+    public void clear_roundTrip() throws Exception {
+        DrawMessage out = roundTrip(new DrawMessage("clear", "uuid"), (1 << 21) - 1);
+        assertEquals("clear", out.type);
+    }
+
+    @Test
+    public void undoRedo_roundTrip() throws Exception {
+        assertEquals("undo", roundTrip(new DrawMessage("undo", "uuid"), 3).type);
+        assertEquals("redo", roundTrip(new DrawMessage("redo", "uuid"), 3).type);
+    }
+
+    @Test
+    public void paletteColor_isSmallerThanInline() throws Exception {
+        ByteBuffer palette = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        ByteBuffer inline = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        MessageCodec.encode(new DrawMessage("draw", "uuid", 0, 16.f, 0xFFFFFFFF, 100, 100), 7, palette);
+        MessageCodec.encode(new DrawMessage("draw", "uuid", 0, 16.f, 0xFF123456, 100, 100), 7, inline);
+        assertEquals(inline.position() - 4, palette.position());
+    }
+
+    @Test
+    public void move_omitsPen() throws Exception {
+        ByteBuffer down = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        ByteBuffer move = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        MessageCodec.encode(new DrawMessage("draw", "uuid", 0, 16.f, 0xFF123456, 100, 100), 7, down);
+        MessageCodec.encode(new DrawMessage("draw", "uuid", 2, 16.f, 0xFF123456, 100, 100), 7, move);
+        // 幅 (varint 1byte) と色 (0xFF + argb) の分だけ小さい
+        assertEquals(down.position() - 6, move.position());
+        DrawMessage out = roundTrip(new DrawMessage("draw", "uuid", 2, 16.f, 0xFF123456, 100, 100), 7);
+        assertEquals(2, out.action);
+        assertEquals(0, out.width, 0);
+        assertEquals(0, out.color);
+    }
+
+    @Test
+    public void precision_roundTrip() throws Exception {
+        DrawMessage m = new DrawMessage("draw", "uuid", 2, 8.0f, 0xFF000000, 0, 0);
+        m.points = new float[] { 1000.125f, -3.875f, 1000.25f, -3.75f, 990.0f, 20.5f };
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        assertTrue(MessageCodec.encode(m, 3, buf, 3));
+        buf.flip();
+        DrawMessage out = new DrawMessage(null, null);
+        assertTrue(MessageCodec.decode(buf, out));
+        for(int i = 0; i < 3; ++i) {
+            assertEquals(m.getX(i), out.getX(i), 0);
+            assertEquals(m.getY(i), out.getY(i), 0);
+        }
+        assertEquals(990.0f, out.x, 0);
+        assertEquals(20.5f, out.y, 0);
+        // 作り直すときに同じ精度で書けるように覚えておく
+        assertEquals(3, out.precision);
+    }
+
+    @Test
+    public void varint_roundTrip() throws Exception {
+        int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+        ByteBuffer buf = ByteBuffer.allocate(5 * values.length);
+        for(int v : values) MessageCodec.putVarint(buf, MessageCodec.zigzag(v));
+        buf.flip();
+        for(int v : values) assertEquals(v, MessageCodec.unzigzag(MessageCodec.getVarint(buf)));
+    }
+
+    @Test
+    public void decode_rejectsUnknownVersionAndTruncated() throws Exception {
+        DrawMessage out = new DrawMessage(null, null);
+        assertFalse(MessageCodec.decode(ByteBuffer.wrap(new byte[] { (byte)0xF1, 1 }), out));
+
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        MessageCodec.encode(new DrawMessage("draw", "uuid", 2, 16.f, 0xFF123456, 100, 100), 7, buf);
+        buf.flip();
+        buf.limit(buf.limit() - 1);
+        assertFalse(MessageCodec.decode(buf, out));
+    }
+}
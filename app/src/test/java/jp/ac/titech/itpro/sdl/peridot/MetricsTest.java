@@ -0,0 +1,59 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test
+    public void bucketsCoverValues() {
+        for(long v : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE}) {
+            final int i = Metrics.Histogram.index(v);
+            assertTrue(v + " >= lowest", v >= Metrics.Histogram.lowest(i));
+            if(v < Long.MAX_VALUE) assertTrue(v + " < next", v < Metrics.Histogram.lowest(i + 1));
+        }
+        // バケットの番号は値の順に並ぶ
+        int prev = -1;
+        for(long v = 0; v < 100000; v += 7) {
+            final int i = Metrics.Histogram.index(v);
+            assertTrue(i >= prev);
+            prev = i;
+        }
+    }
+
+    @Test
+    public void percentileWithinBucketError() {
+        Metrics.Histogram h = new Metrics.Histogram("test", "us");
+        for(long v = 1; v <= 10000; ++v) h.record(v);
+        Metrics.HistogramSnapshot s = h.snapshot(false);
+        assertEquals(10000, s.count);
+        assertEquals(5000.5, s.mean(), 1e-9);
+        assertEquals(10000, s.max);
+        assertEquals(5000, s.percentile(50), 5000 / 16.);
+        assertEquals(9900, s.percentile(99), 9900 / 16.);
+        assertTrue(s.percentile(100) <= 10000);
+    }
+
+    @Test
+    public void snapshotResetsHistogramsButNotCounters() {
+        Metrics.snapshot(true);
+        final long before = Metrics.snapshot(false).counter("dabs");
+        Metrics.DABS.add(3);
+        Metrics.UI_DRAW.record(42);
+        Metrics.RENDER_QUEUE.set(10);
+        Metrics.RENDER_QUEUE.set(2);
+
+        Metrics.Snapshot first = Metrics.snapshot(true);
+        assertEquals(before + 3, first.counter("dabs"));
+        assertEquals(1, first.histogram("ui_draw").count);
+        assertEquals(42, first.histogram("ui_draw").percentile(50));
+        assertTrue(first.format(null).contains("render_queue: 2 (max 10)"));
+
+        Metrics.Snapshot second = Metrics.snapshot(true);
+        assertEquals(before + 3, second.counter("dabs"));
+        assertEquals(0, second.histogram("ui_draw").count);
+        // 最大値は次の区間では今の値から数える
+        assertTrue(second.format(first).contains("render_queue: 2 (max 2)"));
+    }
+}
@@ -0,0 +1,119 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboxTest {
+
+    private static final int DOWN = 0, UP = 1, MOVE = 2;
+
+    private static DrawMessage draw(int action, float x) {
+        return new DrawMessage("draw", "uuid", action, 8.f, 0xFF000000, x, 0);
+    }
+
+    @Test
+    public void moves_areCoalescedPerStroke() throws Exception {
+        Outbox outbox = new Outbox(1000);
+        outbox.add(draw(DOWN, 0));
+        for(int i = 1; i <= 10; ++i) outbox.add(draw(MOVE, i));
+        outbox.add(draw(UP, 11));
+        List<DrawMessage> out = outbox.drain();
+        assertEquals(3, out.size());
+        assertEquals(10, out.get(1).getPointCount());
+        assertEquals(1.f, out.get(1).getX(0), 0);
+        assertEquals(10.f, out.get(1).x, 0);
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void differentPen_isNotCoalesced() throws Exception {
+        Outbox outbox = new Outbox(1000);
+        outbox.add(draw(MOVE, 1));
+        DrawMessage other = draw(MOVE, 2);
+        other.color = 0xFFFF0000;
+        outbox.add(other);
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void otherFinger_isNotCoalesced() throws Exception {
+        Outbox outbox = new Outbox(1000);
+        outbox.add(draw(MOVE, 1));
+        DrawMessage other = draw(MOVE, 2);
+        other.stroke = 1;
+        outbox.add(other);
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void overflow_dropsOldestStroke() throws Exception {
+        Outbox outbox = new Outbox(10);
+        for(int s = 0; s < 3; ++s) {
+            outbox.add(draw(DOWN, s));
+            for(int i = 0; i < 3; ++i) outbox.add(draw(MOVE, s));
+            outbox.add(draw(UP, s));
+        }
+        List<DrawMessage> out = outbox.drain();
+        // 1本5点なので最初の線だけ捨てられる
+        assertEquals(6, out.size());
+        assertEquals(DOWN, out.get(0).action);
+        assertEquals(1.f, out.get(0).x, 0);
+        assertEquals(3, outbox.getDropped());
+    }
+
+    @Test
+    public void overflow_dropsOnlyOneFingersStroke() throws Exception {
+        Outbox outbox = new Outbox(8);
+        DrawMessage[] a = {draw(DOWN, 0), draw(MOVE, 0), draw(MOVE, 0), draw(UP, 0)};
+        DrawMessage[] b = {draw(DOWN, 1), draw(MOVE, 1), draw(MOVE, 1), draw(UP, 1)};
+        for(DrawMessage m : b) m.stroke = 1;
+        // 2本の指が交互に描く (MOVEがまとまらないように互い違いに入れる)
+        for(int i = 0; i < 4; ++i) {
+            outbox.add(a[i]);
+            outbox.add(b[i]);
+        }
+        outbox.add(draw(DOWN, 2));
+        List<DrawMessage> out = outbox.drain();
+        // 最初の指の線だけが丸ごと消えて, 2本目の指の線はDOWNから残る
+        assertEquals(5, out.size());
+        for(int i = 0; i < 4; ++i) assertSame(b[i], out.get(i));
+        assertEquals(2.f, out.get(4).x, 0);
+        assertEquals(4, outbox.getDropped());
+    }
+
+    @Test
+    public void overflow_keepsCommands() throws Exception {
+        Outbox outbox = new Outbox(4);
+        outbox.add(draw(DOWN, 0));
+        outbox.add(draw(MOVE, 0));
+        outbox.add(new DrawMessage("clear", "uuid"));
+        outbox.add(draw(UP, 0));
+        outbox.add(draw(DOWN, 1));
+        outbox.add(draw(MOVE, 1));
+        outbox.add(draw(UP, 1));
+        List<DrawMessage> out = outbox.drain();
+        assertEquals(4, out.size());
+        assertEquals("clear", out.get(0).type);
+        assertEquals(DOWN, out.get(1).action);
+        assertEquals(1.f, out.get(1).x, 0);
+    }
+
+    @Test
+    public void overflow_skipsRestOfOpenStroke() throws Exception {
+        Outbox outbox = new Outbox(2);
+        outbox.add(draw(DOWN, 0));
+        outbox.add(draw(MOVE, 0));
+        outbox.add(new DrawMessage("undo", "uuid"));
+        outbox.add(draw(MOVE, 0));
+        // DOWNを捨てた線の続きはUPまで入らない
+        outbox.add(draw(MOVE, 0));
+        outbox.add(draw(UP, 0));
+        List<DrawMessage> out = outbox.drain();
+        assertEquals(1, out.size());
+        assertEquals("undo", out.get(0).type);
+        assertFalse(outbox.skip(draw(DOWN, 1)));
+    }
+}
@@ -0,0 +1,104 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerRegistryTest {
+
+    @Test
+    public void peersAreReusedWithStableIds() throws Exception {
+        PeerRegistry peers = new PeerRegistry(1);
+        PeerRegistry.Peer a = peers.get("a");
+        PeerRegistry.Peer b = peers.get("b");
+        assertEquals(1, a.id);
+        assertEquals(2, b.id);
+        assertSame(a, peers.get("a"));
+        // 直前と同じ文字列でなくても中身が同じなら同じ相手
+        assertSame(b, peers.get(new String("b")));
+    }
+
+    @Test
+    public void slotsAreSharedOutAndReturned() throws Exception {
+        PeerRegistry peers = new PeerRegistry(1);
+        PeerRegistry.Stroke a = peers.get("a").stroke(0);
+        PeerRegistry.Stroke b = peers.get("b").stroke(0);
+        assertEquals(1, peers.begin(a, 0));
+        assertEquals(2, peers.begin(b, 0));
+        assertTrue(peers.isDrawing());
+        assertEquals(1, peers.end(a));
+        assertEquals(PeerRegistry.NONE, peers.end(a));
+        // 空いたスロットから使う
+        PeerRegistry.Stroke c = peers.get("c").stroke(0);
+        assertEquals(1, peers.begin(c, 0));
+        peers.end(b);
+        peers.end(c);
+        assertFalse(peers.isDrawing());
+    }
+
+    @Test
+    public void strokesOfOnePeerGetTheirOwnSlots() throws Exception {
+        PeerRegistry peers = new PeerRegistry(1);
+        PeerRegistry.Peer a = peers.get("a");
+        // 2本の指で同時に描いている
+        assertEquals(1, peers.begin(a.stroke(0), 0));
+        assertEquals(2, peers.begin(a.stroke(1), 0));
+        assertSame(a.stroke(1), a.stroke(1));
+        assertSame(a, a.stroke(1).peer);
+        assertEquals(1, peers.end(a.stroke(0)));
+        assertEquals(2, a.stroke(1).slot);
+        assertNull(a.stroke(-1));
+        assertNull(a.stroke(PeerRegistry.MAX_STROKES));
+    }
+
+    @Test
+    public void strokesWithoutUpExpire() throws Exception {
+        PeerRegistry peers = new PeerRegistry(1);
+        PeerRegistry.Stroke a = peers.get("a").stroke(0);
+        PeerRegistry.Stroke b = peers.get("b").stroke(3);
+        peers.begin(a, 0);
+        peers.begin(b, 0);
+        b.lastSeen = 900;
+
+        final List<String> expired = new ArrayList<>();
+        peers.expire(1000, 500, (peer, slot) -> expired.add(peer.uuid + ":" + slot));
+        assertEquals(1, expired.size());
+        assertEquals("a:1", expired.get(0));
+        assertEquals(PeerRegistry.NONE, a.slot);
+        assertTrue(a.orphaned);
+        // まだ点が来ている線は残す
+        assertEquals(2, b.slot);
+        assertTrue(peers.isDrawing());
+
+        // 続きは新しい線として描ける
+        assertEquals(1, peers.begin(a, 1100));
+        assertFalse(a.orphaned);
+    }
+
+    @Test
+    public void removedPeersEndTheirStrokesAndIdsAreNotReused() throws Exception {
+        PeerRegistry peers = new PeerRegistry(1);
+        PeerRegistry.Peer a = peers.get("a");
+        PeerRegistry.Peer b = peers.get("b");
+        peers.begin(a.stroke(0), 0);
+        peers.begin(a.stroke(2), 0);
+
+        final List<String> ended = new ArrayList<>();
+        peers.remove("a", (peer, slot) -> ended.add(peer.uuid + ":" + slot));
+        assertEquals(2, ended.size());
+        assertEquals("a:1", ended.get(0));
+        assertEquals("a:2", ended.get(1));
+        assertFalse(peers.isDrawing());
+        peers.remove("a", (peer, slot) -> fail());
+
+        // 入り直した相手も新しい相手も, 外した相手の番号は使わない
+        PeerRegistry.Peer again = peers.get("a");
+        assertNotSame(a, again);
+        assertEquals(3, again.id);
+        assertEquals(4, peers.get("c").id);
+        assertSame(b, peers.get("b"));
+    }
+}
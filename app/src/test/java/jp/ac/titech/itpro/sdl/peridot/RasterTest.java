@@ -0,0 +1,129 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RasterTest {
+
+    private static final int WHITE = 0xFFFFFFFF;
+    private static final int RED = 0xFFFF0000;
+
+    // 波線を1本描く
+    private static void stroke(Raster raster, Pen pen, StrokeEngine.Mode mode) {
+        StrokeEngine engine = new StrokeEngine();
+        Pen.configure(pen, engine, pen.getColor(), pen.getWidth(), Pen.flags(pen, mode));
+        engine.begin(pen);
+        for(int i = 0; i <= 20; ++i) engine.add(20 + i * 8.f, 60 + (float)Math.sin(i * 0.4) * 30.f);
+        engine.end();
+    }
+
+    private static int painted(Raster raster) {
+        int n = 0;
+        for(int p : raster.getPixels()) if(p != WHITE) ++n;
+        return n;
+    }
+
+    @Test
+    public void stamp_isAntialiasedAndSymmetric() throws Exception {
+        Raster raster = new Raster(32, 32, WHITE);
+        raster.drawStamp(Pen.Shape.Circle, 16, 16, 10, RED);
+        assertEquals(RED, raster.getPixel(16, 16));
+        assertEquals(WHITE, raster.getPixel(16, 2));
+        // 縁は中間の色
+        int edge = raster.getPixel(16, 11);
+        assertTrue(edge != RED && edge != WHITE);
+        assertEquals(raster.getPixel(12, 15), raster.getPixel(19, 15));
+        assertEquals(raster.getPixel(15, 12), raster.getPixel(15, 19));
+
+        Raster square = new Raster(32, 32, WHITE);
+        square.drawStamp(Pen.Shape.Square, 16, 16, 10, RED);
+        // 四角は角まで塗る
+        assertEquals(RED, square.getPixel(11, 11));
+        assertEquals(WHITE, raster.getPixel(11, 11));
+    }
+
+    @Test
+    public void stampAndPath_coverTheSameArea() throws Exception {
+        Raster stamp = new Raster(200, 120, WHITE);
+        stroke(stamp, new Pen(stamp, RED, 12), StrokeEngine.Mode.STAMP);
+        Raster path = new Raster(200, 120, WHITE);
+        stroke(path, new Pen(path, RED, 12), StrokeEngine.Mode.PATH);
+        final int a = painted(stamp), b = painted(path);
+        assertTrue(a > 0);
+        assertEquals(a, b, a * 0.03);
+        // 線の真ん中はどちらも同じ色
+        int differ = 0;
+        for(int i = 0; i < stamp.getPixels().length; ++i) {
+            if((stamp.getPixels()[i] == RED) != (path.getPixels()[i] == RED)) ++differ;
+        }
+        assertTrue(differ < a * 0.1);
+    }
+
+    @Test
+    public void squarePath_hasFlatEnds() throws Exception {
+        Raster raster = new Raster(100, 40, WHITE);
+        raster.drawSegment(Pen.Shape.Square, 20, 20, 50, 20, 80, 20, 10, RED);
+        // 端は半幅だけ伸びて, 角まで塗られる
+        assertEquals(RED, raster.getPixel(15, 15));
+        assertEquals(RED, raster.getPixel(84, 24));
+        assertEquals(WHITE, raster.getPixel(13, 20));
+        assertEquals(WHITE, raster.getPixel(87, 20));
+
+        Raster round = new Raster(100, 40, WHITE);
+        round.drawSegment(Pen.Shape.Circle, 20, 20, 50, 20, 80, 20, 10, RED);
+        assertEquals(WHITE, round.getPixel(15, 15));
+        assertEquals(RED, round.getPixel(16, 20));
+    }
+
+    @Test
+    public void eraser_restoresBackground() throws Exception {
+        Raster raster = new Raster(200, 120, WHITE);
+        stroke(raster, new Pen(raster, RED, 12), StrokeEngine.Mode.STAMP);
+        Pen eraser = new Pen(raster, RED, 20);
+        eraser.setMode(Pen.Mode.Eraser);
+        stroke(raster, eraser, StrokeEngine.Mode.PATH);
+        assertEquals(0, painted(raster));
+    }
+
+    @Test
+    public void eraser_usesOwnBackground() throws Exception {
+        final int paper = 0xFF203040;
+        Raster raster = new Raster(200, 120, paper);
+        Pen eraser = new Pen(raster, RED, 20);
+        eraser.setMode(Pen.Mode.Eraser);
+        stroke(raster, eraser, StrokeEngine.Mode.STAMP);
+        for(int p : raster.getPixels()) assertEquals(paper, p);
+    }
+
+    @Test
+    public void history_replaysPixelExact() throws Exception {
+        Raster raster = new Raster(200, 120, WHITE);
+        StrokeLog<int[]> history = new StrokeLog<>(raster);
+        final int[] blank = raster.snapshot();
+
+        Pen pen = new Pen(raster, RED, 8);
+        StrokeLog.Op op = history.begin(0, RED, 8, Pen.flags(pen, StrokeEngine.Mode.STAMP));
+        StrokeEngine engine = new StrokeEngine();
+        Pen.configure(pen, engine, RED, 8, op.flags);
+        engine.begin(pen);
+        for(int i = 0; i <= 20; ++i) {
+            final float x = 20 + i * 8.f, y = 60 + (float)Math.sin(i * 0.4) * 30.f;
+            engine.add(x, y);
+            op.add(x, y);
+        }
+        engine.end();
+        history.commit(op);
+        final int[] drawn = raster.snapshot();
+
+        assertNotNull(history.undo(0));
+        assertArrayEquals(blank, raster.getPixels());
+        assertNotNull(history.redo(0));
+        assertArrayEquals(drawn, raster.getPixels());
+
+        history.clear(0);
+        raster.clear();
+        assertNotNull(history.undo(0));
+        assertArrayEquals(drawn, raster.getPixels());
+    }
+}
@@ -0,0 +1,81 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RenderQueueTest {
+
+    private static class Recorder implements RenderQueue.Handler {
+        final List<String> log = new ArrayList<>();
+        @Override public void begin(int slot, int owner, int color, float width, int flags) {
+            log.add("begin " + slot + " " + owner + " " + Integer.toHexString(color) + " " + width + " " + flags);
+        }
+        @Override public void point(int slot, float x, float y, float rate) {
+            log.add("point " + slot + " " + x + " " + y + (rate != 1.0f ? " " + rate : ""));
+        }
+        @Override public void end(int slot) {
+            log.add("end " + slot);
+        }
+        @Override public void command(int op, int arg) {
+            log.add("command " + op + " " + arg);
+        }
+    }
+
+    @Test
+    public void commandsAreDrainedInOrder() throws Exception {
+        RenderQueue queue = new RenderQueue();
+        queue.begin(1, 7, 0xFFFF0000, 16.f, 0x12);
+        queue.points(1, new float[] { 1, 2, 3, 4, 99 }, 2);
+        queue.point(2, 5, 6, 0.5f);
+        queue.end(1);
+        queue.command(RenderQueue.CLEAR, 0);
+        assertTrue(queue.await());
+
+        Recorder recorder = new Recorder();
+        queue.drain(recorder);
+        assertEquals(6, recorder.log.size());
+        assertEquals("begin 1 7 ffff0000 16.0 18", recorder.log.get(0));
+        assertEquals("point 1 1.0 2.0", recorder.log.get(1));
+        assertEquals("point 1 3.0 4.0", recorder.log.get(2));
+        assertEquals("point 2 5.0 6.0 0.5", recorder.log.get(3));
+        assertEquals("end 1", recorder.log.get(4));
+        assertEquals("command " + RenderQueue.CLEAR + " 0", recorder.log.get(5));
+
+        // 空になったら何も流れない
+        recorder.log.clear();
+        queue.drain(recorder);
+        assertTrue(recorder.log.isEmpty());
+    }
+
+    @Test
+    public void queueGrowsBeyondInitialCapacity() throws Exception {
+        RenderQueue queue = new RenderQueue();
+        for(int i = 0; i < 10000; ++i) queue.point(0, i, -i);
+        Recorder recorder = new Recorder();
+        queue.drain(recorder);
+        assertEquals(10000, recorder.log.size());
+        assertEquals("point 0 9999.0 -9999.0", recorder.log.get(9999));
+    }
+
+    @Test
+    public void closeReleasesWaitingThread() throws Exception {
+        RenderQueue queue = new RenderQueue();
+        final boolean[] result = { true };
+        Thread t = new Thread(() -> {
+            try {
+                result[0] = queue.await();
+            } catch (InterruptedException e) {
+                fail();
+            }
+        });
+        t.start();
+        queue.close();
+        t.join(1000);
+        assertFalse(t.isAlive());
+        assertFalse(result[0]);
+    }
+}
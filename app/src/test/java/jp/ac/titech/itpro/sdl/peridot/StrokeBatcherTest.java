@@ -0,0 +1,85 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import android.view.MotionEvent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.junit.Assert.*;
+
+public class StrokeBatcherTest {
+
+    private final List<DrawMessage> sent = new ArrayList<>();
+    private final TestScheduler scheduler = new TestScheduler();
+    private long queueSize = 0;
+    private StrokeBatcher batcher;
+
+    @Before
+    public void setUp() throws Exception {
+        batcher = new StrokeBatcher(new StrokeBatcher.Sender() {
+            @Override public boolean send(DrawMessage message) {
+                return sent.add(message);
+            }
+            @Override public long queueSize() {
+                return queueSize;
+            }
+        }, scheduler, "uuid");
+    }
+
+    @Test
+    public void movesAreSentAsOneBatchPerWindow() throws Exception {
+        batcher.add(MotionEvent.ACTION_DOWN, 4, 0, 0, 0);
+        for(int i = 1; i <= 10; ++i) batcher.add(MotionEvent.ACTION_MOVE, 4, 0, i, i);
+        assertEquals(1, sent.size());
+
+        scheduler.advanceTimeBy(16, TimeUnit.MILLISECONDS);
+        assertEquals(2, sent.size());
+        assertEquals(10, sent.get(1).getPointCount());
+        assertEquals(10.f, sent.get(1).x, 0);
+
+        batcher.add(MotionEvent.ACTION_MOVE, 4, 0, 11, 11);
+        batcher.add(MotionEvent.ACTION_UP, 4, 0, 12, 12);
+        assertEquals(4, sent.size());
+        assertEquals(MotionEvent.ACTION_MOVE, sent.get(2).action);
+        assertEquals(MotionEvent.ACTION_UP, sent.get(3).action);
+    }
+
+    @Test
+    public void toleranceDropsCollinearPoints() throws Exception {
+        batcher.setTolerance(0.5f);
+        batcher.add(MotionEvent.ACTION_DOWN, 4, 0, 0, 0);
+        for(int i = 1; i <= 10; ++i) batcher.add(MotionEvent.ACTION_MOVE, 4, 0, i, i <= 5 ? 0 : i - 5);
+        scheduler.advanceTimeBy(16, TimeUnit.MILLISECONDS);
+        // 折れ曲がるところと両端だけ残る
+        DrawMessage m = sent.get(1);
+        assertEquals(3, m.getPointCount());
+        assertEquals(5.f, m.getX(1), 0);
+        assertEquals(10.f, m.x, 0);
+        assertEquals(5.f, m.y, 0);
+    }
+
+    @Test
+    public void congestedSocketThinsPendingPoints() throws Exception {
+        queueSize = Long.MAX_VALUE;
+        batcher.add(MotionEvent.ACTION_DOWN, 4, 0, 0, 0);
+        for(int i = 1; i <= 1000; ++i) {
+            batcher.add(MotionEvent.ACTION_MOVE, 4, 0, i, 0);
+            scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1, sent.size());
+
+        queueSize = 0;
+        scheduler.advanceTimeBy(16, TimeUnit.MILLISECONDS);
+        assertEquals(2, sent.size());
+        DrawMessage batch = sent.get(1);
+        assertTrue(batch.getPointCount() <= MessageCodec.MAX_POINTS);
+        assertEquals(1.f, batch.getX(0), 0);
+        assertEquals(1000.f, batch.getX(batch.getPointCount() - 1), 0);
+    }
+}
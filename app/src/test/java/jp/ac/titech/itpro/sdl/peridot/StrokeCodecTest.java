@@ -0,0 +1,113 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StrokeCodecTest {
+
+    private static float[] roundTrip(float[] xy, int count, int precision) {
+        ByteBuffer buf = ByteBuffer.allocate(count * StrokeCodec.MAX_POINT_SIZE);
+        StrokeCodec.putPoints(buf, xy, count, precision);
+        buf.flip();
+        float[] out = new float[count * 2];
+        StrokeCodec.getPoints(buf, out, count, precision);
+        assertFalse(buf.hasRemaining());
+        return out;
+    }
+
+    @Test
+    public void points_roundTripWithinPrecision() throws Exception {
+        Random random = new Random(1);
+        float[] xy = new float[1000 * 2];
+        float x = 500, y = 500;
+        for(int i = 0; i < 1000; ++i) {
+            x += random.nextFloat() * 6 - 3;
+            y += random.nextFloat() * 6 - 3;
+            xy[i * 2] = x;
+            xy[i * 2 + 1] = y;
+        }
+        for(int precision = 0; precision <= 4; ++precision) {
+            float[] out = roundTrip(xy, 1000, precision);
+            // 差分を足していっても誤差は1点分の丸めのまま
+            final float step = 1.f / (1 << precision);
+            for(int i = 0; i < xy.length; ++i) assertEquals(xy[i], out[i], step / 2 + 1e-4f);
+        }
+    }
+
+    @Test
+    public void nearbyPointsTakeTwoBytes() throws Exception {
+        float[] xy = new float[100 * 2];
+        for(int i = 0; i < 100; ++i) {
+            xy[i * 2] = 3000 + i * 2.f;
+            xy[i * 2 + 1] = 2000 - i * 1.5f;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(100 * StrokeCodec.MAX_POINT_SIZE);
+        StrokeCodec.putPoints(buf, xy, 100, 2);
+        // 始点だけ絶対座標 (x: 3byte, y: 2byte). 後は1座標1byte
+        assertEquals(3 + 2 + 99 * 2, buf.position());
+    }
+
+    @Test
+    public void simplify_keepsCornersAndEnds() throws Exception {
+        // (0,0) -> (10,0) -> (10,10) を1px間隔で, 少し揺らす
+        float[] xy = new float[21 * 2];
+        float[] rates = new float[21];
+        for(int i = 0; i <= 20; ++i) {
+            xy[i * 2] = i <= 10 ? i : 10 + (i % 2) * 0.1f;
+            xy[i * 2 + 1] = i <= 10 ? (i % 2) * 0.1f : i - 10;
+            rates[i] = i;
+        }
+        final int n = StrokeCodec.simplify(xy, rates, 21, 0.5f);
+        assertEquals(3, n);
+        assertArrayEquals(new float[] { 0, 0, 10, 0, 10, 10 }, Arrays.copyOf(xy, 6), 0);
+        assertArrayEquals(new float[] { 0, 10, 20 }, Arrays.copyOf(rates, 3), 0);
+    }
+
+    @Test
+    public void simplify_reusesScratch() throws Exception {
+        boolean[] keep = new boolean[8];
+        int[] stack = new int[16];
+        float[] line = { 0, 0, 1, 0, 2, 0, 3, 0, 4, 0 };
+        assertEquals(2, StrokeCodec.simplify(line, null, 5, 0.5f, keep, stack));
+        // 前の呼び出しで立てた印が残っていても同じ結果になる
+        float[] corner = { 0, 0, 1, 0, 2, 0, 2, 1, 2, 2 };
+        assertEquals(3, StrokeCodec.simplify(corner, null, 5, 0.5f, keep, stack));
+        assertArrayEquals(new float[] { 0, 0, 2, 0, 2, 2 }, Arrays.copyOf(corner, 6), 0);
+        Arrays.fill(keep, true);
+        float[] again = { 0, 0, 1, 0, 2, 0, 3, 0, 4, 0 };
+        assertEquals(2, StrokeCodec.simplify(again, null, 5, 0.5f, keep, stack));
+    }
+
+    @Test
+    public void simplify_staysWithinTolerance() throws Exception {
+        Random random = new Random(2);
+        float[] xy = new float[500 * 2];
+        for(int i = 0; i < 500; ++i) {
+            final double t = i / 50.0;
+            xy[i * 2] = (float)(100 * Math.cos(t) + random.nextGaussian() * 0.2);
+            xy[i * 2 + 1] = (float)(100 * Math.sin(t) + random.nextGaussian() * 0.2);
+        }
+        float[] kept = xy.clone();
+        final int n = StrokeCodec.simplify(kept, null, 500, 1.f);
+        assertTrue(n < 100);
+        // 捨てた点は残った折れ線から1px以内
+        for(int i = 0; i < 500; ++i) {
+            double best = Double.MAX_VALUE;
+            for(int j = 0; j + 1 < n; ++j) best = Math.min(best, distance(xy[i * 2], xy[i * 2 + 1], kept, j));
+            assertTrue(i + ": " + best, best <= 1.f + 1e-4);
+        }
+    }
+
+    private static double distance(float x, float y, float[] line, int j) {
+        final double ax = line[j * 2], ay = line[j * 2 + 1];
+        final double dx = line[j * 2 + 2] - ax, dy = line[j * 2 + 3] - ay;
+        final double len2 = dx * dx + dy * dy;
+        final double t = len2 > 0 ? Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / len2)) : 0;
+        return Math.hypot(x - ax - t * dx, y - ay - t * dy);
+    }
+}
@@ -0,0 +1,207 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class StrokeEngineTest {
+
+    private static class CountingStamp implements StrokeEngine.Stamp {
+        int count = 0;
+        float lastX, lastY;
+        int segments = 0;
+        @Override public void draw(float x, float y, float rate) {
+            ++count;
+            lastX = x;
+            lastY = y;
+        }
+        @Override public void drawSegment(float x1, float y1, float x2, float y2, float x3, float y3) {
+            ++segments;
+            lastX = x3;
+            lastY = y3;
+        }
+    }
+
+    @Test
+    public void segmentIsDrawnEveryTwoPoints() throws Exception {
+        CountingStamp stamp = new CountingStamp();
+        StrokeEngine engine = new StrokeEngine();
+        engine.setMode(StrokeEngine.Mode.STAMP);
+        engine.begin(stamp);
+        assertFalse(engine.add(0, 0));
+        assertFalse(engine.add(10, 0));
+        assertTrue(engine.add(20, 0));
+        // 幅1なら1pxごと. 長さ20の区間は始点を含めて21回
+        assertEquals(21, stamp.count);
+        assertEquals(20.f, stamp.lastX, 1e-4f);
+        assertFalse(engine.add(30, 0));
+        assertTrue(engine.add(40, 0));
+        assertEquals(40.f, stamp.lastX, 1e-4f);
+        engine.end();
+        assertFalse(engine.add(50, 0));
+    }
+
+    @Test
+    public void rateIsInterpolatedAlongTheCurve() throws Exception {
+        final float[] rates = new float[64];
+        final int[] n = {0};
+        StrokeEngine engine = new StrokeEngine();
+        engine.setMode(StrokeEngine.Mode.STAMP);
+        engine.begin(new CountingStamp() {
+            @Override public void draw(float x, float y, float rate) {
+                rates[n[0]++] = rate;
+            }
+        });
+        engine.add(0, 0, 1.0f);
+        engine.add(10, 0, 0.5f);
+        engine.add(20, 0, 0.5f);
+        assertEquals(1.0f, rates[0], 1e-4f);
+        assertEquals(0.5f, rates[n[0] - 1], 1e-4f);
+        // 間はなめらかに細くなる
+        for(int i = 1; i < n[0]; ++i) assertTrue(rates[i] <= rates[i - 1] + 1e-4f);
+    }
+
+    // アンチエイリアスした丸を塗るだけの小さなキャンバス (値は不透明度 0-1)
+    // 重ね塗りで縁が濃くなる分ではなく線の形を比べたいので, 重なったところは大きい方を取る
+    private static class Raster implements StrokeEngine.Stamp {
+        final int w, h;
+        final float width;
+        final float[] alpha;
+        int count = 0;
+        Raster(int w, int h, float width) {
+            this.w = w;
+            this.h = h;
+            this.width = width;
+            alpha = new float[w * h];
+        }
+        @Override public void draw(float x, float y, float rate) {
+            ++count;
+            final float r = width * rate / 2;
+            for(int py = Math.max(0, (int)(y - r - 1)); py < Math.min(h, (int)(y + r + 2)); ++py) {
+                for(int px = Math.max(0, (int)(x - r - 1)); px < Math.min(w, (int)(x + r + 2)); ++px) {
+                    final float c = Math.max(0, Math.min(1, r + 0.5f - StrokeEngine.dist(x, y, px + 0.5f, py + 0.5f)));
+                    alpha[py * w + px] = Math.max(alpha[py * w + px], c);
+                }
+            }
+        }
+        @Override public void drawSegment(float x1, float y1, float x2, float y2, float x3, float y3) {
+        }
+    }
+
+    // 波線の入力点 [x0, y0, x1, y1, ...]
+    private static float[] wave(int n) {
+        float[] xy = new float[n * 2];
+        for(int i = 0; i < n; ++i) {
+            xy[i * 2] = 120 + i * 12.f;
+            xy[i * 2 + 1] = 200 + (float)Math.sin(i * 0.3) * 80.f;
+        }
+        return xy;
+    }
+
+    // 以前の描き方: 区間の長さ1pxごとに端点も含めて押す
+    private static void drawDense(Raster raster, float[] xy) {
+        for(int i = 2; i < xy.length / 2; i += 2) {
+            final float x1 = xy[i * 2 - 4], y1 = xy[i * 2 - 3], x2 = xy[i * 2 - 2], y2 = xy[i * 2 - 1], x3 = xy[i * 2], y3 = xy[i * 2 + 1];
+            final int d = 1 + (int)Math.floor(StrokeEngine.dist(x1, y1, x2, y2) + StrokeEngine.dist(x2, y2, x3, y3));
+            for(int k = 0; k <= d; ++k) {
+                final float t = k * 1.0f / d;
+                raster.draw(StrokeEngine.interpolate(x1, x2, x3, t), StrokeEngine.interpolate(y1, y2, y3, t), 1.0f);
+            }
+        }
+    }
+
+    @Test
+    public void adaptiveSpacingMatchesDenseStamping() throws Exception {
+        final float[] xy = wave(81);
+        for(float width : new float[] { 8, 64, 200 }) {
+            Raster dense = new Raster(1400, 400, width);
+            drawDense(dense, xy);
+
+            Raster spaced = new Raster(1400, 400, width);
+            StrokeEngine engine = new StrokeEngine();
+            engine.setMode(StrokeEngine.Mode.STAMP);
+            engine.setSpacing(width, StrokeEngine.SPACING, StrokeEngine.MIN_SPACING);
+            engine.begin(spaced);
+            for(int i = 0; i < xy.length / 2; ++i) engine.add(xy[i * 2], xy[i * 2 + 1]);
+            engine.end();
+
+            // 縁の波打ちは幅の0.25%まで (幅200で0.5px). それより大きく変わる画素はない
+            final float tolerance = 0.15f + width * 0.0025f;
+            for(int i = 0; i < dense.alpha.length; ++i) {
+                final float diff = Math.abs(dense.alpha[i] - spaced.alpha[i]);
+                assertTrue("width " + width + " diff " + diff, diff < tolerance);
+            }
+            if(width >= 64) assertTrue(spaced.count * 5 < dense.count);
+        }
+    }
+
+    @Test
+    public void spacingCarriesAcrossSegments() throws Exception {
+        final float[] xs = new float[64];
+        final int[] n = {0};
+        StrokeEngine engine = new StrokeEngine();
+        engine.setMode(StrokeEngine.Mode.STAMP);
+        engine.setSpacing(100, 0.1f, 1);
+        engine.begin(new CountingStamp() {
+            @Override public void draw(float x, float y, float rate) {
+                xs[n[0]++] = x;
+            }
+        });
+        // 長さ6.8の区間をまたいでも10pxおきに押す
+        for(int i = 0; i <= 20; ++i) engine.add(i * 3.4f, 0);
+        engine.end();
+        assertEquals(8, n[0]);
+        for(int i = 1; i < n[0] - 1; ++i) assertEquals(10.f, xs[i] - xs[i - 1], 1e-3f);
+        // 最後は終点
+        assertEquals(68.f, xs[n[0] - 1], 1e-3f);
+    }
+
+    @Test
+    public void pathModeDrawsOneCallPerSegment() throws Exception {
+        CountingStamp stamp = new CountingStamp();
+        StrokeEngine engine = new StrokeEngine();
+        engine.setMode(StrokeEngine.Mode.PATH);
+        engine.begin(stamp);
+        for(int i = 0; i <= 10; ++i) engine.add(i * 100.f, 0);
+        assertEquals(5, stamp.segments);
+        assertEquals(0, stamp.count);
+        assertEquals(1000.f, stamp.lastX, 0);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        assumeAllocationCounting(bean);
+        CountingStamp stamp = new CountingStamp();
+        StrokeEngine engine = new StrokeEngine();
+        engine.setMode(StrokeEngine.Mode.STAMP);
+
+        // 配列が伸びきるまで回しておく
+        drawStroke(engine, stamp, 1000);
+
+        final long tid = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(tid);
+        final int segments = drawStroke(engine, stamp, 100000);
+        final long allocated = bean.getThreadAllocatedBytes(tid) - before;
+        assertEquals(50000, segments);
+        // 1区間に1つでも作れば50000 * 16byte以上になる. 計測自体の分だけ余裕を見る
+        assertTrue(allocated + " bytes allocated", allocated < 4096);
+    }
+
+    private static int drawStroke(StrokeEngine engine, StrokeEngine.Stamp stamp, int points) {
+        int segments = 0;
+        engine.begin(stamp);
+        for(int i = 0; i <= points; ++i) {
+            if(engine.add(i * 3.f, (float)Math.sin(i * 0.1) * 50.f)) ++segments;
+        }
+        engine.end();
+        return segments;
+    }
+
+    private static void assumeAllocationCounting(com.sun.management.ThreadMXBean bean) {
+        org.junit.Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+    }
+}
@@ -0,0 +1,148 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StrokeIndexTest {
+
+    // 3点ずつの2次ベジエとして描かれるので, まっすぐな線は中点を挟む
+    private static StrokeLog.Op stroke(float width, float... xy) {
+        StrokeLog.Op op = new StrokeLog.Op(0, false, 0xFF000000, width, 0);
+        for(int i = 0; i < xy.length; i += 2) op.add(xy[i], xy[i + 1]);
+        return op;
+    }
+
+    @Test
+    public void hit_returnsTopmostStroke() throws Exception {
+        StrokeIndex index = new StrokeIndex();
+        StrokeLog.Op below = stroke(10, 0, 50, 100, 50, 200, 50);
+        StrokeLog.Op above = stroke(10, 100, 0, 100, 100, 100, 200);
+        index.add(below);
+        index.add(above);
+        assertSame(above, index.hit(100, 50, 0));
+        assertSame(below, index.hit(20, 53, 0));
+        assertNull(index.hit(20, 60, 0));
+        assertSame(below, index.hit(20, 60, 6));
+
+        above.undone = true;
+        assertSame(below, index.hit(100, 50, 0));
+    }
+
+    @Test
+    public void query_returnsStrokesInDrawingOrder() throws Exception {
+        StrokeIndex index = new StrokeIndex();
+        StrokeLog.Op a = stroke(4, 0, 0, 500, 0, 1000, 0);
+        StrokeLog.Op b = stroke(4, 500, -100, 500, 0, 500, 100);
+        StrokeLog.Op c = stroke(4, 2000, 2000, 2050, 2050, 2100, 2100);
+        index.add(a);
+        index.add(b);
+        index.add(c);
+        List<StrokeLog.Op> out = new ArrayList<>();
+        assertEquals(2, index.query(400, -10, 600, 10, out));
+        assertSame(a, out.get(0));
+        assertSame(b, out.get(1));
+    }
+
+    @Test
+    public void nearest_findsClosestEdge() throws Exception {
+        StrokeIndex index = new StrokeIndex();
+        StrokeLog.Op thin = stroke(2, 0, 0, 0, 50, 0, 100);
+        StrokeLog.Op thick = stroke(40, 100, 0, 100, 50, 100, 100);
+        index.add(thin);
+        index.add(thick);
+        // 中心は細い線の方が近いが, 縁は太い線の方が近い
+        assertSame(thick, index.nearest(60, 50, 500));
+        assertSame(thin, index.nearest(-300, 50, 500));
+        assertNull(index.nearest(-300, 50, 100));
+    }
+
+    @Test
+    public void randomQueries_matchLinearScan() throws Exception {
+        Random random = new Random(7);
+        StrokeIndex index = new StrokeIndex();
+        List<StrokeLog.Op> all = new ArrayList<>();
+        for(int s = 0; s < 500; ++s) {
+            float x = random.nextFloat() * 2000, y = random.nextFloat() * 2000;
+            StrokeLog.Op op = stroke(1 + random.nextFloat() * 30, x, y);
+            for(int i = 0; i < 10; ++i) {
+                x += random.nextFloat() * 60 - 30;
+                y += random.nextFloat() * 60 - 30;
+                op.add(x, y);
+            }
+            index.add(op);
+            all.add(op);
+        }
+        for(int q = 0; q < 200; ++q) {
+            float x = random.nextFloat() * 2000, y = random.nextFloat() * 2000;
+            StrokeLog.Op expected = null;
+            for(StrokeLog.Op op : all) {
+                if(StrokeIndex.gap(op, x, y) <= 3) expected = op;
+            }
+            assertSame(expected, index.hit(x, y, 3));
+        }
+    }
+
+    @Test
+    public void hit_followsDrawnCurveNotPolyline() throws Exception {
+        StrokeIndex index = new StrokeIndex();
+        // 中の点は制御点なので, 曲線は (50, 50) までしか上がらない
+        StrokeLog.Op arc = stroke(4, 0, 0, 50, 100, 100, 0);
+        index.add(arc);
+        assertNull(index.hit(50, 100, 1));
+        assertSame(arc, index.hit(50, 50, 0));
+        // 3つ組に入らない最後の点は描かれない
+        StrokeLog.Op tail = stroke(4, 0, 300, 50, 300, 100, 300, 200, 300);
+        index.add(tail);
+        assertSame(tail, index.hit(90, 300, 0));
+        assertNull(index.hit(150, 300, 0));
+    }
+
+    @Test
+    public void hit_usesWidthRates() throws Exception {
+        StrokeIndex index = new StrokeIndex();
+        StrokeLog.Op op = new StrokeLog.Op(0, false, 0xFF000000, 10, 0);
+        op.add(0, 0, 1);
+        op.add(50, 0, 1);
+        op.add(100, 0, 3);
+        index.add(op);
+        assertNull(index.hit(0, 10, 0));
+        assertSame(op, index.hit(100, 14, 0));
+    }
+
+    @Test
+    public void remove_dropsStrokeFromAllQueries() throws Exception {
+        StrokeIndex index = new StrokeIndex();
+        List<StrokeLog.Op> ops = new ArrayList<>();
+        for(int i = 0; i < 10; ++i) {
+            StrokeLog.Op op = stroke(4, 0, i * 10, 100, i * 10, 200, i * 10);
+            ops.add(op);
+            index.add(op);
+        }
+        // 古い方から外していくと先頭が詰められる
+        for(int i = 0; i < 7; ++i) index.remove(ops.get(i));
+        assertEquals(3, index.size());
+        assertNull(index.hit(100, 0, 0));
+        assertSame(ops.get(7), index.hit(100, 70, 0));
+        List<StrokeLog.Op> out = new ArrayList<>();
+        assertEquals(3, index.query(0, 0, 200, 100, out));
+        assertSame(ops.get(7), out.get(0));
+        assertSame(ops.get(9), index.nearest(100, 200, 500));
+
+        StrokeLog.Op next = stroke(4, 0, 0, 100, 0, 200, 0);
+        index.add(next);
+        assertSame(next, index.hit(100, 0, 0));
+        index.remove(ops.get(8));
+        index.remove(ops.get(9));
+        index.remove(next);
+        index.remove(next);
+        assertEquals(1, index.size());
+        assertSame(ops.get(7), index.nearest(100, 0, 500));
+        index.remove(ops.get(7));
+        assertNull(index.nearest(100, 0, 500));
+    }
+}
@@ -0,0 +1,129 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StrokeLogTest {
+
+    // キャンバスの代わりに描いた線の色を並べるだけ
+    private static class FakeCanvas implements StrokeLog.Target<List<Integer>> {
+        List<Integer> drawn = new ArrayList<>();
+        int restores = 0;
+        int replays = 0;
+        @Override public List<Integer> snapshot() {
+            return new ArrayList<>(drawn);
+        }
+        @Override public void restore(List<Integer> snapshot) {
+            drawn = new ArrayList<>(snapshot);
+            ++restores;
+        }
+        @Override public void replay(StrokeLog.Op op) {
+            if(op.clear) drawn.clear(); else drawn.add(op.color);
+            ++replays;
+        }
+    }
+
+    private static void stroke(StrokeLog<?> log, FakeCanvas canvas, int owner, int color) {
+        StrokeLog.Op op = log.begin(owner, color, 1, 0);
+        op.add(0, 0);
+        canvas.drawn.add(color);
+        log.commit(op);
+    }
+
+    @Test
+    public void undo_removesOnlyOwnersLastStroke() throws Exception {
+        FakeCanvas canvas = new FakeCanvas();
+        StrokeLog<List<Integer>> log = new StrokeLog<>(canvas);
+        stroke(log, canvas, 0, 1);
+        stroke(log, canvas, 1, 2);
+        stroke(log, canvas, 0, 3);
+        stroke(log, canvas, 1, 4);
+
+        assertNotNull(log.undo(0));
+        assertEquals(Arrays.asList(1, 2, 4), canvas.drawn);
+        assertNotNull(log.redo(0));
+        assertEquals(Arrays.asList(1, 2, 3, 4), canvas.drawn);
+        assertNull(log.redo(0));
+        assertNull(log.undo(2));
+    }
+
+    @Test
+    public void undo_replaysFromNearestCheckpoint() throws Exception {
+        FakeCanvas canvas = new FakeCanvas();
+        StrokeLog<List<Integer>> log = new StrokeLog<>(canvas);
+        log.setBudget(4, 100, 100000);
+        for(int i = 0; i < 20; ++i) stroke(log, canvas, 0, i);
+
+        assertNotNull(log.undo(0));
+        // 直前のチェックポイント (16本目) から3本だけ描き直す
+        assertEquals(3, canvas.replays);
+        assertEquals(19, canvas.drawn.size());
+    }
+
+    @Test
+    public void newStroke_dropsRedo() throws Exception {
+        FakeCanvas canvas = new FakeCanvas();
+        StrokeLog<List<Integer>> log = new StrokeLog<>(canvas);
+        stroke(log, canvas, 0, 1);
+        log.undo(0);
+        stroke(log, canvas, 0, 2);
+        assertNull(log.redo(0));
+    }
+
+    @Test
+    public void trim_keepsCheckpointBudget() throws Exception {
+        FakeCanvas canvas = new FakeCanvas();
+        StrokeLog<List<Integer>> log = new StrokeLog<>(canvas);
+        log.setBudget(4, 2, 100000);
+        for(int i = 0; i < 20; ++i) stroke(log, canvas, 0, i);
+        // 古い操作は畳み込まれて残りは8本以内
+        assertTrue(log.size() <= 8);
+        for(int i = 0; i < 20; ++i) log.undo(0);
+        assertTrue(canvas.drawn.size() >= 12);
+    }
+
+    @Test
+    public void trim_keepsBudgetWhileStrokesOverlap() throws Exception {
+        FakeCanvas canvas = new FakeCanvas();
+        StrokeLog<List<Integer>> log = new StrokeLog<>(canvas);
+        log.setBudget(4, 2, 100000);
+        // 常に誰かが描いている途中の状態で確定していく
+        StrokeLog.Op open = log.begin(1, 0, 1, 0);
+        open.add(0, 0);
+        canvas.drawn.add(0);
+        for(int i = 1; i <= 100; ++i) {
+            StrokeLog.Op next = log.begin(1, i, 1, 0);
+            next.add(0, 0);
+            canvas.drawn.add(i);
+            log.commit(open);
+            open = next;
+            assertTrue(log.size() <= 8);
+        }
+        // 途中の線も描き戻されている
+        assertEquals(Integer.valueOf(100), canvas.drawn.get(canvas.drawn.size() - 1));
+        assertEquals(101, canvas.drawn.size());
+        log.commit(open);
+        assertNotNull(log.undo(1));
+        assertEquals(100, canvas.drawn.size());
+        assertFalse(canvas.drawn.contains(100));
+    }
+
+    @Test
+    public void committedSnapshot_leavesOutOpenStrokes() throws Exception {
+        FakeCanvas canvas = new FakeCanvas();
+        StrokeLog<List<Integer>> log = new StrokeLog<>(canvas);
+        StrokeLog.Op open = log.begin(1, 9, 1, 0);
+        open.add(0, 0);
+        canvas.drawn.add(9);
+        stroke(log, canvas, 0, 1);
+        stroke(log, canvas, 0, 2);
+        assertEquals(Arrays.asList(1, 2), log.committedSnapshot());
+        // 描いている途中の線はキャンバスに残る
+        assertEquals(Arrays.asList(1, 2, 9), canvas.drawn);
+    }
+}
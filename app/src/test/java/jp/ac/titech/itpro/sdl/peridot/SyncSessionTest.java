@@ -0,0 +1,158 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okio.ByteString;
+
+import static org.junit.Assert.*;
+
+public class SyncSessionTest {
+
+    private static DrawMessage draw(String uuid, int seq) {
+        DrawMessage m = new DrawMessage("draw", uuid);
+        m.seq = seq;
+        return m;
+    }
+
+    // 送ったフレームを覚えておくだけのWebSocket. キューは手で空ける
+    private static class FakeSocket implements WebSocket {
+        final List<String> sent = new ArrayList<>();
+        long queued = 0;
+        @Override public Request request() {
+            return null;
+        }
+        @Override public long queueSize() {
+            return queued;
+        }
+        @Override public boolean send(String text) {
+            sent.add(text);
+            queued += text.length();
+            return true;
+        }
+        @Override public boolean send(ByteString bytes) {
+            return false;
+        }
+        @Override public boolean close(int code, String reason) {
+            return true;
+        }
+        @Override public void cancel() {
+        }
+    }
+
+    @Test
+    public void timeout_isSerializedWithDeliver() throws Exception {
+        final int n = 20000;
+        SyncSession session = new SyncSession(new CanvasSync("me"), Schedulers.single());
+        final AtomicInteger last = new AtomicInteger();
+        final AtomicBoolean inside = new AtomicBoolean();
+        final AtomicBoolean broken = new AtomicBoolean();
+        session.attach(m -> {
+            if(!inside.compareAndSet(false, true)) broken.set(true);
+            if(m.seq != last.get() + 1) broken.set(true);
+            last.set(m.seq);
+            inside.set(false);
+        });
+        // 受信スレッドが流している最中にタイムアウトでためていた分が流れる
+        session.begin(1);
+        for(int i = 1; i <= n; ++i) session.deliver(draw("other", i));
+        while(last.get() < n && !broken.get()) Thread.sleep(1);
+        assertFalse(broken.get());
+        assertEquals(n, last.get());
+    }
+
+    @Test
+    public void parts_areJoinedBeforeCompleting() throws Exception {
+        TestScheduler timer = new TestScheduler();
+        SyncSession session = new SyncSession(new CanvasSync("me"), timer);
+        List<DrawMessage> out = new ArrayList<>();
+        session.attach(out::add);
+        session.begin(2000);
+        assertTrue(session.choose("a", 10000));
+        session.deliver(draw("a", 1));
+        session.deliver(draw("a", 2));
+
+        List<Communicator.SyncTile> tiles = new ArrayList<>();
+        for(int i = 0; i < 5; ++i) tiles.add(new Communicator.SyncTile(i, 0, "0123456789"));
+        List<Communicator.SyncMessage> parts = SyncSession.split("a", "me", Collections.singletonMap("a", 1), tiles, 25);
+        assertEquals(3, parts.size());
+        for(Communicator.SyncMessage part : parts) assertTrue(part.tiles.size() <= 2);
+
+        session.received(parts.get(0), 10000);
+        // 続きを待っている間はタイムアウトしない
+        timer.advanceTimeBy(9000, TimeUnit.MILLISECONDS);
+        session.received(parts.get(1), 10000);
+        timer.advanceTimeBy(9000, TimeUnit.MILLISECONDS);
+        assertTrue(out.isEmpty());
+        session.received(parts.get(2), 10000);
+
+        assertEquals(2, out.size());
+        assertEquals("sync", out.get(0).type);
+        assertEquals(5, ((Communicator.SyncMessage)out.get(0)).tiles.size());
+        assertEquals(2, out.get(1).seq);
+        timer.advanceTimeBy(20000, TimeUnit.MILLISECONDS);
+        assertEquals(2, out.size());
+    }
+
+    @Test
+    public void legacySync_withoutParts_completesAtOnce() throws Exception {
+        SyncSession session = new SyncSession(new CanvasSync("me"), new TestScheduler());
+        List<DrawMessage> out = new ArrayList<>();
+        session.attach(out::add);
+        session.begin(2000);
+        Communicator.SyncMessage sync = new Communicator.SyncMessage("sync", "a", "me");
+        sync.tiles = Collections.singletonList(new Communicator.SyncTile(0, 0, "x"));
+        session.received(sync, 10000);
+        assertEquals(1, out.size());
+        assertEquals(1, ((Communicator.SyncMessage)out.get(0)).tiles.size());
+    }
+
+    @Test
+    public void detached_dropsMessages() throws Exception {
+        TestScheduler timer = new TestScheduler();
+        SyncSession session = new SyncSession(new CanvasSync("me"), timer);
+        List<DrawMessage> out = new ArrayList<>();
+        session.attach(out::add);
+        session.begin(2000);
+        session.deliver(draw("a", 1));
+        session.attach(null);
+        timer.advanceTimeBy(5000, TimeUnit.MILLISECONDS);
+        session.deliver(draw("a", 2));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void send_waitsForQueueToDrain() throws Exception {
+        TestScheduler retry = new TestScheduler();
+        FakeSocket socket = new FakeSocket();
+        List<Communicator.SyncTile> tiles = new ArrayList<>();
+        for(int i = 0; i < 10; ++i) tiles.add(new Communicator.SyncTile(i, 0, new String(new char[100]).replace('\0', 'A')));
+        List<Communicator.SyncMessage> parts = SyncSession.split("a", "me", Collections.singletonMap("a", 1), tiles, 100);
+        assertEquals(10, parts.size());
+
+        SyncSession.send(socket, new Gson(), parts, 300, retry);
+        final int first = socket.sent.size();
+        assertTrue(first > 0 && first < 10);
+        socket.queued = 0;
+        retry.advanceTimeBy(1, TimeUnit.SECONDS);
+        while(socket.sent.size() < 10) {
+            socket.queued = 0;
+            retry.advanceTimeBy(1, TimeUnit.SECONDS);
+        }
+        Communicator.SyncMessage lastPart = new Gson().fromJson(socket.sent.get(9), Communicator.SyncMessage.class);
+        assertEquals(0, lastPart.remaining);
+        assertEquals(Integer.valueOf(1), lastPart.seqs.get("a"));
+    }
+}
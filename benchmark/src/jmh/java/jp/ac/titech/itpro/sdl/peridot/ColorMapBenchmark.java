@@ -0,0 +1,50 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * カラーピッカーの帯1本 (720x92) を作る時間. 彩度と明度の帯は色を選ぶたびに作り直している.
+ * saturationは1列ごとにHSVから変換するもの, saturationLinear/valueLinearはピッカーが使っている両端の間を埋めるもの.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColorMapBenchmark {
+
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 92;
+
+    private final int[] pixels = new int[WIDTH * HEIGHT];
+    private final float hue = 200, value = 0.8f;
+
+    @Benchmark
+    public int[] hue() {
+        ColorMap.fill(pixels, WIDTH, HEIGHT, x -> ColorMap.hsvToColor(x * 360.f / WIDTH, 1, 1));
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] saturation() {
+        ColorMap.fill(pixels, WIDTH, HEIGHT, x -> ColorMap.hsvToColor(hue, x * 1.0f / WIDTH, value));
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] saturationLinear() {
+        ColorMap.fillSaturation(pixels, WIDTH, HEIGHT, hue, value);
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] valueLinear() {
+        ColorMap.fillValue(pixels, WIDTH, HEIGHT, hue, 0.6f);
+        return pixels;
+    }
+}
@@ -0,0 +1,80 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描画メッセージ1つの符号化と復号. バイナリ (MessageCodec) とJSON (Gson) を比べる.
+ * points: 1メッセージにまとめた点の数.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageBenchmark {
+
+    @Param({ "1", "16", "128" })
+    public int points;
+
+    private final Gson gson = new Gson();
+    private final ByteBuffer buf = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+    private final DrawMessage out = new DrawMessage(null, null);
+    private DrawMessage message;
+    private ByteBuffer encoded;
+    private String json;
+
+    @Setup
+    public void setup() {
+        message = new DrawMessage("draw", "0f8fad5b-d9cb-469f-a165-70867728950e", 2, 16.f, 0xFF123456, 0, 0);
+        message.seq = 1234;
+        if(points > 1) {
+            message.points = new float[points * 2];
+            message.rates = new float[points];
+            for(int i = 0; i < points; ++i) {
+                message.points[i * 2] = 100 + i * 3.25f;
+                message.points[i * 2 + 1] = 500 + (float)Math.sin(i * 0.1) * 120.f;
+                message.rates[i] = 0.5f + (i % 10) * 0.05f;
+            }
+            message.x = message.points[points * 2 - 2];
+            message.y = message.points[points * 2 - 1];
+        }
+        encoded = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        MessageCodec.encode(message, 42, encoded);
+        encoded.flip();
+        json = gson.toJson(message);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        buf.clear();
+        MessageCodec.encode(message, 42, buf);
+        return buf;
+    }
+
+    @Benchmark
+    public DrawMessage binaryDecode() {
+        encoded.rewind();
+        MessageCodec.decode(encoded, out);
+        return out;
+    }
+
+    @Benchmark
+    public String jsonEncode() {
+        return gson.toJson(message);
+    }
+
+    @Benchmark
+    public DrawMessage jsonDecode() {
+        return gson.fromJson(json, DrawMessage.class);
+    }
+}
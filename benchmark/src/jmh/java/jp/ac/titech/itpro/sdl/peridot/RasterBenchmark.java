@@ -0,0 +1,45 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raster (int[]のキャンバス) に長さ約1000pxの波線を1本描く時間. サーバで描き直すときの目安.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RasterBenchmark {
+
+    @Param({ "4", "16", "64" })
+    public float width;
+
+    @Param({ "STAMP", "PATH" })
+    public StrokeEngine.Mode mode;
+
+    private final Raster raster = new Raster(1080, 1920, Pen.ERASER);
+    private final StrokeEngine engine = new StrokeEngine();
+    private Pen pen;
+
+    @Setup
+    public void setup() {
+        pen = new Pen(raster, 0xFFFF0000, width);
+        Pen.configure(pen, engine, 0xFFFF0000, width, Pen.flags(pen, mode));
+    }
+
+    @Benchmark
+    public Raster stroke() {
+        engine.begin(pen);
+        for(int i = 0; i <= 100; ++i) engine.add(40 + i * 10.f, 960 + (float)Math.sin(i * 0.2) * 300.f);
+        engine.end();
+        return raster;
+    }
+}
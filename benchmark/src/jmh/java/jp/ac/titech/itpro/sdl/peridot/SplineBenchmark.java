@@ -0,0 +1,51 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 3点のB-スプライン補間そのものの速さ. 1区間を1000点で評価する.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SplineBenchmark {
+
+    private static final int STEPS = 1000;
+
+    private float x1, y1, x2, y2, x3, y3;
+    private final float[] xs = new float[STEPS + 1];
+    private final float[] ys = new float[STEPS + 1];
+
+    @Setup
+    public void setup() {
+        x1 = 10;
+        y1 = 20;
+        x2 = 400;
+        y2 = 900;
+        x3 = 800;
+        y3 = 30;
+    }
+
+    @Benchmark
+    public float[] interpolate() {
+        for(int i = 0; i <= STEPS; ++i) {
+            final float t = i * 1.0f / STEPS;
+            xs[i] = StrokeEngine.interpolate(x1, x2, x3, t);
+            ys[i] = StrokeEngine.interpolate(y1, y2, y3, t);
+        }
+        return ys;
+    }
+
+    @Benchmark
+    public float maxCurvature() {
+        return StrokeEngine.maxCurvature(x1, y1, x2, y2, x3, y3);
+    }
+}
@@ -0,0 +1,76 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 入力点の列からスタンプ (dab) の列を作るまで. 描画はしないでBlackholeに捨てる.
+ * 長さ約1000pxの波線1本あたりの時間. STAMPは幅と速さの倍率つき, PATHは区間ごと.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrokeBenchmark {
+
+    @Param({ "4", "16", "64", "256" })
+    public float width;
+
+    private final StrokeEngine engine = new StrokeEngine();
+    private final BrushDynamics dynamics = new BrushDynamics();
+    private final float[] xy = new float[202];
+    private final long[] times = new long[101];
+    private final float[] rates = new float[101];
+    private Blackhole hole;
+
+    private final StrokeEngine.Stamp stamp = new StrokeEngine.Stamp() {
+        @Override public void draw(float x, float y, float rate) {
+            hole.consume(x);
+            hole.consume(y);
+            hole.consume(rate);
+        }
+        @Override public void drawSegment(float x1, float y1, float x2, float y2, float x3, float y3) {
+            hole.consume(x3);
+            hole.consume(y3);
+        }
+    };
+
+    @Setup
+    public void setup() {
+        for(int i = 0; i <= 100; ++i) {
+            xy[i * 2] = 40 + i * 10.f;
+            xy[i * 2 + 1] = 960 + (float)Math.sin(i * 0.2) * 300.f;
+            // 入力はだいたい8msおき
+            times[i] = i * 8;
+        }
+        engine.setSpacing(width, StrokeEngine.SPACING, StrokeEngine.MIN_SPACING);
+    }
+
+    @Benchmark
+    public void stamp(Blackhole hole) {
+        this.hole = hole;
+        engine.setMode(StrokeEngine.Mode.STAMP);
+        dynamics.begin();
+        dynamics.rates(xy, times, 101, rates);
+        engine.begin(stamp);
+        for(int i = 0; i <= 100; ++i) engine.add(xy[i * 2], xy[i * 2 + 1], rates[i]);
+        engine.end();
+    }
+
+    @Benchmark
+    public void path(Blackhole hole) {
+        this.hole = hole;
+        engine.setMode(StrokeEngine.Mode.PATH);
+        engine.begin(stamp);
+        for(int i = 0; i <= 100; ++i) engine.add(xy[i * 2], xy[i * 2 + 1]);
+        engine.end();
+    }
+}
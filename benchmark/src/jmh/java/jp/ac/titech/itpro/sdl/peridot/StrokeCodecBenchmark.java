@@ -0,0 +1,170 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 線の座標の符号化と復号. 全部の線を1回ずつ処理する時間を測り, setupで圧縮率を表示する.
+ * 線は端末で描いたキャンバスの保存先 (files/canvas) を -Dstrokes=dir で渡すとそれを使う.
+ * 渡さなければタッチ入力に似せて作った線を使う.
+ * format: float (保存していた形), absolute (1/4 pxの絶対座標), delta (StrokeCodec), simplified (0.3 pxで間引いてからdelta).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StrokeCodecBenchmark {
+
+    @Param({ "float", "absolute", "delta", "simplified" })
+    public String format;
+
+    private static final int PRECISION = MessageCodec.PRECISION;
+    private static final float TOLERANCE = 0.3f;
+
+    private final List<float[]> strokes = new ArrayList<>();
+    private ByteBuffer buf;
+    private ByteBuffer[] encoded;
+    private int[] decodedCounts;
+    private float[] scratch;
+    private String source;
+
+    @Setup
+    public void setup() throws IOException {
+        final String dir = System.getProperty("strokes");
+        if(dir != null) {
+            load(new File(dir));
+            source = strokes.size() + " recorded strokes from " + dir;
+        } else {
+            synthesize(new Random(1), 300);
+            source = strokes.size() + " synthetic strokes";
+        }
+        int maxPoints = 0, totalPoints = 0;
+        for(float[] xy : strokes) {
+            maxPoints = Math.max(maxPoints, xy.length / 2);
+            totalPoints += xy.length / 2;
+        }
+        buf = ByteBuffer.allocate(maxPoints * StrokeCodec.MAX_POINT_SIZE);
+        scratch = new float[maxPoints * 2];
+
+        encoded = new ByteBuffer[strokes.size()];
+        decodedCounts = new int[strokes.size()];
+        long bytes = 0;
+        int keptPoints = 0;
+        for(int i = 0; i < strokes.size(); ++i) {
+            buf.clear();
+            decodedCounts[i] = encode(strokes.get(i), buf);
+            buf.flip();
+            encoded[i] = ByteBuffer.allocate(buf.remaining());
+            encoded[i].put(buf).flip();
+            bytes += encoded[i].remaining();
+            keptPoints += decodedCounts[i];
+        }
+        System.out.println(String.format(Locale.US,
+            "%n%s: %s, %d points -> %d points, %d bytes (%.2f bytes/point, %.1fx smaller than float)",
+            format, source, totalPoints, keptPoints, bytes, (double)bytes / totalPoints, totalPoints * 8.0 / bytes));
+    }
+
+    // 端末の保存先にある確定した線を全部読む (タイルは使わない)
+    private void load(File dir) throws IOException {
+        if(!dir.isDirectory()) throw new IOException("no journal in " + dir);
+        new CanvasJournal(dir).read(new CanvasJournal.Reader() {
+            @Override public void tile(int tx, int ty, byte[] png) {
+            }
+            @Override public void op(StrokeLog.Op op) {
+                if(!op.clear && op.count > 0) strokes.add(Arrays.copyOf(op.points, op.count * 2));
+            }
+        });
+        if(strokes.isEmpty()) throw new IOException("no strokes in " + dir);
+    }
+
+    // 120Hzで読んだ指の動きに似せる. 速さと曲がり方がゆっくり変わり, センサーの揺れが0.3 pxほど乗る
+    private void synthesize(Random random, int n) {
+        for(int s = 0; s < n; ++s) {
+            final int count = 20 + random.nextInt(280);
+            float[] xy = new float[count * 2];
+            double x = 100 + random.nextDouble() * 880, y = 100 + random.nextDouble() * 1720;
+            double angle = random.nextDouble() * Math.PI * 2, turn = 0, speed = 0.3 + random.nextDouble();
+            for(int i = 0; i < count; ++i) {
+                xy[i * 2] = (float)(x + random.nextGaussian() * 0.3);
+                xy[i * 2 + 1] = (float)(y + random.nextGaussian() * 0.3);
+                turn = turn * 0.9 + random.nextGaussian() * 0.02;
+                angle += turn;
+                speed = Math.max(0.05, Math.min(3, speed + random.nextGaussian() * 0.05));
+                x += Math.cos(angle) * speed * 8;   // px/ms * 8ms
+                y += Math.sin(angle) * speed * 8;
+            }
+            strokes.add(xy);
+        }
+    }
+
+    // 書いた点の数を返す
+    private int encode(float[] xy, ByteBuffer out) {
+        int count = xy.length / 2;
+        switch(format) {
+            case "float":
+                for(int i = 0; i < count * 2; ++i) out.putFloat(xy[i]);
+                break;
+            case "absolute":
+                for(int i = 0; i < count * 2; ++i) MessageCodec.putVarint(out, MessageCodec.zigzag(Math.round(xy[i] * MessageCodec.QUANT)));
+                break;
+            case "delta":
+                StrokeCodec.putPoints(out, xy, count, PRECISION);
+                break;
+            case "simplified":
+                System.arraycopy(xy, 0, scratch, 0, count * 2);
+                count = StrokeCodec.simplify(scratch, null, count, TOLERANCE);
+                StrokeCodec.putPoints(out, scratch, count, PRECISION);
+                break;
+            default:
+                throw new IllegalArgumentException(format);
+        }
+        return count;
+    }
+
+    private void decode(ByteBuffer in, float[] xy, int count) {
+        switch(format) {
+            case "float":
+                for(int i = 0; i < count * 2; ++i) xy[i] = in.getFloat();
+                break;
+            case "absolute":
+                for(int i = 0; i < count * 2; ++i) xy[i] = MessageCodec.unzigzag(MessageCodec.getVarint(in)) / MessageCodec.QUANT;
+                break;
+            default:
+                StrokeCodec.getPoints(in, xy, count, PRECISION);
+                break;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encodeAll() {
+        for(float[] xy : strokes) {
+            buf.clear();
+            encode(xy, buf);
+        }
+        return buf;
+    }
+
+    @Benchmark
+    public float[] decodeAll() {
+        for(int i = 0; i < encoded.length; ++i) {
+            encoded[i].rewind();
+            decode(encoded[i], scratch, decodedCounts[i]);
+        }
+        return scratch;
+    }
+}
@@ -0,0 +1,327 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Random;
+
+
+// 負荷試験. localhostで何百もの描画クライアント (bot) を1つのスレッドで動かし,
+// サーバが配ったメッセージの数と, 送ってから同じ部屋の他のbotに届くまでの時間 (fan-out latency) を測る
+// --host を付けなければ同じプロセスでRoomServerを立てて, まとめた数と切った数も出す
+//
+//   ./gradlew :server:load -Pargs="--clients 300 --rooms 10 --slow 5 --seconds 20"
+public class LoadGenerator {
+
+    private static final int SEQ_RING = 1 << 12;     // 送った時刻を覚えておくseqの数
+    private static final int STROKE_MOVES = 60;      // 1本の線のMOVEの数
+    private static final long SLOW_INTERVAL = 100;   // ms. 遅いbotはこの間隔で少しだけ読む
+    private static final int SLOW_READ = 1024;
+    private static final int MAX_MESSAGE = 8 * 1024 * 1024;
+
+    // 設定 (引数で変える)
+    private String host = null;
+    private int port = 0;
+    private int clients = 200;
+    private int rooms = 10;
+    private int rate = 60;          // 1 botが1秒に送るメッセージ
+    private int points = 4;         // 1つのMOVEの点の数
+    private int slow = 0;           // 読むのが遅いbotの数 (部屋ごとに散らす)
+    private int seconds = 10;
+
+    private final class Bot {
+        final int id;               // peer番号 (1から)
+        final boolean slow;
+        SocketChannel channel;
+        SelectionKey key;
+        boolean open;
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long nextSend;              // ns
+        long nextRead;              // ns (遅いbotだけ)
+        int moves = -1;             // 今の線で送ったMOVEの数. -1なら線を描いていない
+        int seq = 0;
+        float angle;
+        final long[] sentAt = new long[SEQ_RING];
+        Bot(int id, boolean slow) {
+            this.id = id;
+            this.slow = slow;
+        }
+    }
+
+    private Bot[] bots;
+    private Selector selector;
+    private final Random random = new Random(1);
+    private final DrawMessage message = new DrawMessage("draw", null);
+    private final DrawMessage received = new DrawMessage(null, null);
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+    private final float[] xy = new float[MessageCodec.MAX_POINTS * 2];
+
+    // 1秒ごとの値と全体の値
+    private final Metrics.Histogram latency = new Metrics.Histogram("fanout", "us");
+    private final Metrics.Histogram totalLatency = new Metrics.Histogram("fanout", "us");
+    private long sent, delivered, totalSent, totalDelivered;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator g = new LoadGenerator();
+        g.parse(args);
+        g.run();
+    }
+
+    private void parse(String[] args) {
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            switch(args[i]) {
+                case "--host": host = value; break;
+                case "--port": port = Integer.parseInt(value); break;
+                case "--clients": clients = Integer.parseInt(value); break;
+                case "--rooms": rooms = Integer.parseInt(value); break;
+                case "--rate": rate = Integer.parseInt(value); break;
+                case "--points": points = Math.max(1, Math.min(MessageCodec.MAX_POINTS, Integer.parseInt(value))); break;
+                case "--slow": slow = Integer.parseInt(value); break;
+                case "--seconds": seconds = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        RoomServer server = null;
+        Thread serverThread = null;
+        if(host == null) {
+            server = new RoomServer(new InetSocketAddress("127.0.0.1", port));
+            serverThread = new Thread(server, "RoomServer");
+            serverThread.start();
+            host = "127.0.0.1";
+            port = server.getPort();
+        }
+        System.out.printf(Locale.US, "%d clients (%d slow) in %d rooms, %d msg/s x %d points each -> %s:%d%n",
+            clients, slow, rooms, rate, points, host, port);
+
+        selector = Selector.open();
+        bots = new Bot[clients];
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        final long start = System.nanoTime();
+        final long period = 1000000000L / Math.max(1, rate);
+        for(int i = 0; i < clients; ++i) {
+            // 遅いbotは部屋に散らばるように間を空けて選ぶ
+            final boolean isSlow = slow > 0 && i % Math.max(1, clients / slow) == 0 && i / Math.max(1, clients / slow) < slow;
+            final Bot bot = new Bot(i + 1, isSlow);
+            bot.channel = SocketChannel.open();
+            bot.channel.configureBlocking(false);
+            bot.channel.socket().setTcpNoDelay(true);
+            if(isSlow) bot.channel.socket().setReceiveBufferSize(SLOW_READ * 16);
+            bot.channel.connect(address);
+            bot.key = bot.channel.register(selector, SelectionKey.OP_CONNECT, bot);
+            bot.nextSend = start + (long)(random.nextDouble() * period);
+            bot.nextRead = start;
+            bot.angle = random.nextFloat() * 6.28f;
+            bots[i] = bot;
+        }
+
+        final long end = start + seconds * 1000000000L;
+        long nextReport = start + 1000000000L;
+        long lastMerged = 0, lastEvicted = 0;
+        while(true) {
+            selector.select(1);
+            final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while(it.hasNext()) {
+                final SelectionKey key = it.next();
+                it.remove();
+                final Bot bot = (Bot)key.attachment();
+                try {
+                    if(!key.isValid()) continue;
+                    if(key.isConnectable()) connected(bot);
+                    if(key.isValid() && key.isReadable()) read(bot, Integer.MAX_VALUE);
+                    if(key.isValid() && key.isWritable()) flush(bot);
+                } catch (IOException e) {
+                    System.out.println("bot " + bot.id + ": " + e);
+                    close(bot);
+                }
+            }
+            final long now = System.nanoTime();
+            for(Bot bot : bots) {
+                if(!bot.channel.isOpen()) continue;
+                try {
+                    if(bot.slow && bot.channel.isConnected() && now >= bot.nextRead) {
+                        bot.nextRead = now + SLOW_INTERVAL * 1000000L;
+                        read(bot, SLOW_READ);
+                    }
+                    if(bot.open) {
+                        while(now >= bot.nextSend) {
+                            bot.nextSend += period;
+                            send(bot);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("bot " + bot.id + ": " + e);
+                    close(bot);
+                }
+            }
+            if(now >= nextReport) {
+                final long merged = server != null ? server.merged.get() : 0;
+                final long evicted = server != null ? server.evicted.get() : 0;
+                report(String.format(Locale.US, "%3ds", (nextReport - start) / 1000000000L), latency.snapshot(true), sent, delivered, 1,
+                    server != null ? String.format(Locale.US, " merged=%d evicted=%d", merged - lastMerged, evicted - lastEvicted) : "");
+                lastMerged = merged;
+                lastEvicted = evicted;
+                totalSent += sent;
+                totalDelivered += delivered;
+                sent = delivered = 0;
+                nextReport += 1000000000L;
+                if(nextReport > end) break;
+            }
+        }
+        report("total", totalLatency.snapshot(false), totalSent, totalDelivered, seconds,
+            server != null ? String.format(Locale.US, " merged=%d evicted=%d", server.merged.get(), server.evicted.get()) : "");
+
+        for(Bot bot : bots) close(bot);
+        selector.close();
+        if(server != null) {
+            server.stop();
+            serverThread.join();
+        }
+    }
+
+    private void report(String label, Metrics.HistogramSnapshot h, long sent, long delivered, int seconds, String extra) {
+        System.out.printf(Locale.US, "%s: sent=%d/s delivered=%d/s (x%.1f) latency p50=%d p99=%d max=%d us%s%n",
+            label, sent / seconds, delivered / seconds, sent == 0 ? 0 : (double)delivered / sent,
+            h.percentile(50), h.percentile(99), h.max, extra);
+    }
+
+    private void connected(Bot bot) throws IOException {
+        bot.channel.finishConnect();
+        final byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        final String request = "GET /load-" + (bot.id % rooms) + " HTTP/1.1\r\n"
+            + "Host: " + host + ":" + port + "\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+        bot.out.add(ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII)));
+        // 遅いbotは自分では読まない
+        bot.key.interestOps(bot.slow ? 0 : SelectionKey.OP_READ);
+        flush(bot);
+    }
+
+    // 線を描く. DOWN, MOVE * STROKE_MOVES, UP を繰り返す
+    private void send(Bot bot) throws IOException {
+        final int action;
+        int n = points;
+        if(bot.moves < 0) {
+            action = 0;     // ACTION_DOWN
+            n = 1;
+            bot.moves = 0;
+        } else if(bot.moves >= STROKE_MOVES) {
+            action = 1;     // ACTION_UP
+            n = 1;
+            bot.moves = -1;
+        } else {
+            action = 2;     // ACTION_MOVE
+            ++bot.moves;
+        }
+        for(int i = 0; i < n; ++i) {
+            bot.angle += 0.02f;
+            xy[i * 2] = 500 + 300 * (float)Math.cos(bot.angle);
+            xy[i * 2 + 1] = 500 + 300 * (float)Math.sin(bot.angle);
+        }
+        message.action = action;
+        message.width = 16;
+        message.color = 0xFFFF0000;
+        message.x = xy[n * 2 - 2];
+        message.y = xy[n * 2 - 1];
+        message.points = n > 1 ? Arrays.copyOf(xy, n * 2) : null;
+        message.seq = ++bot.seq;
+        encodeBuffer.clear();
+        MessageCodec.encode(message, bot.id, encodeBuffer);
+        final byte[] payload = Arrays.copyOf(encodeBuffer.array(), encodeBuffer.position());
+        bot.sentAt[bot.seq & (SEQ_RING - 1)] = System.nanoTime();
+        bot.out.add(WebSocketFrame.encode(WebSocketFrame.BINARY, payload, random));
+        ++sent;
+        flush(bot);
+    }
+
+    private void flush(Bot bot) throws IOException {
+        while(!bot.out.isEmpty()) {
+            final ByteBuffer b = bot.out.peek();
+            bot.channel.write(b);
+            if(b.hasRemaining()) break;
+            bot.out.poll();
+        }
+        if(!bot.key.isValid()) return;
+        final int read = bot.slow ? 0 : SelectionKey.OP_READ;
+        bot.key.interestOps(bot.out.isEmpty() ? read : read | SelectionKey.OP_WRITE);
+    }
+
+    // 多くてもlimitバイトだけ読む
+    private void read(Bot bot, int limit) throws IOException {
+        final ByteBuffer in = bot.in;
+        final int saved = in.limit();
+        if(in.remaining() > limit) in.limit(in.position() + limit);
+        final int n = bot.channel.read(in);
+        in.limit(saved);
+        if(n < 0) {
+            close(bot);
+            return;
+        }
+        in.flip();
+        if(!bot.open) {
+            final int end = WebSocketFrame.headerEnd(in);
+            if(end < 0) {
+                in.compact();
+                return;
+            }
+            final String status = new String(in.array(), in.position(), end - in.position(), StandardCharsets.ISO_8859_1);
+            if(!status.startsWith("HTTP/1.1 101")) throw new IOException("handshake failed: " + status.split("\r\n")[0]);
+            in.position(end);
+            bot.open = true;
+            // つながるまでに過ぎた分はまとめて送らない
+            bot.nextSend = Math.max(bot.nextSend, System.nanoTime());
+        }
+        final long now = System.nanoTime();
+        WebSocketFrame frame;
+        while((frame = WebSocketFrame.read(in, MAX_MESSAGE)) != null) {
+            if(frame.opcode == WebSocketFrame.CLOSE) {
+                System.out.println("bot " + bot.id + " closed by server" + (bot.slow ? " (slow)" : ""));
+                close(bot);
+                return;
+            }
+            if(frame.opcode != WebSocketFrame.BINARY || !MessageCodec.decode(ByteBuffer.wrap(frame.payload), received)) continue;
+            ++delivered;
+            if(bot.slow || received.peer < 1 || received.peer > bots.length) continue;
+            final long sentAt = bots[received.peer - 1].sentAt[received.seq & (SEQ_RING - 1)];
+            if(sentAt != 0) {
+                latency.record((now - sentAt) / 1000);
+                totalLatency.record((now - sentAt) / 1000);
+            }
+        }
+        final long size = WebSocketFrame.frameSize(in);
+        if(size > in.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate((int)size);
+            larger.put(in);
+            bot.in = larger;
+            return;
+        }
+        in.compact();
+    }
+
+    private void close(Bot bot) {
+        bot.open = false;
+        if(bot.key != null) bot.key.cancel();
+        try {
+            bot.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// 描画チャットのWebSocketサーバ
+// 接続したパス (ws://host:port/room) ごとに部屋を分け, 届いたメッセージを同じ部屋の他の全員に配る
+// 1つのスレッドでノンブロッキングに読み書きし, 受け取ったフレームは1回だけ作って全員の送信待ちで共有する
+// 送信待ちは接続ごとに持つので, 読むのが遅い端末がいても他の人には遅れずに届く (遅い相手の分はSendQueueでまとめる)
+public class RoomServer implements Runnable {
+
+    private static final int DEFAULT_PORT = 9777;     // アプリのserver_portと同じ
+    private static final int MAX_MESSAGE = 8 * 1024 * 1024;    // 途中参加の同期でタイルをまとめて送るので大きめ
+    private static final int MAX_HEADER = 8 * 1024;
+    private static final int SOFT_LIMIT = 32 * 1024;           // これを超えて詰まったらMOVEをまとめる
+    private static final int HARD_LIMIT = 16 * 1024 * 1024;    // これを超えたら切る
+    private static final int READ_BUFFER = 16 * 1024;
+    // カーネルの送信バッファは小さく固定する. 詰まった分がSendQueueに残るので, 古いMOVEをまとめられる
+    private static final int SOCKET_SEND_BUFFER = 64 * 1024;
+    private static final int CLOSE_POLICY = 1008;
+
+    // 送り先を1人に決めるメッセージ (sync_request, sync) のtoも読む
+    static class Envelope extends DrawMessage {
+        public String to;
+        Envelope() {
+            super(null, null);
+        }
+    }
+
+    // 部屋の人数が変わったら全員に知らせる. アプリは人数とhelloの数が合うまでバイナリで送らない
+    static class RoomMessage {
+        public final String type = "room";
+        public int members;
+        public String left;     // 出ていった相手のuuid (分からなければnull)
+        RoomMessage(int members, String left) {
+            this.members = members;
+            this.left = left;
+        }
+    }
+
+    private final class Client {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        final SendQueue out = new SendQueue(SOFT_LIMIT, HARD_LIMIT, encoder);
+        Room room;
+        String uuid;        // 最初に届いたメッセージのuuid
+        boolean open;       // ハンドシェイクが済んだ
+        boolean closing;    // 送り終わったら閉じる
+        boolean dirty;      // 送信待ちが増えた
+        // 分割されたメッセージを組み立てる
+        ByteArrayOutputStream fragments;
+        int fragmentOpcode;
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static final class Room {
+        final String name;
+        final ArrayList<Client> clients = new ArrayList<>();
+        Room(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final HashMap<String, Room> rooms = new HashMap<>();
+    private final ArrayList<Client> dirty = new ArrayList<>();
+    private final Gson gson = new Gson();
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+    private final SendQueue.Encoder encoder = this::encode;
+    private volatile boolean running = true;
+
+    // 他のスレッド (負荷試験) から見る値
+    final AtomicLong connections = new AtomicLong();
+    final AtomicLong messagesIn = new AtomicLong();
+    final AtomicLong framesQueued = new AtomicLong();
+    final AtomicLong merged = new AtomicLong();
+    final AtomicLong evicted = new AtomicLong();
+
+    public RoomServer(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(running) {
+                selector.select();
+                final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Client client = (Client)key.attachment();
+                    try {
+                        if(key.isReadable()) read(client);
+                        if(key.isValid() && key.isWritable()) flush(client);
+                    } catch (IOException e) {
+                        close(client);
+                    }
+                }
+                // 読んだ分をまとめて書き出す. 書き切れなければOP_WRITEを待つ
+                for(int i = 0; i < dirty.size(); ++i) {
+                    final Client client = dirty.get(i);
+                    client.dirty = false;
+                    try {
+                        flush(client);
+                    } catch (IOException e) {
+                        close(client);
+                    }
+                }
+                dirty.clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for(SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSendBufferSize(SOCKET_SEND_BUFFER);
+            final Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+        }
+    }
+
+    private void read(Client client) throws IOException {
+        final int n = client.channel.read(client.in);
+        if(n < 0) {
+            close(client);
+            return;
+        }
+        client.in.flip();
+        try {
+            if(!client.open && !handshake(client)) {
+                client.in.compact();
+                return;
+            }
+            WebSocketFrame frame;
+            while(!client.closing && (frame = WebSocketFrame.read(client.in, MAX_MESSAGE)) != null) {
+                onFrame(client, frame);
+            }
+            // 次のフレームが入りきらなければ広げる
+            final long size = WebSocketFrame.frameSize(client.in);
+            if(size > client.in.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate((int)size);
+                larger.put(client.in);
+                client.in = larger;
+                return;
+            }
+            // 大きなメッセージを読み終えたら元の大きさに戻す (接続ごとに広げたままにしない)
+            if(client.in.capacity() > READ_BUFFER && size <= READ_BUFFER && client.in.remaining() <= READ_BUFFER) {
+                ByteBuffer smaller = ByteBuffer.allocate(READ_BUFFER);
+                smaller.put(client.in);
+                client.in = smaller;
+                return;
+            }
+        } catch (ProtocolException e) {
+            fail(client, e.getMessage());
+        }
+        client.in.compact();
+    }
+
+    // HTTPのUpgradeを受けて101を返す. ヘッダがまだ揃っていなければfalse
+    private boolean handshake(Client client) throws IOException {
+        final int end = WebSocketFrame.headerEnd(client.in);
+        if(end < 0) {
+            if(client.in.remaining() >= MAX_HEADER) throw new ProtocolException("header too large");
+            return false;
+        }
+        final byte[] header = new byte[end - client.in.position()];
+        client.in.get(header);
+        final String[] lines = new String(header, StandardCharsets.ISO_8859_1).split("\r\n");
+        final String[] request = lines[0].split(" ");
+        if(request.length < 2 || !"GET".equals(request[0])) throw new ProtocolException("not a websocket request");
+        String key = null;
+        for(String line : lines) {
+            final int colon = line.indexOf(':');
+            if(colon > 0 && "sec-websocket-key".equals(line.substring(0, colon).trim().toLowerCase(Locale.US))) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if(key == null) throw new ProtocolException("no Sec-WebSocket-Key");
+        final String response = "HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Accept: " + WebSocketFrame.acceptKey(key) + "\r\n\r\n";
+        send(client, ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)), null, null, false);
+        client.open = true;
+        join(client, roomName(request[1]));
+        connections.incrementAndGet();
+        return true;
+    }
+
+    // パスから部屋の名前を取る (クエリは無視)
+    static String roomName(String path) {
+        final int query = path.indexOf('?');
+        if(query >= 0) path = path.substring(0, query);
+        while(path.startsWith("/")) path = path.substring(1);
+        return path;
+    }
+
+    private void join(Client client, String name) {
+        Room room = rooms.get(name);
+        if(room == null) {
+            room = new Room(name);
+            rooms.put(name, room);
+        }
+        room.clients.add(client);
+        client.room = room;
+        announce(room, null);
+    }
+
+    private void announce(Room room, String left) {
+        final ByteBuffer frame = WebSocketFrame.encode(WebSocketFrame.TEXT, gson.toJson(new RoomMessage(room.clients.size(), left)), null);
+        for(int i = 0; i < room.clients.size(); ++i) send(room.clients.get(i), frame, null, null, false);
+    }
+
+    private void onFrame(Client client, WebSocketFrame frame) throws IOException {
+        switch(frame.opcode) {
+            case WebSocketFrame.PING:
+                send(client, WebSocketFrame.encode(WebSocketFrame.PONG, frame.payload, null), null, null, false);
+                return;
+            case WebSocketFrame.PONG:
+                return;
+            case WebSocketFrame.CLOSE:
+                send(client, WebSocketFrame.encode(WebSocketFrame.CLOSE, frame.payload, null), null, null, false);
+                client.closing = true;
+                return;
+            case WebSocketFrame.CONTINUATION:
+                if(client.fragments == null) throw new ProtocolException("unexpected continuation");
+                client.fragments.write(frame.payload);
+                if(client.fragments.size() > MAX_MESSAGE) throw new ProtocolException("message too large");
+                if(frame.fin) {
+                    final byte[] payload = client.fragments.toByteArray();
+                    client.fragments = null;
+                    onMessage(client, client.fragmentOpcode, payload);
+                }
+                return;
+            case WebSocketFrame.TEXT:
+            case WebSocketFrame.BINARY:
+                if(client.fragments != null) throw new ProtocolException("expected continuation");
+                if(!frame.fin) {
+                    client.fragments = new ByteArrayOutputStream();
+                    client.fragments.write(frame.payload);
+                    client.fragmentOpcode = frame.opcode;
+                    return;
+                }
+                onMessage(client, frame.opcode, frame.payload);
+                return;
+            default:
+                throw new ProtocolException("unknown opcode " + frame.opcode);
+        }
+    }
+
+    // 中身を見るのは宛先を決めるのと, 遅い相手の分をまとめるためだけ. 読めないものもそのまま配る
+    private void onMessage(Client from, int opcode, byte[] payload) {
+        messagesIn.incrementAndGet();
+        final boolean binary = opcode == WebSocketFrame.BINARY;
+        DrawMessage message = null;
+        String to = null;
+        if(binary) {
+            final DrawMessage m = new DrawMessage(null, null);
+            if(MessageCodec.decode(ByteBuffer.wrap(payload), m)) message = m;
+        } else {
+            try {
+                final Envelope e = gson.fromJson(new String(payload, StandardCharsets.UTF_8), Envelope.class);
+                if(e != null) {
+                    message = e;
+                    to = e.to;
+                    if(from.uuid == null) from.uuid = e.uuid;
+                }
+            } catch (JsonParseException ignored) {
+            }
+        }
+        final ByteBuffer frame = WebSocketFrame.encode(opcode, payload, null);
+        if(to != null) {
+            // 途中参加の同期は頼んだ相手にだけ送る (タイルが大きいので全員には配らない)
+            // 相手がもういなければ捨てる
+            for(Client c : from.room.clients) {
+                if(to.equals(c.uuid)) {
+                    send(c, frame, message, from, binary);
+                    return;
+                }
+            }
+            return;
+        }
+        final ArrayList<Client> clients = from.room.clients;
+        for(int i = 0; i < clients.size(); ++i) {
+            final Client c = clients.get(i);
+            if(c != from) send(c, frame, message, from, binary);
+        }
+    }
+
+    private void send(Client client, ByteBuffer frame, DrawMessage message, Object source, boolean binary) {
+        if(client.closing) return;
+        switch(client.out.add(frame, message, source, binary)) {
+            case SendQueue.QUEUED:
+                framesQueued.incrementAndGet();
+                break;
+            case SendQueue.MERGED:
+                merged.incrementAndGet();
+                break;
+            case SendQueue.OVERFLOW:
+                // 追いつけない相手は切る. 再接続して同期し直してもらう
+                evicted.incrementAndGet();
+                client.out.clear();
+                fail(client, "too slow");
+                return;
+        }
+        if(!client.dirty) {
+            client.dirty = true;
+            dirty.add(client);
+        }
+    }
+
+    private void flush(Client client) throws IOException {
+        if(!client.channel.isOpen()) return;
+        client.out.writeTo(client.channel);
+        if(client.out.isEmpty()) {
+            if(client.closing) {
+                close(client);
+                return;
+            }
+            client.key.interestOps(SelectionKey.OP_READ);
+        } else {
+            client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // エラーを伝えて閉じる
+    private void fail(Client client, String reason) {
+        if(client.closing) return;
+        if(!client.open) {
+            // WebSocketになる前ならそのまま切る
+            client.closing = true;
+            close(client);
+            return;
+        }
+        final byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer payload = ByteBuffer.allocate(2 + text.length);
+        payload.putShort((short)CLOSE_POLICY).put(text);
+        send(client, WebSocketFrame.encode(WebSocketFrame.CLOSE, payload.array(), null), null, null, false);
+        client.closing = true;
+    }
+
+    private void close(Client client) {
+        if(client.room != null) {
+            final Room room = client.room;
+            room.clients.remove(client);
+            client.room = null;
+            connections.decrementAndGet();
+            if(room.clients.isEmpty()) {
+                rooms.remove(room.name);
+            } else {
+                announce(room, client.uuid);
+            }
+        }
+        client.out.clear();
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // まとめたMOVEを届いたときと同じ形式 (バイナリなら同じ精度) で作り直す
+    private ByteBuffer encode(DrawMessage message, boolean binary) {
+        if(binary) {
+            encodeBuffer.clear();
+            if(MessageCodec.encode(message, message.peer, encodeBuffer, message.precision)) {
+                return WebSocketFrame.encode(WebSocketFrame.BINARY,
+                    Arrays.copyOf(encodeBuffer.array(), encodeBuffer.position()), null);
+            }
+        }
+        return WebSocketFrame.encode(WebSocketFrame.TEXT, gson.toJson(message), null);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        RoomServer server = new RoomServer(new InetSocketAddress(port));
+        System.out.println("listening on " + server.getPort());
+        server.run();
+    }
+}
@@ -0,0 +1,170 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+
+// 1つの接続の送信待ち (セレクタのスレッドだけが触る)
+// 読むのが遅い相手にはsoftLimitを超えた分のMOVEを, まだ送っていない同じ線のMOVEにまとめる
+// それでもhardLimitを超えたら切る (つなぎ直して途中参加の同期で追いついてもらう)
+class SendQueue {
+
+    // addの結果
+    static final int QUEUED = 0;
+    static final int MERGED = 1;
+    static final int OVERFLOW = 2;
+
+    // まとめたメッセージを作り直す
+    interface Encoder {
+        ByteBuffer encode(DrawMessage message, boolean binary);
+    }
+
+    private static final class Entry {
+        ByteBuffer data;
+        DrawMessage move;       // まとめられるMOVE (それ以外はnull)
+        final Object source;
+        final boolean binary;
+        int size;
+        Entry(ByteBuffer data, DrawMessage move, Object source, boolean binary) {
+            this.data = data;
+            this.move = move;
+            this.source = source;
+            this.binary = binary;
+            this.size = data.remaining();
+        }
+    }
+
+    // ACTION_MOVE, Communicator.MAX_STROKES と同じ (Androidの型はここでは使えない)
+    private static final int ACTION_MOVE = 2;
+    static final int MAX_STROKES = 10;
+
+    private static final int GATHER = 64;
+    private final int softLimit;
+    private final int hardLimit;
+    private final Encoder encoder;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    // 送信者ごと, 線の番号ごとの一番新しいMOVE (まだ後ろに同じ線のものが積まれていない)
+    private final IdentityHashMap<Object, Entry[]> tails = new IdentityHashMap<>();
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+    private long bytes = 0;
+
+    SendQueue(int softLimit, int hardLimit, Encoder encoder) {
+        this.softLimit = softLimit;
+        this.hardLimit = hardLimit;
+        this.encoder = encoder;
+    }
+
+    // frameを積む. 描画メッセージならmessageとsource (送信者) も渡す
+    // frameは他の接続と共有してよい (中身は書き換えない)
+    int add(ByteBuffer frame, DrawMessage message, Object source, boolean binary) {
+        final boolean draw = message != null && "draw".equals(message.type)
+            && message.stroke >= 0 && message.stroke < MAX_STROKES;
+        final boolean move = draw && message.action == ACTION_MOVE;
+        Entry[] strokes = source != null ? tails.get(source) : null;
+        if(move && bytes > softLimit && strokes != null) {
+            final Entry tail = strokes[message.stroke];
+            // 書き始めたものには足せない
+            if(tail != null && tail.data.position() == 0 && canMerge(tail.move, message)) {
+                tail.move = merge(tail.move, message);
+                tail.data = encoder.encode(tail.move, tail.binary);
+                bytes += tail.data.remaining() - tail.size;
+                tail.size = tail.data.remaining();
+                return bytes > hardLimit ? OVERFLOW : MERGED;
+            }
+        }
+        final Entry entry = new Entry(frame.duplicate(), move ? message : null, source, binary);
+        queue.add(entry);
+        bytes += entry.size;
+        if(source != null) {
+            if(draw) {
+                // 同じ線はこれより前のものにはまとめない (DOWN/UPを追い越さない)
+                if(strokes == null) {
+                    strokes = new Entry[MAX_STROKES];
+                    tails.put(source, strokes);
+                }
+                strokes[message.stroke] = move ? entry : null;
+            } else {
+                // 描画以外 (undoなど) を挟んだら, それより前の線にはまとめない
+                tails.remove(source);
+            }
+        }
+        return bytes > hardLimit ? OVERFLOW : QUEUED;
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    // 書けるだけ書く (1回のシステムコールで何フレームかまとめて). 書いたバイト数
+    long writeTo(GatheringByteChannel channel) throws IOException {
+        long total = 0;
+        while(!queue.isEmpty()) {
+            int n = 0;
+            for(Iterator<Entry> it = queue.iterator(); it.hasNext() && n < GATHER; ) gather[n++] = it.next().data;
+            final long written = channel.write(gather, 0, n);
+            total += written;
+            for(int i = 0; i < n && !gather[i].hasRemaining(); ++i) remove(queue.poll());
+            for(int i = 0; i < n; ++i) gather[i] = null;
+            if(written == 0 || !queue.isEmpty() && queue.peek().data.position() > 0) break;
+        }
+        return total;
+    }
+
+    private void remove(Entry entry) {
+        bytes -= entry.size;
+        if(entry.move == null || entry.source == null) return;
+        final Entry[] strokes = tails.get(entry.source);
+        if(strokes != null && strokes[entry.move.stroke] == entry) strokes[entry.move.stroke] = null;
+    }
+
+    void clear() {
+        queue.clear();
+        tails.clear();
+        bytes = 0;
+    }
+
+    private static boolean canMerge(DrawMessage a, DrawMessage b) {
+        return a.width == b.width && a.color == b.color && (a.rates == null) == (b.rates == null);
+    }
+
+    // aの後ろにbの点をつなげる (DrawMessage.append). MAX_POINTSを超えたら始点と終点を残して1つおきに間引く
+    // aは他の接続の送信待ちと共有していることがあるので, 書き換えずに新しく作る
+    static DrawMessage merge(DrawMessage a, DrawMessage b) {
+        DrawMessage m = new DrawMessage(a.type, a.uuid, a.action, a.width, a.color, a.x, a.y);
+        m.points = a.points;
+        m.rates = a.rates;
+        m.stroke = a.stroke;
+        m.append(b);
+        m.seq = b.seq;
+        m.peer = b.peer;
+        m.precision = Math.max(a.precision, b.precision);
+        int n = m.getPointCount();
+        if(n <= MessageCodec.MAX_POINTS) return m;
+        final float[] xy = m.points, rates = m.rates;
+        while(n > MessageCodec.MAX_POINTS) {
+            int k = 1;
+            for(int i = 2; i < n - 1; i += 2, ++k) {
+                xy[k * 2] = xy[i * 2];
+                xy[k * 2 + 1] = xy[i * 2 + 1];
+                if(rates != null) rates[k] = rates[i];
+            }
+            xy[k * 2] = xy[n * 2 - 2];
+            xy[k * 2 + 1] = xy[n * 2 - 1];
+            if(rates != null) rates[k] = rates[n - 1];
+            n = k + 1;
+        }
+        m.points = Arrays.copyOf(xy, n * 2);
+        if(rates != null) m.rates = Arrays.copyOf(rates, n);
+        return m;
+    }
+}
@@ -0,0 +1,142 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Random;
+
+
+// WebSocket (RFC 6455) のフレームの読み書き. サーバと負荷試験のクライアントで使う
+// 拡張 (圧縮など) は使わない
+final class WebSocketFrame {
+
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    final int opcode;
+    final boolean fin;
+    final byte[] payload;   // マスクは外してある
+
+    private WebSocketFrame(int opcode, boolean fin, byte[] payload) {
+        this.opcode = opcode;
+        this.fin = fin;
+        this.payload = payload;
+    }
+
+    boolean isControl() {
+        return (opcode & 0x8) != 0;
+    }
+
+    // inから1フレーム読み出す. まだ全部届いていなければnullを返してinの位置は動かさない
+    // ペイロードがmaxPayloadを超えるものは読まずに例外
+    static WebSocketFrame read(ByteBuffer in, int maxPayload) throws IOException {
+        final int start = in.position();
+        if(in.remaining() < 2) return null;
+        final int b0 = in.get() & 0xFF;
+        final int b1 = in.get() & 0xFF;
+        if((b0 & 0x70) != 0) throw new ProtocolException("reserved bits are set");
+        long length = b1 & 0x7F;
+        if(length == 126) {
+            if(in.remaining() < 2) return reset(in, start);
+            length = in.getShort() & 0xFFFF;
+        } else if(length == 127) {
+            if(in.remaining() < 8) return reset(in, start);
+            length = in.getLong();
+        }
+        if(length < 0 || length > maxPayload) throw new ProtocolException("frame too large: " + length);
+        final boolean masked = (b1 & 0x80) != 0;
+        if(in.remaining() < (masked ? 4 : 0) + length) return reset(in, start);
+        int mask = 0;
+        if(masked) mask = in.getInt();
+        final byte[] payload = new byte[(int)length];
+        in.get(payload);
+        if(masked) unmask(payload, mask);
+        return new WebSocketFrame(b0 & 0x0F, (b0 & 0x80) != 0, payload);
+    }
+
+    // ヘッダを含めて読むのに要る大きさ. 分からなければ-1
+    static long frameSize(ByteBuffer in) {
+        if(in.remaining() < 2) return -1;
+        final int p = in.position();
+        final int b1 = in.get(p + 1) & 0xFF;
+        final int mask = (b1 & 0x80) != 0 ? 4 : 0;
+        final int length = b1 & 0x7F;
+        if(length < 126) return 2 + mask + length;
+        if(length == 126) return in.remaining() < 4 ? -1 : 4 + mask + (in.getShort(p + 2) & 0xFFFF);
+        return in.remaining() < 10 ? -1 : 10 + mask + in.getLong(p + 2);
+    }
+
+    private static WebSocketFrame reset(ByteBuffer in, int start) {
+        in.position(start);
+        return null;
+    }
+
+    private static void unmask(byte[] payload, int mask) {
+        for(int i = 0; i < payload.length; ++i) {
+            payload[i] ^= (byte)(mask >>> (24 - (i & 3) * 8));
+        }
+    }
+
+    // 1つのフレームにする. クライアントから送るときはmaskに乱数を渡す (サーバはnull)
+    static ByteBuffer encode(int opcode, byte[] payload, Random mask) {
+        final int length = payload.length;
+        final int header = 2 + (length < 126 ? 0 : length <= 0xFFFF ? 2 : 8) + (mask != null ? 4 : 0);
+        ByteBuffer out = ByteBuffer.allocate(header + length);
+        out.put((byte)(0x80 | opcode));
+        final int maskBit = mask != null ? 0x80 : 0;
+        if(length < 126) {
+            out.put((byte)(maskBit | length));
+        } else if(length <= 0xFFFF) {
+            out.put((byte)(maskBit | 126));
+            out.putShort((short)length);
+        } else {
+            out.put((byte)(maskBit | 127));
+            out.putLong(length);
+        }
+        if(mask != null) {
+            final int key = mask.nextInt();
+            out.putInt(key);
+            final int p = out.position();
+            out.put(payload);
+            for(int i = 0; i < length; ++i) out.put(p + i, (byte)(payload[i] ^ (key >>> (24 - (i & 3) * 8))));
+        } else {
+            out.put(payload);
+        }
+        out.flip();
+        return out;
+    }
+
+    static ByteBuffer encode(int opcode, String text, Random mask) {
+        return encode(opcode, text.getBytes(StandardCharsets.UTF_8), mask);
+    }
+
+    // ハンドシェイクのSec-WebSocket-Acceptの値
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // HTTPのヘッダの終わり (空行の次) の位置. まだ届いていなければ-1
+    static int headerEnd(ByteBuffer in) {
+        for(int i = in.position(); i + 3 < in.limit(); ++i) {
+            if(in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') return i + 4;
+        }
+        return -1;
+    }
+}
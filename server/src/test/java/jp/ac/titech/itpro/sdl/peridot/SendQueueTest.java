@@ -0,0 +1,157 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+
+    // 中身を確かめやすいようにバイナリのメッセージそのものを積む
+    private static ByteBuffer encode(DrawMessage m, boolean binary) {
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.MAX_SIZE);
+        MessageCodec.encode(m, m.peer, buf);
+        buf.flip();
+        return buf;
+    }
+
+    private static DrawMessage draw(int action, int stroke, float... xy) {
+        DrawMessage m = new DrawMessage("draw", "a", action, 16, 0xFFFF0000, xy[xy.length - 2], xy[xy.length - 1]);
+        if(xy.length > 2) m.points = xy;
+        m.stroke = stroke;
+        m.peer = 7;
+        return m;
+    }
+
+    private static int add(SendQueue q, DrawMessage m, Object source) {
+        return q.add(encode(m, true), m, source, true);
+    }
+
+    // 1回にlimitバイトまでしか受け取らない
+    private static class Channel implements GatheringByteChannel {
+        final ByteBuffer written = ByteBuffer.allocate(1 << 16);
+        int limit;
+        Channel(int limit) {
+            this.limit = limit;
+        }
+        @Override public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for(int i = offset; i < offset + length && total < limit; ++i) {
+                while(srcs[i].hasRemaining() && total < limit) {
+                    written.put(srcs[i].get());
+                    ++total;
+                }
+            }
+            return total;
+        }
+        @Override public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+        @Override public int write(ByteBuffer src) {
+            return (int)write(new ByteBuffer[]{src}, 0, 1);
+        }
+        @Override public boolean isOpen() {
+            return true;
+        }
+        @Override public void close() {
+        }
+        // 書かれたものを順にデコードする
+        DrawMessage next() {
+            DrawMessage m = new DrawMessage(null, null);
+            assertTrue(MessageCodec.decode(written, m));
+            return m;
+        }
+    }
+
+    @Test
+    public void nothingIsMergedUntilCongested() throws Exception {
+        SendQueue q = new SendQueue(1 << 20, 1 << 21, SendQueueTest::encode);
+        Object a = new Object();
+        assertEquals(SendQueue.QUEUED, add(q, draw(0, 0, 1, 1), a));
+        assertEquals(SendQueue.QUEUED, add(q, draw(2, 0, 2, 2, 3, 3), a));
+        assertEquals(SendQueue.QUEUED, add(q, draw(2, 0, 4, 4, 5, 5), a));
+        Channel ch = new Channel(Integer.MAX_VALUE);
+        q.writeTo(ch);
+        assertTrue(q.isEmpty());
+        assertEquals(0, q.bytes());
+        ch.written.flip();
+        assertEquals(0, ch.next().action);
+        assertEquals(2, ch.next().getPointCount());
+        assertEquals(2, ch.next().getPointCount());
+    }
+
+    @Test
+    public void congestedMovesJoinThePendingMoveOfTheSameStroke() throws Exception {
+        SendQueue q = new SendQueue(0, 1 << 20, SendQueueTest::encode);
+        Object a = new Object(), b = new Object();
+        add(q, draw(0, 0, 1, 1), a);
+        add(q, draw(2, 0, 2, 2, 3, 3), a);
+        // 他の送信者と別の指の線は別のまま
+        assertEquals(SendQueue.QUEUED, add(q, draw(2, 0, 9, 9, 9, 9), b));
+        assertEquals(SendQueue.QUEUED, add(q, draw(2, 1, 8, 8, 8, 8), a));
+        assertEquals(SendQueue.MERGED, add(q, draw(2, 0, 4, 4, 5, 5), a));
+        // UPの後ろのMOVEはUPを追い越さない
+        add(q, draw(1, 0, 6, 6), a);
+        assertEquals(SendQueue.QUEUED, add(q, draw(2, 0, 7, 7, 7, 7), a));
+
+        Channel ch = new Channel(Integer.MAX_VALUE);
+        q.writeTo(ch);
+        ch.written.flip();
+        assertEquals(0, ch.next().action);
+        DrawMessage merged = ch.next();
+        assertEquals(4, merged.getPointCount());
+        assertEquals(2, merged.getX(0), 0);
+        assertEquals(5, merged.getX(3), 0);
+        assertEquals(9, ch.next().getX(0), 0);
+        assertEquals(1, ch.next().stroke);
+        assertEquals(1, ch.next().action);
+        assertEquals(7, ch.next().getX(0), 0);
+    }
+
+    @Test
+    public void startedFramesAreNotRewritten() throws Exception {
+        SendQueue q = new SendQueue(0, 1 << 20, SendQueueTest::encode);
+        Object a = new Object();
+        add(q, draw(2, 0, 2, 2, 3, 3), a);
+        Channel ch = new Channel(3);
+        q.writeTo(ch);
+        assertFalse(q.isEmpty());
+        // 書き始めたMOVEには足さずに後ろに積む
+        assertEquals(SendQueue.QUEUED, add(q, draw(2, 0, 4, 4, 5, 5), a));
+        ch.limit = Integer.MAX_VALUE;
+        q.writeTo(ch);
+        ch.written.flip();
+        assertEquals(2, ch.next().getX(0), 0);
+        assertEquals(4, ch.next().getX(0), 0);
+    }
+
+    @Test
+    public void overflowIsReported() throws Exception {
+        SendQueue q = new SendQueue(0, 40, SendQueueTest::encode);
+        Object a = new Object();
+        assertEquals(SendQueue.QUEUED, q.add(ByteBuffer.allocate(30), null, a, false));
+        assertEquals(SendQueue.OVERFLOW, q.add(ByteBuffer.allocate(30), null, a, false));
+    }
+
+    @Test
+    public void mergeThinsLongStrokes() throws Exception {
+        float[] xy = new float[MessageCodec.MAX_POINTS * 2];
+        for(int i = 0; i < xy.length; ++i) xy[i] = i;
+        DrawMessage merged = SendQueue.merge(draw(2, 0, xy), draw(2, 0, 1000, 1000, 2000, 2000));
+        assertTrue(merged.getPointCount() <= MessageCodec.MAX_POINTS);
+        assertEquals(0, merged.getX(0), 0);
+        assertEquals(2000, merged.getX(merged.getPointCount() - 1), 0);
+    }
+
+    @Test
+    public void mergeLeavesSharedMessageAlone() throws Exception {
+        DrawMessage a = draw(2, 0, 1, 1, 2, 2);
+        DrawMessage merged = SendQueue.merge(a, draw(2, 0, 3, 3));
+        assertEquals(3, merged.getPointCount());
+        assertEquals(3, merged.getX(2), 0);
+        assertEquals(2, a.getPointCount());
+        assertEquals(2, a.x, 0);
+    }
+}
@@ -0,0 +1,52 @@
+package jp.ac.titech.itpro.sdl.peridot;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WebSocketFrameTest {
+
+    @Test
+    public void acceptKeyMatchesRfcExample() throws Exception {
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketFrame.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void maskedFramesRoundTrip() throws Exception {
+        for(int length : new int[]{0, 5, 125, 126, 1000, 70000}) {
+            byte[] payload = new byte[length];
+            new Random(length).nextBytes(payload);
+            ByteBuffer frame = WebSocketFrame.encode(WebSocketFrame.BINARY, payload, new Random(1));
+            assertEquals(frame.remaining(), WebSocketFrame.frameSize(frame));
+            WebSocketFrame read = WebSocketFrame.read(frame, 1 << 20);
+            assertNotNull(read);
+            assertEquals(WebSocketFrame.BINARY, read.opcode);
+            assertTrue(read.fin);
+            assertArrayEquals(payload, read.payload);
+            assertFalse(frame.hasRemaining());
+        }
+    }
+
+    @Test
+    public void partialFrameIsLeftInBuffer() throws Exception {
+        ByteBuffer frame = WebSocketFrame.encode(WebSocketFrame.TEXT, "hello", null);
+        ByteBuffer in = ByteBuffer.allocate(64);
+        in.put(frame.array(), 0, 4).flip();
+        assertNull(WebSocketFrame.read(in, 1024));
+        assertEquals(0, in.position());
+        // 残りが届いたら読める
+        in.compact();
+        in.put(frame.array(), 4, frame.remaining() - 4).flip();
+        WebSocketFrame read = WebSocketFrame.read(in, 1024);
+        assertEquals("hello", new String(read.payload, StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = java.net.ProtocolException.class)
+    public void oversizedFrameIsRejected() throws Exception {
+        WebSocketFrame.read(WebSocketFrame.encode(WebSocketFrame.BINARY, new byte[2000], null), 1024);
+    }
+}